@@ -0,0 +1,25 @@
+package com.compilerprogramming.ezlang.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that
+ * allocation rates are reported along with throughput.
+ * Takes the usual JMH command line options, for example
+ * -p size=10MB to run with other input sizes.
+ * The module is only built with the benchmarks profile:
+ * mvn -Pbenchmarks install, then java -jar benchmarks/target/benchmarks.jar
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,62 @@
+package com.compilerprogramming.ezlang.benchmarks;
+
+import com.compilerprogramming.ezlang.lexer.Lexer;
+import com.compilerprogramming.ezlang.lexer.Token;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lexer throughput; the tokens counter
+ * is reported as tokens per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+
+    @Param({"1KB", "1MB", "100MB"})
+    public String size;
+
+    @Param({"42"})
+    public long seed;
+
+    private String source;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        source = ProgramGenerator.generate(ProgramGenerator.parseSize(size), seed);
+    }
+
+    @Benchmark
+    public int scan(Counters counters) {
+        Lexer lexer = new Lexer(source);
+        int count = 0;
+        while (lexer.scan() != Token.EOF)
+            count++;
+        counters.tokens += count;
+        return count;
+    }
+
+    @Benchmark
+    public TokenStream tokenStream(Counters counters) {
+        TokenStream tokens = TokenStream.lex(new Lexer(source));
+        counters.tokens += tokens.size();
+        return tokens;
+    }
+}
@@ -0,0 +1,186 @@
+package com.compilerprogramming.ezlang.benchmarks;
+
+import com.compilerprogramming.ezlang.parser.AST;
+import com.compilerprogramming.ezlang.parser.ASTVisitor;
+
+/**
+ * Counts the nodes of an AST, and measures its depth
+ */
+public class NodeCounter implements ASTVisitor {
+
+    public int count;
+    public int maxDepth;
+    private int depth;
+
+    public static int count(AST ast) {
+        NodeCounter counter = new NodeCounter();
+        ast.accept(counter);
+        return counter.count;
+    }
+
+    public static int maxDepth(AST ast) {
+        NodeCounter counter = new NodeCounter();
+        ast.accept(counter);
+        return counter.maxDepth;
+    }
+
+    private ASTVisitor enter(boolean enter) {
+        if (enter) {
+            count++;
+            maxDepth = Math.max(maxDepth, ++depth);
+        }
+        else
+            depth--;
+        return this;
+    }
+
+    @Override
+    public ASTVisitor visit(AST.Program program, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.FuncDecl funcDecl, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.StructDecl structDecl, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.VarDecl varDecl, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.BinaryExpr binaryExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.UnaryExpr unaryExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.FieldExpr fieldExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.CallExpr callExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.SetFieldExpr setFieldExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.SimpleTypeExpr simpleTypeExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.NullableSimpleTypeExpr simpleTypeExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ArrayTypeExpr arrayTypeExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.NullableArrayTypeExpr arrayTypeExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ReturnTypeExpr returnTypeExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.LiteralExpr literalExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ArrayIndexExpr arrayIndexExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.NewExpr newExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.NameExpr nameExpr, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.BreakStmt breakStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ContinueStmt continueStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ReturnStmt returnStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.IfElseStmt ifElseStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.WhileStmt whileStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.VarStmt varStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.BlockStmt blockStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.VarDeclStmt varDeclStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ExprStmt exprStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.AssignStmt assignStmt, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ErrorDecl errorDecl, boolean enter) {
+        return enter(enter);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ErrorStmt errorStmt, boolean enter) {
+        return enter(enter);
+    }
+}
@@ -0,0 +1,87 @@
+package com.compilerprogramming.ezlang.benchmarks;
+
+import com.compilerprogramming.ezlang.lexer.Lexer;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+import com.compilerprogramming.ezlang.parser.AST;
+import com.compilerprogramming.ezlang.parser.ParallelParser;
+import com.compilerprogramming.ezlang.parser.Parser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parser throughput; the nodes counter
+ * is reported as AST nodes per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({"1KB", "1MB", "100MB"})
+    public String size;
+
+    @Param({"42"})
+    public long seed;
+
+    private String source;
+    private TokenStream tokens;
+    private int nodes;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long nodes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            nodes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        source = ProgramGenerator.generate(ProgramGenerator.parseSize(size), seed);
+        tokens = TokenStream.lex(new Lexer(source));
+        nodes = NodeCounter.count(new Parser().parse(tokens));
+    }
+
+    /**
+     * Parses an already lexed source
+     */
+    @Benchmark
+    public AST.Program parse(Counters counters) {
+        counters.nodes += nodes;
+        return new Parser().parse(tokens);
+    }
+
+    /**
+     * Parses top level declarations in parallel
+     */
+    @Benchmark
+    public AST.Program parseParallel(Counters counters) {
+        counters.nodes += nodes;
+        return new ParallelParser().parse(tokens);
+    }
+
+    /**
+     * Parses only declarations and signatures,
+     * function bodies are skipped
+     */
+    @Benchmark
+    public AST.Program parseSignatures() {
+        return new Parser(true).parse(tokens);
+    }
+
+    /**
+     * Lexes and parses the source
+     */
+    @Benchmark
+    public AST.Program lexAndParse(Counters counters) {
+        counters.nodes += nodes;
+        return new Parser().parse(new Lexer(source));
+    }
+}
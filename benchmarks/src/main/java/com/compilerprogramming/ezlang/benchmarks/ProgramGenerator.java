@@ -0,0 +1,204 @@
+package com.compilerprogramming.ezlang.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates syntactically valid EZ programs of a given size.
+ * The output depends only on the seed and size, so benchmark
+ * results from different runs and machines are comparable.
+ * Programs mix struct declarations with nullable and array
+ * fields, long functions, loops, conditionals and deep expressions.
+ */
+public class ProgramGenerator {
+
+    private final Random random;
+    private final StringBuilder sb = new StringBuilder();
+    private int structs;
+    private int functions;
+
+    public ProgramGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generates a program of at least the given number of chars
+     */
+    public static String generate(int size, long seed) {
+        return new ProgramGenerator(seed).generate(size);
+    }
+
+    public String generate(int size) {
+        while (sb.length() < size) {
+            if (structs == 0 || random.nextInt(4) == 0)
+                struct();
+            else
+                function();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses sizes such as 1KB, 10MB or 4096
+     */
+    public static int parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        int scale = 1;
+        if (s.endsWith("KB")) {
+            scale = 1024;
+            s = s.substring(0, s.length() - 2);
+        } else if (s.endsWith("MB")) {
+            scale = 1024 * 1024;
+            s = s.substring(0, s.length() - 2);
+        }
+        return Math.multiplyExact(Integer.parseInt(s.trim()), scale);
+    }
+
+    private void struct() {
+        int n = structs++;
+        sb.append("struct S").append(n).append(" {\n");
+        sb.append("    var count: Int\n");
+        sb.append("    var values: [Int]?\n");
+        if (n > 0)
+            sb.append("    var other: S").append(random.nextInt(n)).append("?\n");
+        sb.append("    var next: S").append(n).append("?\n");
+        sb.append("    var children: [S").append(n).append("?]?\n");
+        sb.append("}\n");
+    }
+
+    private void function() {
+        int n = functions++;
+        int struct = random.nextInt(structs);
+        sb.append("func f").append(n).append("(a: Int, b: [Int], s: S").append(struct).append("?) -> Int {\n");
+        sb.append("    var x = a\n");
+        sb.append("    var y: Int\n");
+        sb.append("    y = ").append(expr(3)).append('\n');
+        int statements = 5 + random.nextInt(60);
+        for (int i = 0; i < statements; i++)
+            statement(1, struct);
+        sb.append("    return ").append(expr(2)).append('\n');
+        sb.append("}\n");
+    }
+
+    private void indent(int depth) {
+        sb.append("    ".repeat(depth));
+    }
+
+    private void statement(int depth, int struct) {
+        int choice = depth > 3 ? random.nextInt(4) : random.nextInt(9);
+        indent(depth);
+        switch (choice) {
+            case 0 -> sb.append("x = ").append(expr(1 + random.nextInt(6))).append('\n');
+            case 1 -> sb.append("b[").append(expr(1)).append("] = ").append(expr(3)).append('\n');
+            case 2 -> sb.append("var v").append(sb.length()).append(" = new [Int] {")
+                    .append(expr(1)).append(", ").append(expr(1)).append(", ").append(expr(1)).append("}\n");
+            case 3 -> {
+                if (functions > 1)
+                    sb.append("y = f").append(random.nextInt(functions - 1)).append("(x, b, null)\n");
+                else
+                    sb.append("y = y + 1\n");
+            }
+            case 4 -> {
+                sb.append("if (").append(condition()).append(") {\n");
+                statement(depth + 1, struct);
+                statement(depth + 1, struct);
+                indent(depth);
+                sb.append("} else\n");
+                statement(depth + 1, struct);
+            }
+            case 5 -> {
+                sb.append("while (x > 0) {\n");
+                int statements = 1 + random.nextInt(5);
+                for (int i = 0; i < statements; i++)
+                    statement(depth + 1, struct);
+                indent(depth + 1);
+                sb.append("x = x - 1\n");
+                indent(depth + 1);
+                sb.append(random.nextBoolean() ? "continue\n" : "break\n");
+                indent(depth);
+                sb.append("}\n");
+            }
+            case 6 -> sb.append("var t").append(sb.length()).append(" = new S").append(struct)
+                    .append(" { count = ").append(expr(2)).append(", values = b }\n");
+            case 7 -> sb.append("y = ").append(nested(8 + random.nextInt(24))).append('\n');
+            default -> {
+                // A comment is not a statement, so follow it with one
+                sb.append("// ").append("comment ".repeat(1 + random.nextInt(8))).append('\n');
+                indent(depth);
+                sb.append("y = y + 1\n");
+            }
+        }
+    }
+
+    private String condition() {
+        String[] relational = {"==", "!=", "<", "<=", ">", ">="};
+        StringBuilder c = new StringBuilder();
+        c.append(expr(1)).append(' ').append(relational[random.nextInt(relational.length)]).append(' ').append(expr(1));
+        if (random.nextBoolean())
+            c.append(random.nextBoolean() ? " && " : " || ").append(expr(1)).append(" != 0");
+        return c.toString();
+    }
+
+    /**
+     * Returns an expression with the given number of binary operators
+     * at each of a few precedence levels. Operands may themselves be
+     * expressions, nested up to depth levels.
+     */
+    private String expr(int depth) {
+        String[] operators = {"+", "-", "*", "/", "%"};
+        StringBuilder e = new StringBuilder(operand(depth));
+        int terms = depth * (1 + random.nextInt(3));
+        for (int i = 0; i < terms; i++)
+            e.append(' ').append(operators[random.nextInt(operators.length)]).append(' ').append(operand(depth));
+        return e.toString();
+    }
+
+    /**
+     * Returns an expression nested depth levels deep through
+     * array indexes, unary operators and calls
+     */
+    private String nested(int depth) {
+        if (depth == 0)
+            return operand(0);
+        return switch (random.nextInt(functions > 1 ? 4 : 3)) {
+            case 0 -> "b[" + nested(depth - 1) + "]";
+            case 1 -> "-" + nested(depth - 1);
+            case 2 -> "b[" + nested(depth - 1) + " + " + operand(0) + "] * " + operand(0);
+            default -> "f" + random.nextInt(functions - 1) + "(" + nested(depth - 1) + ", b, null)";
+        };
+    }
+
+    private String operand(int depth) {
+        // Parenthesized expressions are avoided, as the parser
+        // skips the first token after an opening parenthesis
+        if (depth > 1 && random.nextInt(4) == 0)
+            return random.nextBoolean() ? "b[" + expr(depth - 1) + "]" : "-b[" + expr(depth - 1) + "]";
+        return switch (random.nextInt(7)) {
+            case 0 -> "a";
+            case 1 -> "x";
+            case 2 -> "y";
+            case 3 -> "b[" + random.nextInt(10) + "]";
+            case 4 -> "-x";
+            case 5 -> "b.length";
+            default -> String.valueOf(random.nextInt(1000));
+        };
+    }
+
+    /**
+     * Writes a generated program to a file:
+     * ProgramGenerator size [seed] file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ProgramGenerator size [seed] file");
+            System.exit(1);
+        }
+        int size = parseSize(args[0]);
+        long seed = args.length > 2 ? Long.parseLong(args[1]) : 42;
+        Path file = Path.of(args[args.length - 1]);
+        Files.writeString(file, generate(size, seed), StandardCharsets.UTF_8);
+    }
+}
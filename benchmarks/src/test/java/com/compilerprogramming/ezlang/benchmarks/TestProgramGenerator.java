@@ -0,0 +1,29 @@
+package com.compilerprogramming.ezlang.benchmarks;
+
+import com.compilerprogramming.ezlang.lexer.Lexer;
+import com.compilerprogramming.ezlang.parser.Parser;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestProgramGenerator {
+
+    @Test
+    public void testGeneratedProgramsParse() {
+        for (long seed = 0; seed < 10; seed++) {
+            String src = ProgramGenerator.generate(64 * 1024, seed);
+            Assert.assertTrue(src.length() >= 64 * 1024);
+            Assert.assertEquals(src, ProgramGenerator.generate(64 * 1024, seed));
+            var program = new Parser().parse(new Lexer(src));
+            Assert.assertTrue(NodeCounter.count(program) > 1000);
+            // Nested expressions, not only flat operator chains
+            Assert.assertTrue(NodeCounter.maxDepth(program) > 20);
+        }
+    }
+
+    @Test
+    public void testParseSize() {
+        Assert.assertEquals(1024, ProgramGenerator.parseSize("1KB"));
+        Assert.assertEquals(100 * 1024 * 1024, ProgramGenerator.parseSize("100MB"));
+        Assert.assertEquals(4096, ProgramGenerator.parseSize("4096"));
+    }
+}
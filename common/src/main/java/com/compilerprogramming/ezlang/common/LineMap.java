@@ -0,0 +1,82 @@
+package com.compilerprogramming.ezlang.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Maps offsets in a source to lines and columns. Tokens and AST
+ * nodes only record an offset; the table of line starts is built
+ * the first time a position needs to be resolved, which is
+ * normally only when reporting an error.
+ * As in the lexer, only '\n' starts a new line. Lines and columns
+ * are counted from 0.
+ */
+public class LineMap {
+
+    private final char[] chars;
+    private final CharSequence text;
+    private final ByteBuffer bytes;
+    private int[] lineStarts;
+
+    public LineMap(char[] source) {
+        this.chars = source;
+        this.text = null;
+        this.bytes = null;
+    }
+
+    /**
+     * For sources held in some other form, such as the gap buffer
+     * of the incremental lexer. The map is only valid while the
+     * source does not change.
+     */
+    public LineMap(CharSequence source) {
+        this.chars = null;
+        this.text = source;
+        this.bytes = null;
+    }
+
+    /**
+     * For UTF-8 encoded sources, where offsets and
+     * columns are counted in bytes
+     */
+    public LineMap(ByteBuffer source) {
+        this.chars = null;
+        this.text = null;
+        this.bytes = source;
+    }
+
+    private int[] lineStarts() {
+        if (lineStarts == null) {
+            int[] starts = new int[64];
+            int count = 1;
+            int length = chars != null ? chars.length : text != null ? text.length() : bytes.limit();
+            for (int i = 0; i < length; i++) {
+                int ch = chars != null ? chars[i] : text != null ? text.charAt(i) : bytes.get(i);
+                if (ch == '\n') {
+                    if (count == starts.length)
+                        starts = Arrays.copyOf(starts, count * 2);
+                    starts[count++] = i + 1;
+                }
+            }
+            lineStarts = Arrays.copyOf(starts, count);
+        }
+        return lineStarts;
+    }
+
+    public int lineCount() {
+        return lineStarts().length;
+    }
+
+    public int lineStart(int line) {
+        return lineStarts()[line];
+    }
+
+    public int line(int offset) {
+        int index = Arrays.binarySearch(lineStarts(), offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    public int column(int offset) {
+        return offset - lineStart(line(offset));
+    }
+}
@@ -0,0 +1,352 @@
+package com.compilerprogramming.ezlang.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assigns dense integer ids to names. A table is local to a
+ * compilation, so unlike String.intern() it is not shared
+ * across threads and goes away with the compilation.
+ *
+ * Names are kept in an open addressing hash table that can be probed
+ * with a range of chars, or of UTF-8 bytes, so that the lexers only
+ * create a String the first time they see a name. The hash is the same as
+ * String.hashCode() so that probing with a String uses its
+ * cached hash.
+ *
+ * A frozen table can be shared between threads as the parent of
+ * tables layered on it: each layer sees the parent's names with
+ * their ids, without copying them, and gives new names the ids
+ * that follow the parent's.
+ */
+public class NameTable {
+
+    /**
+     * Frozen table this one is layered on, or null
+     */
+    private final NameTable parent;
+    // Ids below base belong to the parent
+    private final int base;
+    /**
+     * Hash slots, holding index+1 of the name in the slot, or 0 if empty
+     */
+    private int[] slots;
+    private String[] names;
+    private int[] hashes;
+    private int count;
+    private boolean frozen;
+
+    public NameTable() {
+        this(null, 64);
+    }
+
+    public NameTable(int expectedSize) {
+        this(null, expectedSize);
+    }
+
+    /**
+     * Creates a table layered on the given frozen table
+     */
+    public NameTable(NameTable parent) {
+        this(requireFrozen(parent), 64);
+    }
+
+    private NameTable(NameTable parent, int expectedSize) {
+        this.parent = parent;
+        this.base = parent == null ? 0 : parent.size();
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+        slots = new int[capacity];
+        names = new String[capacity / 2];
+        hashes = new int[capacity / 2];
+    }
+
+    private static NameTable requireFrozen(NameTable parent) {
+        if (!parent.frozen)
+            throw new IllegalStateException("Parent name table must be frozen");
+        return parent;
+    }
+
+    /**
+     * Returns a copy of this table, in which names keep their ids
+     */
+    public NameTable copy() {
+        NameTable copy = new NameTable(parent, 8);
+        copy.slots = slots.clone();
+        copy.names = names.clone();
+        copy.hashes = hashes.clone();
+        copy.count = count;
+        return copy;
+    }
+
+    /**
+     * Stops new names from being added, so that the table can
+     * be shared between threads
+     */
+    public NameTable freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private static int hash(char[] chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++)
+            h = 31 * h + chars[i];
+        return h;
+    }
+
+    private static boolean matches(String name, char[] chars, int start, int length) {
+        if (name.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++)
+            h = 31 * h + chars.charAt(i);
+        return h;
+    }
+
+    private static boolean matches(String name, CharSequence chars, int start, int length) {
+        if (name.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the UTF-8 sequence at pos, returning its code
+     * point shifted left by 3 bits, and its length in bytes
+     * in the low 3 bits
+     */
+    private static int decode(ByteBuffer bytes, int pos) {
+        int b = bytes.get(pos);
+        if (b >= 0)
+            return b << 3 | 1;
+        int length;
+        int codePoint;
+        if ((b & 0xE0) == 0xC0) {
+            length = 2;
+            codePoint = b & 0x1F;
+        } else if ((b & 0xF0) == 0xE0) {
+            length = 3;
+            codePoint = b & 0x0F;
+        } else {
+            length = 4;
+            codePoint = b & 0x07;
+        }
+        for (int i = 1; i < length; i++)
+            codePoint = codePoint << 6 | (bytes.get(pos + i) & 0x3F);
+        return codePoint << 3 | length;
+    }
+
+    /**
+     * Hashes the UTF-16 chars of the UTF-8 encoded name,
+     * giving the same hash as the String
+     */
+    private static int hash(ByteBuffer bytes, int start, int length) {
+        int h = 0;
+        for (int pos = start; pos < start + length; ) {
+            int decoded = decode(bytes, pos);
+            int codePoint = decoded >>> 3;
+            pos += decoded & 7;
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                h = 31 * h + codePoint;
+            else
+                h = 31 * (31 * h + Character.highSurrogate(codePoint)) + Character.lowSurrogate(codePoint);
+        }
+        return h;
+    }
+
+    private static boolean matches(String name, ByteBuffer bytes, int start, int length) {
+        int i = 0;
+        for (int pos = start; pos < start + length; ) {
+            int decoded = decode(bytes, pos);
+            int codePoint = decoded >>> 3;
+            pos += decoded & 7;
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (i == name.length() || name.charAt(i++) != codePoint)
+                    return false;
+            }
+            else if (i + 2 > name.length() || name.charAt(i++) != Character.highSurrogate(codePoint)
+                    || name.charAt(i++) != Character.lowSurrogate(codePoint))
+                return false;
+        }
+        return i == name.length();
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the id of the name held in chars[start..start+length),
+     * or -(slot+1) of the empty slot where it belongs in this table
+     */
+    private int find(char[] chars, int start, int length, int h) {
+        if (parent != null) {
+            int id = parent.find(chars, start, length, h);
+            if (id >= 0)
+                return id;
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (index < 0)
+                return -slot - 1;
+            if (hashes[index] == h && matches(names[index], chars, start, length))
+                return base + index;
+        }
+    }
+
+    private int find(CharSequence chars, int start, int length, int h) {
+        if (parent != null) {
+            int id = parent.find(chars, start, length, h);
+            if (id >= 0)
+                return id;
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (index < 0)
+                return -slot - 1;
+            if (hashes[index] == h && matches(names[index], chars, start, length))
+                return base + index;
+        }
+    }
+
+    private int find(ByteBuffer bytes, int start, int length, int h) {
+        if (parent != null) {
+            int id = parent.find(bytes, start, length, h);
+            if (id >= 0)
+                return id;
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (index < 0)
+                return -slot - 1;
+            if (hashes[index] == h && matches(names[index], bytes, start, length))
+                return base + index;
+        }
+    }
+
+    private int find(String name, int h) {
+        if (parent != null) {
+            int id = parent.find(name, h);
+            if (id >= 0)
+                return id;
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot] - 1;
+            if (index < 0)
+                return -slot - 1;
+            if (hashes[index] == h && names[index].equals(name))
+                return base + index;
+        }
+    }
+
+    /**
+     * Returns the id of the name held in chars[start..start+length),
+     * assigning the next id if we have not seen the name before
+     */
+    public int intern(char[] chars, int start, int length) {
+        int h = hash(chars, start, length);
+        int found = find(chars, start, length, h);
+        return found >= 0 ? found : add(-found - 1, h, new String(chars, start, length));
+    }
+
+    /**
+     * Returns the id of the name held in chars[start..start+length),
+     * assigning the next id if we have not seen the name before
+     */
+    public int intern(CharSequence chars, int start, int length) {
+        int h = hash(chars, start, length);
+        int found = find(chars, start, length, h);
+        return found >= 0 ? found : add(-found - 1, h, chars.subSequence(start, start + length).toString());
+    }
+
+    /**
+     * Returns the id of the name held as well-formed UTF-8 in
+     * bytes[start..start+length), assigning the next id if we
+     * have not seen the name before
+     */
+    public int intern(ByteBuffer bytes, int start, int length) {
+        int h = hash(bytes, start, length);
+        int found = find(bytes, start, length, h);
+        if (found >= 0)
+            return found;
+        byte[] utf8 = new byte[length];
+        bytes.get(start, utf8);
+        return add(-found - 1, h, new String(utf8, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the id of the name, assigning the next id
+     * if we have not seen the name before
+     */
+    public int intern(String name) {
+        int h = name.hashCode();
+        int found = find(name, h);
+        return found >= 0 ? found : add(-found - 1, h, name);
+    }
+
+    /**
+     * Returns the id of the name, or -1 if the name is not in the table
+     */
+    public int lookup(String name) {
+        int found = find(name, name.hashCode());
+        return found >= 0 ? found : -1;
+    }
+
+    private int add(int slot, int h, String name) {
+        if (frozen)
+            throw new IllegalStateException("Cannot add " + name + " to a frozen name table");
+        int index = count++;
+        names[index] = name;
+        hashes[index] = h;
+        slots[slot] = index + 1;
+        // Keep the load factor at most 1/2
+        if (count == names.length)
+            grow();
+        return base + index;
+    }
+
+    private void grow() {
+        int capacity = slots.length * 2;
+        int mask = capacity - 1;
+        slots = new int[capacity];
+        names = Arrays.copyOf(names, capacity / 2);
+        hashes = Arrays.copyOf(hashes, capacity / 2);
+        for (int index = 0; index < count; index++) {
+            int slot = mix(hashes[index]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the name with given id
+     */
+    public String name(int id) {
+        return id < base ? parent.name(id) : names[id - base];
+    }
+
+    public int size() {
+        return base + count;
+    }
+}
@@ -16,12 +16,44 @@
  */
 package com.compilerprogramming.ezlang.exceptions;
 
+import com.compilerprogramming.ezlang.common.LineMap;
+
 public class CompilerException extends RuntimeException {
+    /**
+     * Line and column of the error in the source,
+     * -1 if not known
+     */
+    public final int line;
+    public final int column;
+
     public CompilerException(String message) {
+        this(message, -1, -1);
+    }
+
+    public CompilerException(String message, int line, int column) {
         super(message);
+        this.line = line;
+        this.column = column;
     }
 
     public CompilerException(String message, Throwable cause) {
+        this(message, -1, -1, cause);
+    }
+
+    public CompilerException(String message, int line, int column, Throwable cause) {
         super(message, cause);
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * Returns an exception with the same message at the position of
+     * given source offset, or this one if it already has a position
+     * or the offset cannot be resolved
+     */
+    public CompilerException at(LineMap lineMap, int offset) {
+        if (line >= 0 || lineMap == null || offset < 0)
+            return this;
+        return new CompilerException(getMessage(), lineMap.line(offset), lineMap.column(offset), this);
     }
 }
@@ -0,0 +1,254 @@
+package com.compilerprogramming.ezlang.lexer;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the token stream of a source up to date as the source is
+ * edited, for editors and watch mode. An edit is re-lexed from the
+ * start of the last token before it, which is always a safe restart
+ * point because the lexer carries no state across tokens: comments
+ * and whitespace are skipped as part of scanning the next token.
+ * Re-lexing stops as soon as a new token past the edit starts where
+ * a token of the old stream starts, as from there on the tokens
+ * must be the same apart from their offsets and lines.
+ * <p>
+ * The source is held in a gap buffer and the tokens in a gapped
+ * TokenStream, both with the gap left at the last edit, so an edit
+ * costs the tokens re-lexed plus the distance from the previous
+ * edit, not the size of the source. The line map of the tokens
+ * is only valid until the next edit, and builds its table of line
+ * starts from the whole source the first time it is used.
+ */
+public class IncrementalLexer {
+
+    /**
+     * The tokens replaced by an edit: the old tokens in
+     * [index, index+removed) were replaced by the new tokens
+     * in [index, index+inserted)
+     */
+    public record Delta(int index, int removed, int inserted) {}
+
+    private final GapBuffer source;
+    private final TokenStream tokens;
+
+    public IncrementalLexer(String source) {
+        this(source, new NameTable());
+    }
+
+    public IncrementalLexer(String source, NameTable names) {
+        char[] chars = source.toCharArray();
+        Lexer lexer = new Lexer(chars, 0, 0);
+        this.tokens = TokenStream.lex(lexer, names);
+        this.source = new GapBuffer(chars);
+        tokens.lineMap = new LineMap(this.source);
+        tokens.sourceText = this.source::text;
+    }
+
+    public TokenStream tokens() {
+        return tokens;
+    }
+
+    public String source() {
+        return source.toString();
+    }
+
+    /**
+     * Replaces the deleted chars at offset with the inserted text
+     * and updates the token stream, returning the tokens that changed.
+     * If the edited source cannot be lexed the exception is
+     * propagated and neither the source nor the tokens change.
+     */
+    public Delta edit(int offset, int deleted, String inserted) {
+        if (offset < 0 || deleted < 0 || offset + deleted > source.length())
+            throw new IndexOutOfBoundsException("Edit outside source");
+        String removedText = source.replace(offset, deleted, inserted);
+        try {
+            return relex(offset, inserted.length() - deleted, offset + inserted.length());
+        } catch (CompilerException e) {
+            source.replace(offset, inserted.length(), removedText);
+            throw e;
+        }
+    }
+
+    private Delta relex(int offset, int delta, int editEnd) {
+        int first = tokens.indexBefore(offset);
+        Lexer lexer = first < 0
+                ? new GapBufferLexer(source, 0, 0)
+                : new GapBufferLexer(source, tokens.start(first), tokens.line(first));
+        first = Math.max(first, 0);
+        lexer.names = tokens.names;
+        TokenStream relexed = new TokenStream(tokens.names, 16);
+        int old = first;
+        while (true) {
+            Token.Kind kind = lexer.next();
+            int start = lexer.tokenOffset();
+            if (start >= editEnd) {
+                // Find the old token at the same place in the old source
+                int oldStart = start - delta;
+                while (tokens.start(old) < oldStart && old < tokens.size() - 1)
+                    old++;
+                if (tokens.start(old) == oldStart) {
+                    tokens.splice(first, old, relexed, delta, lexer.lineNumber() - tokens.line(old));
+                    tokens.lineMap = new LineMap(source);
+                    return new Delta(first, old - first, relexed.size());
+                }
+            }
+            relexed.add(lexer, kind);
+        }
+    }
+
+    /**
+     * The source, with a gap at the last edit
+     */
+    static final class GapBuffer implements CharSequence {
+        private char[] chars;
+        private int gapStart;
+        private int gapEnd;
+
+        GapBuffer(char[] source) {
+            chars = Arrays.copyOf(source, source.length + 64);
+            gapStart = source.length;
+            gapEnd = chars.length;
+        }
+
+        @Override
+        public int length() {
+            return chars.length - (gapEnd - gapStart);
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index < gapStart ? index : index + gapEnd - gapStart];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] result = new char[end - start];
+            for (int i = start; i < end; i++)
+                result[i - start] = charAt(i);
+            return new String(result);
+        }
+
+        String text(int start, int end) {
+            return subSequence(start, end).toString();
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(length())
+                    .append(chars, 0, gapStart)
+                    .append(chars, gapEnd, chars.length - gapEnd)
+                    .toString();
+        }
+
+        /**
+         * Replaces the deleted chars at offset with the inserted
+         * text, returning the deleted chars
+         */
+        String replace(int offset, int deleted, String inserted) {
+            moveGap(offset);
+            String removed = new String(chars, gapEnd, deleted);
+            gapEnd += deleted;
+            int length = inserted.length();
+            if (gapEnd - gapStart < length) {
+                int tail = chars.length - gapEnd;
+                char[] grown = new char[Math.max(chars.length * 2, length() + length + 64)];
+                System.arraycopy(chars, 0, grown, 0, gapStart);
+                System.arraycopy(chars, gapEnd, grown, grown.length - tail, tail);
+                chars = grown;
+                gapEnd = grown.length - tail;
+            }
+            inserted.getChars(0, length, chars, gapStart);
+            gapStart += length;
+            return removed;
+        }
+
+        private void moveGap(int offset) {
+            if (offset < gapStart) {
+                int count = gapStart - offset;
+                System.arraycopy(chars, offset, chars, gapEnd - count, count);
+                gapEnd -= count;
+            }
+            else if (offset > gapStart) {
+                int count = offset - gapStart;
+                System.arraycopy(chars, gapEnd, chars, gapStart, count);
+                gapEnd += count;
+            }
+            gapStart = offset;
+        }
+    }
+
+    /**
+     * Lexes the gap buffer from a token boundary, reading
+     * through the gap
+     */
+    static final class GapBufferLexer extends Lexer {
+        private final GapBuffer source;
+        private LineMap lineMap;
+
+        GapBufferLexer(GapBuffer source, int position, int lineNumber) {
+            super(source.length());
+            this.source = source;
+            this.position = position;
+            this.tokenStart = position;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public LineMap lineMap() {
+            if (lineMap == null)
+                lineMap = new LineMap(source);
+            return lineMap;
+        }
+
+        @Override
+        protected boolean ensure(int offset) {
+            return position + offset < limit;
+        }
+
+        @Override
+        protected char peek(int offset) {
+            int pos = position + offset;
+            return pos < limit ? source.charAt(pos) : 0;
+        }
+
+        @Override
+        protected String text(int start, int end) {
+            return source.subSequence(start, end).toString();
+        }
+
+        @Override
+        protected int internText(int start, int end) {
+            return names.intern(source, start, end - start);
+        }
+
+        @Override
+        protected void skipWhitespace() {
+            while (position < limit) {
+                char ch = source.charAt(position);
+                if (ch == '/' && peek(1) == '/') {
+                    position += 2;
+                    skipLineComment();
+                    continue;
+                }
+                if (ch == '\n')
+                    lineNumber++;
+                else if (ch != ' ' && ch != '\t' && ch != '\r')
+                    break;
+                position++;
+            }
+            tokenStart = position;
+        }
+
+        @Override
+        protected void skipLineComment() {
+            while (position < limit && source.charAt(position) != '\n')
+                position++;
+            tokenStart = position;
+        }
+    }
+}
@@ -1,185 +1,572 @@
 package com.compilerprogramming.ezlang.lexer;
 
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
 import com.compilerprogramming.ezlang.exceptions.CompilerException;
 
-import java.text.NumberFormat;
-import java.text.ParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class Lexer {
 
-    private final char[] input;
+    /**
+     * Size of the refillable buffer used when the source
+     * is read from a Reader or channel
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Holds the source; when reading from a Reader this is a window
+     * onto the source that is refilled as scanning proceeds
+     */
+    private char[] input;
+    /**
+     * Number of valid characters in the input buffer
+     */
+    protected int limit;
     /**
      * Tracks current position in input buffer
      */
-    private int position = 0;
-    private int lineNumber = 0;
+    protected int position = 0;
+    /**
+     * Start of the token being scanned, everything from here on
+     * is retained when the buffer is refilled
+     */
+    protected int tokenStart = 0;
+    protected int lineNumber = 0;
+    /**
+     * Supplies further input, null if the whole source was
+     * given up front or the reader is exhausted
+     */
+    private Reader reader;
+    /**
+     * Number of characters discarded from the front of the
+     * buffer, so that we can compute offsets into the source
+     */
+    private int discarded = 0;
+
+    /**
+     * True if the input holds the whole source
+     */
+    private boolean wholeSource;
+    private LineMap lineMap;
 
-    private final NumberFormat numberFormat;
+    /**
+     * Names seen by this lexer; token text is interned here
+     * straight from the input buffer
+     */
+    NameTable names = new NameTable();
+
+    /**
+     * Describe the token last returned by next()
+     */
+    String tokenText;
+    int tokenNameId;
+    long tokenNum;
+    double tokenFnum;
+    /**
+     * True if the number last scanned was of the form nnn.nnn
+     */
+    boolean tokenFraction;
+
+    private static final Token.Kind[] SINGLE_CHAR_PUNCT = new Token.Kind[128];
+    static {
+        for (char ch: "{}[](),.%+*;:?".toCharArray())
+            SINGLE_CHAR_PUNCT[ch] = Token.punctuation(String.valueOf(ch));
+    }
+
+    /**
+     * Used by subclasses that hold the input themselves
+     */
+    protected Lexer(int limit) {
+        this.limit = limit;
+    }
 
     public Lexer(String source) {
         input = source.toCharArray();
-        numberFormat = NumberFormat.getInstance();
-        numberFormat.setGroupingUsed(false);
+        limit = input.length;
+        wholeSource = true;
+    }
+
+    /**
+     * Lexes the given source starting at a token boundary,
+     * used when re-lexing part of an edited source
+     */
+    Lexer(char[] source, int position, int lineNumber) {
+        this(source, position, source.length, lineNumber);
+    }
+
+    /**
+     * Lexes source[position..limit), which must start and
+     * end at token boundaries
+     */
+    Lexer(char[] source, int position, int limit, int lineNumber) {
+        input = source;
+        this.limit = limit;
+        wholeSource = true;
+        this.position = position;
+        this.tokenStart = position;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Lexes the source read from the reader, using a fixed size buffer.
+     * The buffer only grows if a single token, or the whitespace
+     * skipped by peekChar(), does not fit in it.
+     * The caller remains responsible for closing the reader.
+     */
+    public Lexer(Reader reader, int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be positive");
+        this.reader = reader;
+        input = new char[bufferSize];
+        limit = 0;
+    }
+
+    public Lexer(Reader reader) {
+        this(reader, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Lexes UTF-8 encoded source read from the channel
+     */
+    public Lexer(ReadableByteChannel channel) {
+        this(Channels.newReader(channel, StandardCharsets.UTF_8), DEFAULT_BUFFER_SIZE);
     }
 
+    /**
+     * Ensures that the character at given offset from current
+     * position is in the buffer, refilling it if necessary.
+     * Returns false if the source is exhausted.
+     */
+    protected boolean ensure(int offset) {
+        return position + offset < limit || fill(offset);
+    }
+
+    /**
+     * Returns the character at given offset from current position,
+     * or 0 if the source is exhausted
+     */
+    protected char peek(int offset) {
+        return ensure(offset) ? input[position + offset] : 0;
+    }
+
+    /**
+     * Returns the source text between start and end positions
+     */
+    protected String text(int start, int end) {
+        return new String(input, start, end - start);
+    }
+
+    /**
+     * Interns the source text between start and end positions
+     */
+    protected int internText(int start, int end) {
+        return names.intern(input, start, end - start);
+    }
+
+    private void setTokenText(int start, int end) {
+        tokenNameId = internText(start, end);
+        tokenText = names.name(tokenNameId);
+    }
+
+    private boolean fill(int offset) {
+        if (reader == null)
+            return false;
+        // Discard what has already been scanned
+        if (tokenStart > 0) {
+            System.arraycopy(input, tokenStart, input, 0, limit - tokenStart);
+            limit -= tokenStart;
+            position -= tokenStart;
+            discarded += tokenStart;
+            tokenStart = 0;
+        }
+        try {
+            while (position + offset >= limit) {
+                if (limit == input.length)
+                    input = Arrays.copyOf(input, input.length * 2);
+                int n = reader.read(input, limit, input.length - limit);
+                if (n < 0) {
+                    reader = null;
+                    return false;
+                }
+                limit += n;
+            }
+        } catch (IOException e) {
+            throw new CompilerException("Failed to read source", e);
+        }
+        return true;
+    }
+
+    /**
+     * Largest mantissa that a double represents exactly
+     */
+    private static final long MAX_EXACT_MANTISSA = (1L << 53) - 1;
+    /**
+     * Powers of ten that a double represents exactly
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     /**
      * Parses number in format nnn[.nnn]
-     * where n is a digit
+     * where n is a digit.
+     * The integer part is accumulated as a long; for nnn.nnn
+     * the double value is computed from the digits when both the
+     * mantissa and the power of ten are exact, which gives a correctly
+     * rounded result, otherwise we fall back to Double.parseDouble().
+     * The text of a number is not interned, so that scanning literals
+     * neither allocates nor grows the name table.
      */
-    private Token parseNumber() {
-        assert Character.isDigit(input[position]);
-        int startPosition = position++;
-        while (position < input.length && Character.isDigit(input[position]))
+    private Token.Kind parseNumber() {
+        char ch = peek(0);
+        assert isDigit(ch);
+        long value = 0;
+        // Only integer literals must fit in a long, nnn.nnn may
+        // have any number of digits
+        boolean overflow = false;
+        do {
+            int digit = ch - '0';
+            if (overflow || value > (Long.MAX_VALUE - digit) / 10)
+                overflow = true;
+            else
+                value = value * 10 + digit;
             position++;
-        if (input[position] == '.') {
+        } while (isDigit(ch = peek(0)));
+        if (ch != '.') {
+            if (overflow)
+                throw error("Number too large");
+            return number(value, value, false);
+        }
+        position++;
+        long mantissa = value;
+        int fractionDigits = 0;
+        boolean exact = !overflow && value <= MAX_EXACT_MANTISSA;
+        while (isDigit(ch = peek(0))) {
+            int digit = ch - '0';
+            if (mantissa > (MAX_EXACT_MANTISSA - digit) / 10)
+                exact = false;
+            else
+                mantissa = mantissa * 10 + digit;
+            fractionDigits++;
             position++;
-            while (position < input.length && Character.isDigit(input[position]))
-                position++;
         }
-        String str = new String(input, startPosition, position - startPosition);
-        Number number = parseNumber(str);
-        return Token.newNum(number, str, lineNumber);
+        double fnum;
+        if (exact && fractionDigits < POWERS_OF_TEN.length)
+            fnum = mantissa / POWERS_OF_TEN[fractionDigits];
+        else {
+            String str = text(tokenStart, position);
+            try {
+                fnum = Double.parseDouble(str);
+            } catch (NumberFormatException e) {
+                throw new CompilerException("Failed to parse number " + str, e);
+            }
+        }
+        return number(overflow ? (long) fnum : value, fnum, true);
     }
 
-    private Number parseNumber(String str) {
-        try {
-            return numberFormat.parse(str);
-        } catch (ParseException e) {
-            throw new CompilerException("Failed to parse number " + str, e);
+    private Token.Kind number(long num, double fnum, boolean fraction) {
+        tokenNum = num;
+        tokenFnum = fnum;
+        tokenFraction = fraction;
+        tokenText = null;
+        tokenNameId = -1;
+        return Token.Kind.NUM;
+    }
+
+    /**
+     * Classification of ASCII characters, so that the common
+     * case does not need a call to Character
+     */
+    private static final byte DIGIT = 1;
+    private static final byte LETTER = 2;
+    private static final byte[] ASCII_CLASS = new byte[128];
+    static {
+        for (char ch = '0'; ch <= '9'; ch++)
+            ASCII_CLASS[ch] = DIGIT;
+        for (char ch = 'a'; ch <= 'z'; ch++)
+            ASCII_CLASS[ch] = LETTER;
+        for (char ch = 'A'; ch <= 'Z'; ch++)
+            ASCII_CLASS[ch] = LETTER;
+        ASCII_CLASS['_'] = LETTER;
+    }
+
+    /**
+     * Numbers are made of ASCII digits only, other Unicode digits
+     * are identifier characters, as in the UTF-8 lexer
+     */
+    protected static boolean isDigit(int ch) {
+        return ch < 128 && ASCII_CLASS[ch] == DIGIT;
+    }
+
+    protected static boolean isIdentifierLetter(int ch) {
+        if (ch < 128)
+            return ASCII_CLASS[ch] != 0;
+        return Character.isLetterOrDigit(ch);
+    }
+
+    /**
+     * Returns the number of input units taken by the identifier
+     * character at given offset from current position, or 0 if
+     * there isn't one. Characters outside the BMP are classified
+     * by code point, as in the UTF-8 lexer.
+     */
+    protected int identifierLetter(int offset) {
+        char ch = peek(offset);
+        if (Character.isHighSurrogate(ch)) {
+            char low = peek(offset + 1);
+            return Character.isLowSurrogate(low) && isIdentifierLetter(Character.toCodePoint(ch, low)) ? 2 : 0;
         }
+        return isIdentifierLetter(ch) ? 1 : 0;
     }
 
-    private boolean isIdentifierStart(char ch) {
-        return Character.isAlphabetic(ch) || ch == '_';
+    private Token.Kind parseIdentifier(int length) {
+        position += length;
+        while ((length = identifierLetter(0)) > 0)
+            position += length;
+        Token.Kind keyword = keyword();
+        if (keyword != null)
+            return fixedToken(keyword);
+        setTokenText(tokenStart, position);
+        return Token.Kind.IDENT;
     }
 
-    private boolean isIdentifierLetter(char ch) {
-        return Character.isLetterOrDigit(ch) || ch == '_';
+    /**
+     * Checks if the identifier just scanned is a keyword, the perfect
+     * hash gives us the only keyword it can be
+     */
+    private Token.Kind keyword() {
+        int length = position - tokenStart;
+        int start = tokenStart - position;
+        Token.Kind keyword = Token.keywordCandidate(peek(start), peek(-1), length);
+        if (keyword == null)
+            return null;
+        for (int i = 0; i < length; i++) {
+            if (peek(start + i) != keyword.str.charAt(i))
+                return null;
+        }
+        return keyword;
     }
 
-    private Token parseIdentifier() {
-        assert isIdentifierStart(input[position]);
-        int startPosition = position++;
-        while (position < input.length && isIdentifierLetter(input[position]))
-            position++;
-        return Token.newIdent(new String(input, startPosition, position - startPosition), lineNumber);
+    /**
+     * Skips whitespace and line comments, counting newlines.
+     * Buffered chars are scanned in a tight loop that only goes
+     * through ensure() when it reaches the end of the buffer.
+     * Only '\n' needs counting as a CR LF pair counts as one line,
+     * and a lone CR does not start a new line.
+     */
+    protected void skipWhitespace() {
+        while (true) {
+            char[] buffer = input;
+            int pos = position;
+            int end = limit;
+            int lines = 0;
+            while (pos < end) {
+                char ch = buffer[pos];
+                if (ch == '\n')
+                    lines++;
+                else if (ch != ' ' && ch != '\t' && ch != '\r')
+                    break;
+                pos++;
+            }
+            lineNumber += lines;
+            // Nothing skipped needs to be retained
+            position = tokenStart = pos;
+            if (pos == end) {
+                if (ensure(0))
+                    continue;
+                return;
+            }
+            if (buffer[pos] == '/' && peek(1) == '/') {
+                position += 2;
+                tokenStart = position;
+                skipLineComment();
+                continue;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Skips to the end of a line comment, leaving
+     * the newline to be scanned
+     */
+    protected void skipLineComment() {
+        while (true) {
+            char[] buffer = input;
+            int pos = position;
+            int end = limit;
+            while (pos < end && buffer[pos] != '\n')
+                pos++;
+            position = tokenStart = pos;
+            if (pos < end || !ensure(0))
+                return;
+        }
     }
 
     public char peekChar() {
-        int pos = position;
-        char ch = 0;
-        while (pos < input.length && Character.isWhitespace(input[pos]))
-            pos++;
-        if (pos < input.length)
-            ch = input[pos];
-        return ch;
+        int offset = 0;
+        while (ensure(offset) && Character.isWhitespace(peek(offset)))
+            offset++;
+        return peek(offset);
     }
 
+    /**
+     * Returns the next token as a Token object
+     */
     public Token scan() {
-        while (true) {
-            if (position >= input.length) return Token.EOF;
-            switch (input[position]) {
-                case 0:
-                    return Token.EOF;
-                case ' ':
-                case '\t':
-                    position++;
-                    continue;
-                case '\r':
-                    position++;
-                    if (position < input.length && input[position] == '\n') {
-                        lineNumber++;
-                        position++;
-                    }
-                    continue;
-                case '\n':
-                    lineNumber++;
-                    position++;
-                    continue;
-                case '&':
-                    position++;
-                    if (position < input.length && input[position] == '&') {
-                        position++;
-                        return Token.newPunct("&&", lineNumber);
-                    }
-                    return Token.newPunct("&", lineNumber);
-                case '|':
+        Token.Kind kind = next();
+        return switch (kind) {
+            case NUM -> Token.newNum(tokenNum, tokenFnum, text(tokenStart, position), lineNumber);
+            case EOZ -> Token.EOF;
+            default -> new Token(kind, tokenText, 0, 0, lineNumber);
+        };
+    }
+
+    /**
+     * Sets up a keyword or punctuation token
+     */
+    private Token.Kind fixedToken(Token.Kind kind) {
+        tokenText = kind.str;
+        tokenNameId = names.intern(kind.str);
+        return kind;
+    }
+
+    /**
+     * Scans the next token without creating a Token object;
+     * the token is described by the tokenXXX fields,
+     * tokenStart and position.
+     */
+    Token.Kind next() {
+        skipWhitespace();
+        tokenStart = position;
+        char ch = peek(0);
+        switch (ch) {
+            case 0:
+                return Token.Kind.EOZ;
+            case '&':
+                position++;
+                if (peek(0) == '&') {
                     position++;
-                    if (position < input.length && input[position] == '|') {
-                        position++;
-                        return Token.newPunct("||", lineNumber);
-                    }
-                    return Token.newPunct("|", lineNumber);
-                case '=':
+                    return fixedToken(Token.Kind.LOGICAL_AND);
+                }
+                return fixedToken(Token.Kind.AND);
+            case '|':
+                position++;
+                if (peek(0) == '|') {
                     position++;
-                    if (position < input.length && input[position] == '=') {
-                        position++;
-                        return Token.newPunct("==", lineNumber);
-                    }
-                    return Token.newPunct("=", lineNumber);
-                case '<':
+                    return fixedToken(Token.Kind.LOGICAL_OR);
+                }
+                return fixedToken(Token.Kind.OR);
+            case '=':
+                position++;
+                if (peek(0) == '=') {
                     position++;
-                    if (position < input.length && input[position] == '=') {
-                        position++;
-                        return Token.newPunct("<=", lineNumber);
-                    }
-                    return Token.newPunct("<", lineNumber);
-                case '>':
+                    return fixedToken(Token.Kind.EQ);
+                }
+                return fixedToken(Token.Kind.ASSIGN);
+            case '<':
+                position++;
+                if (peek(0) == '=') {
                     position++;
-                    if (position < input.length && input[position] == '=') {
-                        position++;
-                        return Token.newPunct(">=", lineNumber);
-                    }
-                    return Token.newPunct(">", lineNumber);
-                case '!':
+                    return fixedToken(Token.Kind.LE);
+                }
+                return fixedToken(Token.Kind.LT);
+            case '>':
+                position++;
+                if (peek(0) == '=') {
                     position++;
-                    if (position < input.length && input[position] == '=') {
-                        position++;
-                        return Token.newPunct("!=", lineNumber);
-                    }
-                    return Token.newPunct("!", lineNumber);
-                case '-':
+                    return fixedToken(Token.Kind.GE);
+                }
+                return fixedToken(Token.Kind.GT);
+            case '!':
+                position++;
+                if (peek(0) == '=') {
                     position++;
-                    if (position < input.length && input[position] == '>') {
-                        position++;
-                        return Token.newPunct("->", lineNumber);
-                    }
-                    return Token.newPunct("-", lineNumber);
-                case '{':
-                case '}':
-                case '[':
-                case ']':
-                case '(':
-                case ')':
-                case ',':
-                case '.':
-                case '%':
-                case '+':
-                case '*':
-                case ';':
-                case ':':
-                case '?':
-                    return Token.newPunct(Character.toString(input[position++]), lineNumber);
-                case '/':
+                    return fixedToken(Token.Kind.NE);
+                }
+                return fixedToken(Token.Kind.NOT);
+            case '-':
+                position++;
+                if (peek(0) == '>') {
                     position++;
-                    if (position < input.length && input[position] == '/') {
-                        position++;
-                        while (position < input.length && input[position] != '\n') position++;
-                        continue;
-                    }
-                    return Token.newPunct("/", lineNumber);
-                default: {
-                    return scanOthers();
+                    return fixedToken(Token.Kind.ARROW);
                 }
+                return fixedToken(Token.Kind.MINUS);
+            case '{':
+            case '}':
+            case '[':
+            case ']':
+            case '(':
+            case ')':
+            case ',':
+            case '.':
+            case '%':
+            case '+':
+            case '*':
+            case ';':
+            case ':':
+            case '?':
+                position++;
+                return fixedToken(SINGLE_CHAR_PUNCT[ch]);
+            case '/':
+                position++;
+                return fixedToken(Token.Kind.DIV);
+            default: {
+                return scanOthers(ch);
             }
         }
     }
 
-    private Token scanOthers() {
-        if (Character.isDigit(input[position])) return parseNumber();
-        else if (isIdentifierLetter(input[position])) return parseIdentifier();
-        throw new CompilerException("Unexpected character " + input[position] + " at line " + lineNumber);
+    private Token.Kind scanOthers(char ch) {
+        int length;
+        if (isDigit(ch)) return parseNumber();
+        else if ((length = identifierLetter(0)) > 0) return parseIdentifier(length);
+        throw error("Unexpected character " + ch);
+    }
+
+    private CompilerException error(String message) {
+        LineMap lines = lineMap();
+        int column = lines != null ? lines.column(tokenOffset()) : -1;
+        message += " at line " + lineNumber;
+        if (column >= 0)
+            message += ", column " + column;
+        return new CompilerException(message, lineNumber, column);
+    }
+
+    /**
+     * Returns the map of lines in the source, or null if
+     * the lexer does not hold the whole source
+     */
+    public LineMap lineMap() {
+        if (lineMap == null && wholeSource)
+            lineMap = new LineMap(input);
+        return lineMap;
+    }
+
+    /**
+     * Returns the text of ranges of the source, or null if
+     * the lexer does not hold the whole source
+     */
+    TokenStream.SourceText sourceText() {
+        return wholeSource ? this::text : null;
     }
 
     public int lineNumber() {return lineNumber;}
+
+    /**
+     * Offset in the source of the token last scanned
+     */
+    public int tokenOffset() {return discarded + tokenStart;}
+
+    /**
+     * Length of the token last scanned
+     */
+    public int tokenLength() {return position - tokenStart;}
 }
@@ -0,0 +1,110 @@
+package com.compilerprogramming.ezlang.lexer;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Lexes a large source in chunks on a ForkJoinPool. Chunks are split
+ * just after a newline: a newline always ends a line comment and no
+ * token spans lines, so every chunk starts at a token boundary.
+ * Each chunk is lexed with its own name table and line numbers
+ * starting at 0; stitching the chunks remaps the name ids into the
+ * shared table and adds the number of lines in the preceding chunks.
+ * The result is identical to lexing the source serially.
+ */
+public class ParallelLexer {
+
+    /**
+     * Sources smaller than this are lexed serially
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private record Chunk(TokenStream tokens, int lines, boolean truncated) {}
+
+    public static TokenStream lex(String source) {
+        return lex(source, new NameTable(), ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public static TokenStream lex(String source, NameTable names, ForkJoinPool pool, int chunkSize) {
+        char[] input = source.toCharArray();
+        if (input.length <= chunkSize)
+            return TokenStream.lex(new Lexer(input, 0, 0), names);
+        List<Callable<Chunk>> tasks = new ArrayList<>();
+        int start = 0;
+        while (start < input.length) {
+            int end = splitPoint(input, start + chunkSize);
+            int chunkStart = start;
+            tasks.add(() -> lexChunk(input, chunkStart, end));
+            start = end;
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (Future<Chunk> future: pool.invokeAll(tasks))
+                chunks.add(future.get());
+        } catch (ExecutionException e) {
+            // Errors report line numbers, so lex serially to
+            // report the first error with the right line
+            if (e.getCause() instanceof CompilerException)
+                return TokenStream.lex(new Lexer(input, 0, 0), names);
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        TokenStream tokens = stitch(chunks, names);
+        tokens.lineMap = new LineMap(input);
+        tokens.sourceText = (from, to) -> new String(input, from, to - from);
+        return tokens;
+    }
+
+    /**
+     * Returns the offset just after the first newline at or after
+     * the given offset, or the end of input if there is none
+     */
+    private static int splitPoint(char[] input, int offset) {
+        for (int i = offset; i < input.length; i++) {
+            if (input[i] == '\n')
+                return i + 1;
+        }
+        return input.length;
+    }
+
+    private static Chunk lexChunk(char[] input, int start, int end) {
+        Lexer lexer = new Lexer(input, start, end, 0);
+        TokenStream tokens = TokenStream.lex(lexer, new NameTable(1024));
+        // The serial lexer stops at a NUL char, so must we
+        boolean truncated = tokens.start(tokens.size() - 1) < end;
+        return new Chunk(tokens, lexer.lineNumber(), truncated);
+    }
+
+    private static TokenStream stitch(List<Chunk> chunks, NameTable names) {
+        int size = 0;
+        for (Chunk chunk: chunks)
+            size += chunk.tokens.size();
+        TokenStream tokens = new TokenStream(names, size);
+        int lines = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            NameTable chunkNames = chunk.tokens.names;
+            int[] nameIds = new int[chunkNames.size()];
+            for (int id = 0; id < nameIds.length; id++)
+                nameIds[id] = names.intern(chunkNames.name(id));
+            boolean last = chunk.truncated || i == chunks.size() - 1;
+            // Only the last chunk keeps its EOZ token
+            int count = last ? chunk.tokens.size() : chunk.tokens.size() - 1;
+            tokens.append(chunk.tokens, count, nameIds, lines);
+            if (last)
+                break;
+            lines += chunk.lines;
+        }
+        return tokens;
+    }
+}
@@ -5,8 +5,138 @@ public class Token {
     public enum Kind {
         IDENT,
         NUM,
-        PUNCT,
-        EOZ     // Special kind to signal end of file
+        EOZ,    // Special kind to signal end of file
+        // Keywords
+        FUNC("func"),
+        STRUCT("struct"),
+        VAR("var"),
+        IF("if"),
+        ELSE("else"),
+        WHILE("while"),
+        BREAK("break"),
+        CONTINUE("continue"),
+        RETURN("return"),
+        NEW("new"),
+        // Punctuation
+        LBRACE("{"),
+        RBRACE("}"),
+        LBRACKET("["),
+        RBRACKET("]"),
+        LPAREN("("),
+        RPAREN(")"),
+        COMMA(","),
+        DOT("."),
+        MOD("%"),
+        PLUS("+"),
+        MUL("*"),
+        DIV("/"),
+        SEMICOLON(";"),
+        COLON(":"),
+        QUESTION("?"),
+        MINUS("-"),
+        ARROW("->"),
+        AND("&"),
+        LOGICAL_AND("&&"),
+        OR("|"),
+        LOGICAL_OR("||"),
+        ASSIGN("="),
+        EQ("=="),
+        NOT("!"),
+        NE("!="),
+        LT("<"),
+        LE("<="),
+        GT(">"),
+        GE(">=");
+
+        /**
+         * Text of a keyword or punctuation, null for other kinds
+         */
+        public final String str;
+
+        Kind() { this.str = null; }
+        Kind(String str) { this.str = str; }
+
+        public boolean isKeyword() {
+            return ordinal() >= FUNC.ordinal() && ordinal() <= NEW.ordinal();
+        }
+        public boolean isPunct() {
+            return ordinal() >= LBRACE.ordinal();
+        }
+    }
+
+    /**
+     * Keywords are looked up via a perfect hash of the first
+     * and last characters and the length
+     */
+    private static final Kind[] KEYWORDS = new Kind[16];
+    static {
+        for (Kind kind: Kind.values()) {
+            if (kind.isKeyword()) {
+                String str = kind.str;
+                int h = keywordHash(str.charAt(0), str.charAt(str.length() - 1), str.length());
+                if (KEYWORDS[h] != null)
+                    throw new IllegalStateException("Keyword hash collision");
+                KEYWORDS[h] = kind;
+            }
+        }
+    }
+
+    static int keywordHash(int first, int last, int length) {
+        return ((first << 2) + (last << 3) + length) & 15;
+    }
+
+    /**
+     * Returns the only keyword that an identifier with given first
+     * and last characters and length can be; the caller must
+     * then check the remaining characters
+     */
+    static Kind keywordCandidate(int first, int last, int length) {
+        Kind kind = KEYWORDS[keywordHash(first, last, length)];
+        if (kind != null && kind.str.length() == length)
+            return kind;
+        return null;
+    }
+
+    public static Kind keyword(String str) {
+        if (str.isEmpty())
+            return null;
+        Kind kind = keywordCandidate(str.charAt(0), str.charAt(str.length() - 1), str.length());
+        return kind != null && kind.str.equals(str) ? kind : null;
+    }
+
+    public static Kind punctuation(String str) {
+        return switch (str) {
+            case "{" -> Kind.LBRACE;
+            case "}" -> Kind.RBRACE;
+            case "[" -> Kind.LBRACKET;
+            case "]" -> Kind.RBRACKET;
+            case "(" -> Kind.LPAREN;
+            case ")" -> Kind.RPAREN;
+            case "," -> Kind.COMMA;
+            case "." -> Kind.DOT;
+            case "%" -> Kind.MOD;
+            case "+" -> Kind.PLUS;
+            case "*" -> Kind.MUL;
+            case "/" -> Kind.DIV;
+            case ";" -> Kind.SEMICOLON;
+            case ":" -> Kind.COLON;
+            case "?" -> Kind.QUESTION;
+            case "-" -> Kind.MINUS;
+            case "->" -> Kind.ARROW;
+            case "&" -> Kind.AND;
+            case "&&" -> Kind.LOGICAL_AND;
+            case "|" -> Kind.OR;
+            case "||" -> Kind.LOGICAL_OR;
+            case "=" -> Kind.ASSIGN;
+            case "==" -> Kind.EQ;
+            case "!" -> Kind.NOT;
+            case "!=" -> Kind.NE;
+            case "<" -> Kind.LT;
+            case "<=" -> Kind.LE;
+            case ">" -> Kind.GT;
+            case ">=" -> Kind.GE;
+            default -> throw new IllegalArgumentException("Not a punctuation: " + str);
+        };
     }
 
     public final Kind kind;
@@ -16,32 +146,49 @@ public class Token {
      */
     public final String str;
     /**
-     * The parsed number value, only populated for Kind.NUM
+     * The parsed number value, only populated for Kind.NUM;
+     * for nnn.nnn this is the integer part
      */
-    public final Number num;
+    public final long num;
+    /**
+     * The parsed number value as a double, only populated for Kind.NUM
+     */
+    public final double fnum;
     public final int lineNumber;
 
-    public Token(Kind kind, String str, Number num, int lineNumber) {
+    public Token(Kind kind, String str, long num, double fnum, int lineNumber) {
         this.kind = kind;
         this.str = str;
         this.num = num;
+        this.fnum = fnum;
         this.lineNumber = lineNumber;
     }
 
+    /**
+     * Creates an identifier token, or a keyword token
+     * if str is a keyword
+     */
     public static Token newIdent(String str, int lineNumber) {
-        return new Token(Kind.IDENT, str.intern(), null, lineNumber);
+        Kind kind = keyword(str);
+        return new Token(kind != null ? kind : Kind.IDENT, str, 0, 0, lineNumber);
     }
-    public static Token newNum(Number num, String str, int lineNumber) {
-        return new Token(Kind.NUM, str, num, lineNumber);
+    public static Token newNum(long num, String str, int lineNumber) {
+        return new Token(Kind.NUM, str, num, num, lineNumber);
+    }
+    public static Token newNum(long num, double fnum, String str, int lineNumber) {
+        return new Token(Kind.NUM, str, num, fnum, lineNumber);
     }
     public static Token newPunct(String str, int lineNumber) {
-        return new Token(Kind.PUNCT, str.intern(), null, lineNumber);
+        return new Token(punctuation(str), str, 0, 0, lineNumber);
+    }
+    public static Token newToken(Kind kind, int lineNumber) {
+        return new Token(kind, kind.str, 0, 0, lineNumber);
     }
 
     /**
      * Special token that indicates that source has been exhausted
      */
-    public static Token EOF = new Token(Kind.EOZ, "", null, 0);
+    public static Token EOF = new Token(Kind.EOZ, "", 0, 0, 0);
 
     public String toString() {
         return str;
@@ -0,0 +1,352 @@
+package com.compilerprogramming.ezlang.lexer;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
+
+import java.util.Arrays;
+
+/**
+ * Holds all the tokens of a source in parallel arrays, rather
+ * than as Token objects. The text of identifiers, punctuation and
+ * names is held in a NameTable, tokens refer to it by id. The text
+ * of number literals is not interned, it is taken from the source
+ * when asked for.
+ * The last token is always an EOZ token.
+ * <p>
+ * The arrays have a gap, which is at the end while the stream is
+ * being built, and is left where an edit replaces tokens, so that
+ * the next edit nearby only moves the tokens between the two.
+ * The starts and lines of the tokens after the gap are stored
+ * without the shift of the edits made before them, which is kept
+ * in tailOffset and tailLine and applied when they are read or
+ * moved before the gap.
+ */
+public class TokenStream {
+
+    private byte[] kinds;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    /**
+     * Value of number literals, for nnn.nnn this is the integer part
+     */
+    private long[] values;
+    /**
+     * Double value of nnn.nnn literals, allocated when
+     * the first one is added
+     */
+    private double[] fvalues;
+    /**
+     * Id of the token's text in the name table, or INTEGER
+     * or FRACTION for number literals
+     */
+    private int[] nameIds;
+    private int size;
+    /**
+     * Index of the first token after the gap, and the size of the gap
+     */
+    private int gapStart;
+    private int gapLength;
+    /**
+     * Shift of the starts and lines of the tokens after the gap
+     */
+    private int tailOffset;
+    private int tailLine;
+
+    public final NameTable names;
+    /**
+     * Lines of the source, null if not known
+     */
+    LineMap lineMap;
+    /**
+     * Text of the source, for the text of number literals,
+     * null if not known
+     */
+    SourceText sourceText;
+
+    /**
+     * Name ids of number literals of the form nnn and nnn.nnn
+     */
+    public static final int INTEGER = -1;
+    public static final int FRACTION = -2;
+
+    /**
+     * Gives the text of a range of the source
+     */
+    interface SourceText {
+        String text(int start, int end);
+    }
+
+    private static final Token.Kind[] KINDS = Token.Kind.values();
+
+    public TokenStream(NameTable names, int capacity) {
+        this.names = names;
+        capacity = Math.max(capacity, 16);
+        kinds = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        values = new long[capacity];
+        nameIds = new int[capacity];
+        gapLength = capacity;
+    }
+
+    /**
+     * Lexes the whole source
+     */
+    public static TokenStream lex(Lexer lexer) {
+        return lex(lexer, lexer.names);
+    }
+
+    /**
+     * Lexes the whole source, interning names in the given table,
+     * which may be shared by all the sources of a compilation
+     */
+    public static TokenStream lex(Lexer lexer, NameTable names) {
+        lexer.names = names;
+        TokenStream tokens = new TokenStream(names, 1024);
+        Token.Kind kind;
+        do {
+            kind = lexer.next();
+            tokens.add(lexer, kind);
+        } while (kind != Token.Kind.EOZ);
+        tokens.lineMap = lexer.lineMap();
+        tokens.sourceText = lexer.sourceText();
+        return tokens;
+    }
+
+    /**
+     * Adds the token last scanned by the lexer
+     */
+    void add(Lexer lexer, Token.Kind kind) {
+        int nameId = lexer.tokenNameId;
+        long value = 0;
+        if (kind == Token.Kind.NUM) {
+            nameId = lexer.tokenFraction ? FRACTION : INTEGER;
+            value = lexer.tokenNum;
+        }
+        else if (kind == Token.Kind.EOZ)
+            nameId = names.intern("");
+        add(kind, lexer.tokenOffset(), lexer.tokenLength(), lexer.lineNumber(), value, nameId);
+        if (nameId == FRACTION) {
+            if (fvalues == null)
+                fvalues = new double[kinds.length];
+            fvalues[size - 1] = lexer.tokenFnum;
+        }
+    }
+
+    /**
+     * Adds a token, the name id of integer literals is INTEGER
+     */
+    public void add(Token.Kind kind, int start, int length, int line, long value, int nameId) {
+        moveGap(size);
+        ensureGap(1);
+        kinds[size] = (byte) kind.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        values[size] = value;
+        nameIds[size] = nameId;
+        size++;
+        gapStart++;
+        gapLength--;
+    }
+
+    /**
+     * Makes room for count tokens in the gap, leaving it where it is
+     */
+    private void ensureGap(int count) {
+        if (gapLength >= count)
+            return;
+        int at = gapStart;
+        moveGap(size);
+        int capacity = kinds.length;
+        while (capacity - size < count)
+            capacity *= 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        values = Arrays.copyOf(values, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        if (fvalues != null)
+            fvalues = Arrays.copyOf(fvalues, capacity);
+        gapLength = capacity - size;
+        moveGap(at);
+    }
+
+    /**
+     * Moves the gap to before the token at given index, which
+     * takes time proportional to the distance it moves
+     */
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            // Tokens [index, gapStart) go after the gap
+            int count = gapStart - index;
+            moveTokens(index, index + gapLength, count, -tailOffset, -tailLine);
+        }
+        else if (index > gapStart) {
+            // Tokens after the gap up to index go before it
+            int count = index - gapStart;
+            moveTokens(gapStart + gapLength, gapStart, count, tailOffset, tailLine);
+        }
+        gapStart = index;
+        if (gapStart == size)
+            tailOffset = tailLine = 0;
+    }
+
+    private void moveTokens(int from, int to, int count, int offsetDelta, int lineDelta) {
+        System.arraycopy(kinds, from, kinds, to, count);
+        System.arraycopy(starts, from, starts, to, count);
+        System.arraycopy(lengths, from, lengths, to, count);
+        System.arraycopy(lines, from, lines, to, count);
+        System.arraycopy(values, from, values, to, count);
+        System.arraycopy(nameIds, from, nameIds, to, count);
+        if (fvalues != null)
+            System.arraycopy(fvalues, from, fvalues, to, count);
+        if (offsetDelta != 0 || lineDelta != 0) {
+            for (int i = to; i < to + count; i++) {
+                starts[i] += offsetDelta;
+                lines[i] += lineDelta;
+            }
+        }
+    }
+
+    /**
+     * Appends the first count tokens of another stream, mapping
+     * their name ids through nameIds and moving them by lineDelta lines
+     */
+    void append(TokenStream other, int count, int[] nameIds, int lineDelta) {
+        other.moveGap(other.size);
+        moveGap(size);
+        ensureGap(count);
+        System.arraycopy(other.kinds, 0, kinds, size, count);
+        System.arraycopy(other.starts, 0, starts, size, count);
+        System.arraycopy(other.lengths, 0, lengths, size, count);
+        System.arraycopy(other.values, 0, values, size, count);
+        copyFvalues(other, size, count);
+        for (int i = 0; i < count; i++) {
+            lines[size + i] = other.lines[i] + lineDelta;
+            int nameId = other.nameIds[i];
+            this.nameIds[size + i] = nameId < 0 ? nameId : nameIds[nameId];
+        }
+        size += count;
+        gapStart += count;
+        gapLength -= count;
+    }
+
+    /**
+     * Copies the double values of the first count tokens
+     * of another stream to the given index
+     */
+    private void copyFvalues(TokenStream other, int index, int count) {
+        if (other.fvalues == null)
+            return;
+        if (fvalues == null)
+            fvalues = new double[kinds.length];
+        System.arraycopy(other.fvalues, 0, fvalues, index, count);
+    }
+
+    /**
+     * Returns the index of the last token starting before
+     * the given offset, or -1 if there is none
+     */
+    public int indexBefore(int offset) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (start(mid) < offset) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return hi;
+    }
+
+    /**
+     * Replaces the tokens in [from, to) with all the tokens of the
+     * replacement stream, and moves the tokens after them by
+     * the given number of chars and lines.
+     * Leaves the gap after the replacement, so this takes time
+     * proportional to the number of tokens replaced and inserted,
+     * plus the distance from the previous splice.
+     */
+    void splice(int from, int to, TokenStream replacement, int offsetDelta, int lineDelta) {
+        moveGap(to);
+        int removed = to - from;
+        gapStart = from;
+        gapLength += removed;
+        size -= removed;
+        tailOffset += offsetDelta;
+        tailLine += lineDelta;
+        int inserted = replacement.size;
+        ensureGap(inserted);
+        replacement.moveGap(inserted);
+        System.arraycopy(replacement.kinds, 0, kinds, from, inserted);
+        System.arraycopy(replacement.starts, 0, starts, from, inserted);
+        System.arraycopy(replacement.lengths, 0, lengths, from, inserted);
+        System.arraycopy(replacement.lines, 0, lines, from, inserted);
+        System.arraycopy(replacement.values, 0, values, from, inserted);
+        System.arraycopy(replacement.nameIds, 0, nameIds, from, inserted);
+        copyFvalues(replacement, from, inserted);
+        size += inserted;
+        gapStart += inserted;
+        gapLength -= inserted;
+    }
+
+    public int size() { return size; }
+    public Token.Kind kind(int i) { return KINDS[kinds[index(i)]]; }
+    public int start(int i) { return i < gapStart ? starts[i] : starts[i + gapLength] + tailOffset; }
+    public int length(int i) { return lengths[index(i)]; }
+    public int line(int i) { return i < gapStart ? lines[i] : lines[i + gapLength] + tailLine; }
+    public int nameId(int i) { return nameIds[index(i)]; }
+
+    public long value(int i) { return values[index(i)]; }
+
+    /**
+     * Value of a number literal as a double
+     */
+    public double fvalue(int i) {
+        int index = index(i);
+        return nameIds[index] == FRACTION ? fvalues[index] : values[index];
+    }
+
+    /**
+     * Text of the token; for number literals this is taken from
+     * the source, or formatted from the value if the source is
+     * not known
+     */
+    public String text(int i) {
+        int nameId = nameId(i);
+        if (nameId >= 0)
+            return names.name(nameId);
+        if (sourceText != null)
+            return sourceText.text(start(i), start(i) + length(i));
+        return nameId == FRACTION ? Double.toString(fvalue(i)) : Long.toString(value(i));
+    }
+    public LineMap lineMap() { return lineMap; }
+
+    /**
+     * Index of the token in the arrays
+     */
+    private int index(int i) {
+        return i < gapStart ? i : i + gapLength;
+    }
+
+    /**
+     * Column of the token, -1 if the source's lines are not known
+     */
+    public int column(int i) {
+        return lineMap != null ? start(i) - lineMap.lineStart(line(i)) : -1;
+    }
+
+    /**
+     * Creates a Token object for the token at given index,
+     * for consumers that need one
+     */
+    public Token token(int i) {
+        return switch (kind(i)) {
+            case NUM -> new Token(Token.Kind.NUM, text(i), value(i), fvalue(i), line(i));
+            case EOZ -> Token.EOF;
+            default -> new Token(kind(i), text(i), 0, 0, line(i));
+        };
+    }
+}
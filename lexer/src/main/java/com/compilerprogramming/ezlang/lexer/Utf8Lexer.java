@@ -0,0 +1,187 @@
+package com.compilerprogramming.ezlang.lexer;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A lexer that works directly on UTF-8 encoded bytes, such as
+ * a memory mapped source file, without copying them into a char[].
+ * ASCII characters are classified as bytes, only non-ASCII
+ * identifier characters are decoded.
+ * Whitespace and comments are skipped 8 bytes at a time, using
+ * SWAR (SIMD within a register) tests on longs.
+ */
+public class Utf8Lexer extends Lexer {
+
+    private final ByteBuffer input;
+    private LineMap lineMap;
+
+    public Utf8Lexer(ByteBuffer input) {
+        super(input.remaining());
+        this.input = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Maps the given file into memory and returns a lexer over it
+     */
+    public static Utf8Lexer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new Utf8Lexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Columns are counted in bytes
+     */
+    @Override
+    public LineMap lineMap() {
+        if (lineMap == null)
+            lineMap = new LineMap(input);
+        return lineMap;
+    }
+
+    @Override
+    TokenStream.SourceText sourceText() {
+        return this::text;
+    }
+
+    @Override
+    protected boolean ensure(int offset) {
+        return position + offset < limit;
+    }
+
+    /**
+     * Returns the byte at given offset from current position.
+     * Non-ASCII bytes are returned as is, so they never match
+     * any of the ASCII punctuation, digits or whitespace.
+     */
+    @Override
+    protected char peek(int offset) {
+        int pos = position + offset;
+        return pos < limit ? (char) (input.get(pos) & 0xFF) : 0;
+    }
+
+    @Override
+    protected String text(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        input.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected int internText(int start, int end) {
+        return names.intern(input, start, end - start);
+    }
+
+    @Override
+    protected int identifierLetter(int offset) {
+        int pos = position + offset;
+        if (pos >= limit)
+            return 0;
+        int b = input.get(pos);
+        if (b >= 0)
+            return isIdentifierLetter(b) ? 1 : 0;
+        // Decode a multibyte sequence
+        int length;
+        int codePoint;
+        if ((b & 0xE0) == 0xC0) {
+            length = 2;
+            codePoint = b & 0x1F;
+        } else if ((b & 0xF0) == 0xE0) {
+            length = 3;
+            codePoint = b & 0x0F;
+        } else if ((b & 0xF8) == 0xF0) {
+            length = 4;
+            codePoint = b & 0x07;
+        } else
+            return 0;
+        if (pos + length > limit)
+            return 0;
+        for (int i = 1; i < length; i++) {
+            int next = input.get(pos + i);
+            if ((next & 0xC0) != 0x80)
+                return 0;
+            codePoint = (codePoint << 6) | (next & 0x3F);
+        }
+        return Character.isLetterOrDigit(codePoint) ? length : 0;
+    }
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long SPACES = ' ' * ONES;
+    private static final long TABS = '\t' * ONES;
+    private static final long NEWLINES = '\n' * ONES;
+    private static final long RETURNS = '\r' * ONES;
+
+    /**
+     * Returns a word with the high bit set in each
+     * byte of word that is zero, and all other bits clear
+     */
+    private static long zeroBytes(long word) {
+        long t = (word & LOW_BITS) + LOW_BITS;
+        return ~(t | word | LOW_BITS);
+    }
+
+    @Override
+    protected void skipWhitespace() {
+        int pos = position;
+        while (true) {
+            while (pos + 8 <= limit) {
+                long word = input.getLong(pos);
+                long newlines = zeroBytes(word ^ NEWLINES);
+                long whitespace = newlines | zeroBytes(word ^ SPACES)
+                        | zeroBytes(word ^ TABS) | zeroBytes(word ^ RETURNS);
+                long other = ~whitespace & (ONES << 7);
+                if (other == 0) {
+                    lineNumber += Long.bitCount(newlines);
+                    pos += 8;
+                    continue;
+                }
+                // Count the newlines before the first other byte
+                int skipped = Long.numberOfTrailingZeros(other) >>> 3;
+                lineNumber += Long.bitCount(newlines & ((1L << (skipped << 3)) - 1));
+                pos += skipped;
+                break;
+            }
+            while (pos < limit) {
+                byte b = input.get(pos);
+                if (b == '\n')
+                    lineNumber++;
+                else if (b != ' ' && b != '\t' && b != '\r')
+                    break;
+                pos++;
+            }
+            if (pos + 1 < limit && input.get(pos) == '/' && input.get(pos + 1) == '/') {
+                position = pos + 2;
+                skipLineComment();
+                pos = position;
+                continue;
+            }
+            position = tokenStart = pos;
+            return;
+        }
+    }
+
+    @Override
+    protected void skipLineComment() {
+        int pos = position;
+        while (pos + 8 <= limit) {
+            long newlines = zeroBytes(input.getLong(pos) ^ NEWLINES);
+            if (newlines != 0) {
+                position = pos + (Long.numberOfTrailingZeros(newlines) >>> 3);
+                return;
+            }
+            pos += 8;
+        }
+        while (pos < limit && input.get(pos) != '\n')
+            pos++;
+        position = pos;
+    }
+}
@@ -1,10 +1,23 @@
 package com.compilerprogramming.ezlang.lexer;
 
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 public class TestLexer {
 
@@ -25,11 +38,11 @@ public class TestLexer {
                 Token.newPunct(">=", 0),
                 Token.newPunct("!=", 0),
                 Token.newPunct("!", 0),
-                Token.newNum(null, "1.5", 0),
+                Token.newNum(1, 1.5, "1.5", 0),
                 Token.newPunct("{", 0),
-                Token.newNum(null, "0", 0),
+                Token.newNum(0, "0", 0),
                 Token.newPunct("}", 0),
-                Token.newNum(null, "11", 0),
+                Token.newNum(11, "11", 0),
                 Token.newPunct("(", 0),
                 Token.newPunct(")", 0),
                 Token.newPunct("[", 0),
@@ -53,4 +66,414 @@ public class TestLexer {
         }
     }
 
+    static final String SOURCE = """
+            // A comment that is longer than the smallest buffers we use
+            func foo(a: Int, b: [Int]) -> Int {
+                var someLongerIdentifier = a >= 10 && b[1] != 2 || !a
+                while (a <= 123.456) { a = a - 1 }   // trailing comment
+            \r
+                return someLongerIdentifier % 7
+            }
+            """;
+
+    private static List<String> scanAll(Lexer lexer) {
+        List<String> tokens = new ArrayList<>();
+        Token token = lexer.scan();
+        while (token != Token.EOF) {
+            tokens.add(token.str + "@" + token.lineNumber);
+            token = lexer.scan();
+        }
+        return tokens;
+    }
+
+    @Test
+    public void testReaderAcrossBufferBoundaries() {
+        List<String> expected = scanAll(new Lexer(SOURCE));
+        for (int bufferSize = 1; bufferSize <= 16; bufferSize++) {
+            Lexer lexer = new Lexer(new StringReader(SOURCE), bufferSize);
+            Assert.assertEquals(expected, scanAll(lexer));
+        }
+    }
+
+    @Test
+    public void testPeekCharAcrossBufferBoundaries() {
+        String src = "var x        \n\n      = 1";
+        for (int bufferSize = 1; bufferSize <= 8; bufferSize++) {
+            Lexer lexer = new Lexer(new StringReader(src), bufferSize);
+            Assert.assertEquals("var", lexer.scan().str);
+            Assert.assertEquals("x", lexer.scan().str);
+            Assert.assertEquals('=', lexer.peekChar());
+            Assert.assertEquals("=", lexer.scan().str);
+            Assert.assertEquals(2, lexer.lineNumber());
+            Assert.assertEquals("1", lexer.scan().str);
+            Assert.assertEquals(0, lexer.peekChar());
+            Assert.assertSame(Token.EOF, lexer.scan());
+        }
+    }
+
+    @Test
+    public void testChannel() {
+        byte[] bytes = SOURCE.getBytes(StandardCharsets.UTF_8);
+        Lexer lexer = new Lexer(Channels.newChannel(new ByteArrayInputStream(bytes)));
+        Assert.assertEquals(scanAll(new Lexer(SOURCE)), scanAll(lexer));
+    }
+
+    @Test
+    public void testUtf8() {
+        String src = SOURCE + "var größe = straße_1 // ünïcode comment\n";
+        ByteBuffer bytes = ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(scanAll(new Lexer(src)), scanAll(new Utf8Lexer(bytes)));
+    }
+
+    @Test
+    public void testSupplementaryIdentifiers() {
+        // Letters outside the BMP, which take two chars in UTF-16
+        String src = "var \uD835\uDC65\u0031 = \uD801\uDC28";
+        ByteBuffer bytes = ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8));
+        List<String> expected = List.of("var@0", "\uD835\uDC65\u0031@0", "=@0", "\uD801\uDC28@0");
+        Assert.assertEquals(expected, scanAll(new Lexer(src)));
+        Assert.assertEquals(expected, scanAll(new Utf8Lexer(bytes)));
+        for (int bufferSize = 1; bufferSize <= 6; bufferSize++)
+            Assert.assertEquals(expected, scanAll(new Lexer(new StringReader(src), bufferSize)));
+        // Names are interned straight from the bytes and the gap
+        // buffer, with the same ids as their Strings
+        NameTable names = new NameTable();
+        int g = names.intern("gr\u00F6\u00DFe");
+        int x = names.intern("\uD835\uDC65\u0031");
+        names.intern("");
+        String named = "gr\u00F6\u00DFe \uD835\uDC65\u0031";
+        TokenStream utf8 = TokenStream.lex(new Utf8Lexer(ByteBuffer.wrap(named.getBytes(StandardCharsets.UTF_8))), names);
+        Assert.assertEquals(g, utf8.nameId(0));
+        Assert.assertEquals(x, utf8.nameId(1));
+        IncrementalLexer incremental = new IncrementalLexer("a", names);
+        incremental.edit(0, 1, named);
+        Assert.assertEquals(g, incremental.tokens().nameId(0));
+        Assert.assertEquals(x, incremental.tokens().nameId(1));
+        Assert.assertEquals(4, names.size());
+        // A supplementary character that is not a letter
+        String emoji = "x \uD83D\uDE00";
+        Assert.assertThrows(CompilerException.class, () -> scanAll(new Lexer(emoji)));
+        Assert.assertThrows(CompilerException.class,
+                () -> scanAll(new Utf8Lexer(ByteBuffer.wrap(emoji.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    @Test
+    public void testNonAsciiDigits() {
+        String src = "x \u0663\u0664 1\u0663 \uFF11";
+        ByteBuffer bytes = ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8));
+        for (Lexer lexer: new Lexer[] {new Lexer(src), new Utf8Lexer(bytes)}) {
+            List<String> tokens = new ArrayList<>();
+            for (Token token = lexer.scan(); token != Token.EOF; token = lexer.scan())
+                tokens.add(token.kind + " " + token.str);
+            Assert.assertEquals(List.of("IDENT x", "IDENT \u0663\u0664", "NUM 1", "IDENT \u0663", "IDENT \uFF11"), tokens);
+        }
+    }
+
+    @Test
+    public void testUtf8MappedFile() throws IOException {
+        Path file = Files.createTempFile("ezlang", ".ez");
+        try {
+            Files.writeString(file, SOURCE, StandardCharsets.UTF_8);
+            Assert.assertEquals(scanAll(new Lexer(SOURCE)), scanAll(Utf8Lexer.map(file)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testNumbers() {
+        Lexer lexer = new Lexer("0 42 9223372036854775807 1.5 3.14159 0.1 12345678901234567.125 7.");
+        Token token = lexer.scan();
+        Assert.assertEquals(0, token.num);
+        Assert.assertEquals(42, lexer.scan().num);
+        Assert.assertEquals(Long.MAX_VALUE, lexer.scan().num);
+        for (String expected: new String[] {"1.5", "3.14159", "0.1", "12345678901234567.125", "7."}) {
+            token = lexer.scan();
+            Assert.assertEquals(expected, token.str);
+            Assert.assertEquals(Double.parseDouble(expected), token.fnum, 0.0);
+            Assert.assertEquals(Long.parseLong(expected.substring(0, expected.indexOf('.'))), token.num);
+        }
+        Assert.assertSame(Token.EOF, lexer.scan());
+    }
+
+    @Test(expected = CompilerException.class)
+    public void testNumberOverflow() {
+        new Lexer("9223372036854775808").scan();
+    }
+
+    @Test
+    public void testLargeFractionalNumber() {
+        String src = "99999999999999999999.5 9223372036854775808.0";
+        for (Lexer lexer: new Lexer[] {new Lexer(src), new Utf8Lexer(ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8)))}) {
+            Token token = lexer.scan();
+            Assert.assertEquals("99999999999999999999.5", token.str);
+            Assert.assertEquals(99999999999999999999.5, token.fnum, 0.0);
+            Assert.assertEquals(Long.MAX_VALUE, token.num);
+            token = lexer.scan();
+            Assert.assertEquals(9223372036854775808.0, token.fnum, 0.0);
+            Assert.assertSame(Token.EOF, lexer.scan());
+        }
+        Lexer lexer = new Lexer("x = 99999999999999999999 + 1");
+        Assert.assertEquals("x", lexer.scan().str);
+        Assert.assertEquals("=", lexer.scan().str);
+        Assert.assertThrows(CompilerException.class, lexer::scan);
+    }
+
+    @Test
+    public void testNumberLiterals() {
+        String src = "x = 007 + 1.50 + 0.1";
+        ByteBuffer bytes = ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8));
+        for (TokenStream tokens: new TokenStream[] {TokenStream.lex(new Lexer(src)), TokenStream.lex(new Utf8Lexer(bytes))}) {
+            // The text comes from the source, not the name table
+            Assert.assertEquals(TokenStream.INTEGER, tokens.nameId(2));
+            Assert.assertEquals(TokenStream.FRACTION, tokens.nameId(4));
+            Assert.assertEquals(-1, tokens.names.lookup("007"));
+            Assert.assertEquals(-1, tokens.names.lookup("1.50"));
+            Assert.assertEquals("007", tokens.text(2));
+            Assert.assertEquals(7, tokens.value(2));
+            Assert.assertEquals("1.50", tokens.text(4));
+            Assert.assertEquals(1, tokens.value(4));
+            Assert.assertEquals(1.5, tokens.fvalue(4), 0.0);
+            Token token = tokens.token(6);
+            Assert.assertEquals("0.1", token.str);
+            Assert.assertEquals(0.1, token.fnum, 0.0);
+        }
+        // Without the source the text is formatted from the value
+        TokenStream tokens = TokenStream.lex(new Lexer(new StringReader(src), 4));
+        Assert.assertEquals("7", tokens.text(2));
+        Assert.assertEquals("1.5", tokens.text(4));
+    }
+
+    @Test
+    public void testTokenStream() {
+        TokenStream tokens = TokenStream.lex(new Lexer(SOURCE));
+        Lexer lexer = new Lexer(SOURCE);
+        int i = 0;
+        for (Token token = lexer.scan(); token != Token.EOF; token = lexer.scan(), i++) {
+            Assert.assertEquals(token.kind, tokens.kind(i));
+            Assert.assertEquals(token.str, tokens.text(i));
+            Assert.assertEquals(token.lineNumber, tokens.line(i));
+            Assert.assertEquals(token.num, tokens.value(i));
+            Assert.assertEquals(token.str, SOURCE.substring(tokens.start(i), tokens.start(i) + tokens.length(i)));
+            Assert.assertEquals(token.str, tokens.token(i).str);
+        }
+        Assert.assertEquals(i + 1, tokens.size());
+        Assert.assertEquals(Token.Kind.EOZ, tokens.kind(i));
+        // Identifiers share an id in the name table
+        int first = -1;
+        for (i = 0; i < tokens.size(); i++) {
+            if (tokens.text(i).equals("someLongerIdentifier")) {
+                if (first < 0)
+                    first = tokens.nameId(i);
+                Assert.assertEquals(first, tokens.nameId(i));
+            }
+        }
+        Assert.assertTrue(first >= 0);
+    }
+
+    @Test
+    public void testTokenStreamOffsetsFromReader() {
+        TokenStream expected = TokenStream.lex(new Lexer(SOURCE));
+        TokenStream tokens = TokenStream.lex(new Lexer(new StringReader(SOURCE), 4));
+        Assert.assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            Assert.assertEquals(expected.start(i), tokens.start(i));
+            Assert.assertEquals(expected.length(i), tokens.length(i));
+        }
+    }
+
+    @Test
+    public void testNameTable() {
+        NameTable names = new NameTable(4);
+        char[] buffer = "xx name1 name2 xx".toCharArray();
+        int name1 = names.intern(buffer, 3, 5);
+        int name2 = names.intern(buffer, 9, 5);
+        Assert.assertEquals(0, name1);
+        Assert.assertEquals(1, name2);
+        Assert.assertEquals(name1, names.intern("name1"));
+        Assert.assertEquals("name2", names.name(name2));
+        // Force the table to grow a few times
+        for (int i = 0; i < 1000; i++)
+            Assert.assertEquals(i + 2, names.intern("n" + i));
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = ("n" + i).toCharArray();
+            Assert.assertEquals(i + 2, names.intern(chars, 0, chars.length));
+        }
+        Assert.assertEquals(1002, names.size());
+        Assert.assertEquals(-1, names.lookup("missing"));
+        Assert.assertEquals(name1, names.lookup("name1"));
+    }
+
+    @Test
+    public void testIdentifiersAreCanonical() {
+        Lexer lexer = new Lexer("abc def abc");
+        Token first = lexer.scan();
+        lexer.scan();
+        Assert.assertSame(first.str, lexer.scan().str);
+    }
+
+    @Test
+    public void testKeywords() {
+        String src = "func struct var if else while break continue return new bar fun vars neW ifx";
+        Lexer lexer = new Lexer(src);
+        Token.Kind[] expected = {
+                Token.Kind.FUNC, Token.Kind.STRUCT, Token.Kind.VAR, Token.Kind.IF, Token.Kind.ELSE,
+                Token.Kind.WHILE, Token.Kind.BREAK, Token.Kind.CONTINUE, Token.Kind.RETURN, Token.Kind.NEW,
+                Token.Kind.IDENT, Token.Kind.IDENT, Token.Kind.IDENT, Token.Kind.IDENT, Token.Kind.IDENT,
+                Token.Kind.EOZ
+        };
+        for (Token.Kind kind: expected)
+            Assert.assertEquals(kind, lexer.scan().kind);
+        for (String word: src.split(" "))
+            Assert.assertEquals(Token.newIdent(word, 0).kind, TokenStream.lex(new Lexer(word)).kind(0));
+    }
+
+    @Test
+    public void testPunctuationKinds() {
+        Lexer lexer = new Lexer("{}[](),.%+*/;:?- -> & && | || = == ! != < <= > >=");
+        for (Token token = lexer.scan(); token != Token.EOF; token = lexer.scan()) {
+            Assert.assertTrue(token.kind.isPunct());
+            Assert.assertEquals(token.kind.str, token.str);
+            Assert.assertEquals(token.kind, Token.punctuation(token.str));
+        }
+    }
+
+    private static void assertSameTokens(TokenStream expected, TokenStream tokens) {
+        Assert.assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            Assert.assertEquals(expected.kind(i), tokens.kind(i));
+            Assert.assertEquals(expected.text(i), tokens.text(i));
+            Assert.assertEquals(expected.start(i), tokens.start(i));
+            Assert.assertEquals(expected.length(i), tokens.length(i));
+            Assert.assertEquals(expected.line(i), tokens.line(i));
+            Assert.assertEquals(expected.value(i), tokens.value(i));
+        }
+    }
+
+    @Test
+    public void testIncrementalEdits() {
+        IncrementalLexer lexer = new IncrementalLexer(SOURCE);
+        // Start a comment, then remove it again
+        int offset = SOURCE.indexOf("a >= 10");
+        IncrementalLexer.Delta delta = lexer.edit(offset, 0, "//");
+        Assert.assertEquals(SOURCE.substring(0, offset) + "//" + SOURCE.substring(offset), lexer.source());
+        assertSameTokens(TokenStream.lex(new Lexer(lexer.source())), lexer.tokens());
+        Assert.assertTrue(delta.removed() > delta.inserted());
+        lexer.edit(offset, 2, "");
+        Assert.assertEquals(SOURCE, lexer.source());
+        assertSameTokens(TokenStream.lex(new Lexer(SOURCE)), lexer.tokens());
+        // Renaming an identifier only re-lexes that identifier
+        offset = SOURCE.indexOf("someLongerIdentifier %");
+        delta = lexer.edit(offset + 4, 6, "Shorter");
+        Assert.assertEquals(1, delta.removed());
+        Assert.assertEquals(1, delta.inserted());
+        Assert.assertEquals("someShorterIdentifier", lexer.tokens().text(delta.index()));
+        assertSameTokens(TokenStream.lex(new Lexer(lexer.source())), lexer.tokens());
+    }
+
+    @Test
+    public void testRandomIncrementalEdits() {
+        String[] snippets = {"", " ", "\n", "\r\n", "//", "/", "x", "1", ".5", "-", ">", "=", "var", "{", "}", "#"};
+        Random random = new Random(42);
+        IncrementalLexer lexer = new IncrementalLexer(SOURCE);
+        for (int i = 0; i < 500; i++) {
+            String source = lexer.source();
+            int offset = random.nextInt(source.length() + 1);
+            int deleted = random.nextInt(Math.min(4, source.length() - offset) + 1);
+            String inserted = snippets[random.nextInt(snippets.length)];
+            String edited = source.substring(0, offset) + inserted + source.substring(offset + deleted);
+            TokenStream expected;
+            try {
+                expected = TokenStream.lex(new Lexer(edited));
+            } catch (CompilerException e) {
+                // A rejected edit leaves the source and tokens as they were
+                Assert.assertThrows(CompilerException.class, () -> lexer.edit(offset, deleted, inserted));
+                Assert.assertEquals(source, lexer.source());
+                assertSameTokens(TokenStream.lex(new Lexer(source)), lexer.tokens());
+                continue;
+            }
+            lexer.edit(offset, deleted, inserted);
+            Assert.assertEquals(edited, lexer.source());
+            assertSameTokens(expected, lexer.tokens());
+            int last = expected.size() - 1;
+            Assert.assertEquals(expected.column(last), lexer.tokens().column(last));
+        }
+    }
+
+    @Test
+    public void testParallelLexing() {
+        String src = SOURCE.repeat(20);
+        TokenStream expected = TokenStream.lex(new Lexer(src));
+        for (int chunkSize: new int[] {1, 7, 64, 1000}) {
+            TokenStream tokens = ParallelLexer.lex(src, new NameTable(), ForkJoinPool.commonPool(), chunkSize);
+            assertSameTokens(expected, tokens);
+        }
+        // The serial lexer stops at a NUL char
+        String truncated = src.substring(0, 500) + "\0" + src.substring(500);
+        assertSameTokens(TokenStream.lex(new Lexer(truncated)),
+                ParallelLexer.lex(truncated, new NameTable(), ForkJoinPool.commonPool(), 64));
+    }
+
+    @Test
+    public void testParallelLexingError() {
+        String src = SOURCE.repeat(5) + "var x = #\n" + SOURCE;
+        try {
+            ParallelLexer.lex(src, new NameTable(), ForkJoinPool.commonPool(), 64);
+            Assert.fail();
+        } catch (CompilerException e) {
+            Assert.assertEquals("Unexpected character # at line 35, column 8", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testWhitespaceAndComments() {
+        String[] pieces = {" ", "\t", "\n", "\r\n", "\r", "        ", "// comment\n", "//\n", "x", "/", "1"};
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder sb = new StringBuilder();
+            int count = random.nextInt(60);
+            for (int j = 0; j < count; j++)
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            String src = sb.toString();
+            List<String> expected = scanAll(new Lexer(src));
+            Assert.assertEquals(expected, scanAll(new Lexer(new StringReader(src), 3)));
+            ByteBuffer bytes = ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(expected, scanAll(new Utf8Lexer(bytes)));
+        }
+    }
+
+    @Test
+    public void testPositions() {
+        TokenStream tokens = TokenStream.lex(new Lexer(SOURCE));
+        LineMap lines = tokens.lineMap();
+        String[] sourceLines = SOURCE.split("\n", -1);
+        Assert.assertEquals(sourceLines.length, lines.lineCount());
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            int line = tokens.line(i);
+            int column = tokens.column(i);
+            Assert.assertEquals(line, lines.line(tokens.start(i)));
+            Assert.assertEquals(column, lines.column(tokens.start(i)));
+            Assert.assertTrue(sourceLines[line].startsWith(tokens.text(i), column));
+        }
+        // Columns of UTF-8 sources are counted in bytes
+        String src = "var größe = 1\n  x";
+        TokenStream utf8 = TokenStream.lex(new Utf8Lexer(ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8))));
+        Assert.assertEquals(12, utf8.column(2));
+        Assert.assertEquals(1, utf8.line(4));
+        Assert.assertEquals(2, utf8.column(4));
+        // Lines are not known when reading from a Reader
+        Assert.assertEquals(-1, TokenStream.lex(new Lexer(new StringReader(SOURCE))).column(0));
+    }
+
+    @Test
+    public void testErrorPosition() {
+        try {
+            TokenStream.lex(new Lexer("var x\n  = 1 # 2"));
+            Assert.fail();
+        } catch (CompilerException e) {
+            Assert.assertEquals(1, e.line);
+            Assert.assertEquals(6, e.column);
+            Assert.assertEquals("Unexpected character # at line 1, column 6", e.getMessage());
+        }
+    }
 }
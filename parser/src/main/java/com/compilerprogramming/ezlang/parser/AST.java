@@ -1,5 +1,7 @@
 package com.compilerprogramming.ezlang.parser;
 
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
 import com.compilerprogramming.ezlang.lexer.Token;
 import com.compilerprogramming.ezlang.types.Scope;
 import com.compilerprogramming.ezlang.types.Symbol;
@@ -7,12 +9,19 @@ import com.compilerprogramming.ezlang.types.Type;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * A simple AST definition.
  */
 public abstract class AST {
 
+    /**
+     * Offset in the source of the node's first token, -1 if not
+     * known; the token stream's LineMap resolves it to line and column
+     */
+    public int offset = -1;
+
     protected AST() {
     }
     public abstract void accept(ASTVisitor visitor);
@@ -26,6 +35,16 @@ public abstract class AST {
     public static class Program extends AST {
         public final List<Decl> decls = new ArrayList<>();
         public Scope scope;
+        /**
+         * Resolves the offsets of nodes to lines and columns,
+         * null if not known
+         */
+        public LineMap lineMap;
+        /**
+         * Table that the name ids in the tree are in, the token
+         * stream's table for a parsed program
+         */
+        public NameTable names;
 
         @Override
         public StringBuilder toStr(StringBuilder sb) {
@@ -117,7 +136,12 @@ public abstract class AST {
         public final String name;
         public final VarDecl[] args;
         public final ReturnTypeExpr returnType;
-        public final BlockStmt block;
+        private BlockStmt block;
+        /**
+         * Parses the body on first access, null once
+         * the body has been parsed
+         */
+        private Supplier<BlockStmt> lazyBlock;
         public Scope scope;
         public Symbol symbol;
 
@@ -128,6 +152,28 @@ public abstract class AST {
             this.block = block;
         }
 
+        public FuncDecl(final String name, final VarDecl[] args, final TypeExpr returnType, Supplier<BlockStmt> lazyBlock) {
+            this.name = name;
+            this.args = args;
+            this.returnType = new ReturnTypeExpr(returnType);
+            this.lazyBlock = lazyBlock;
+        }
+
+        /**
+         * Returns the body, parsing it if this is the first access
+         */
+        public BlockStmt block() {
+            if (lazyBlock != null) {
+                block = lazyBlock.get();
+                lazyBlock = null;
+            }
+            return block;
+        }
+
+        public boolean isBodyParsed() {
+            return lazyBlock == null;
+        }
+
         @Override
         public StringBuilder toStr(StringBuilder sb) {
             sb.append("func ").append(name).append("(");
@@ -138,7 +184,7 @@ public abstract class AST {
                 args[i].toStr(sb);
             }
             sb.append(")\n");
-            return block.toStr(sb);
+            return block().toStr(sb);
         }
 
         @Override
@@ -151,7 +197,29 @@ public abstract class AST {
             }
             if (returnType != null)
                 returnType.accept(visitor);
-            block.accept(visitor);
+            block().accept(visitor);
+            visitor.visit(this, false);
+        }
+    }
+
+    /**
+     * Stands in for a declaration that could not be parsed
+     */
+    public static class ErrorDecl extends Decl {
+        public final String message;
+        public ErrorDecl(String message) {
+            this.message = message;
+        }
+        @Override
+        public StringBuilder toStr(StringBuilder sb) {
+            return sb.append("<error>\n");
+        }
+
+        @Override
+        public void accept(ASTVisitor visitor) {
+            visitor = visitor.visit(this, true);
+            if (visitor == null)
+                return;
             visitor.visit(this, false);
         }
     }
@@ -279,8 +347,14 @@ public abstract class AST {
     public static class NameExpr extends Expr {
         public String name;
         public Symbol symbol;
-        public NameExpr(String name) {
+        // Id of the name in the program's name table
+        public final int nameId;
+        // Set by name resolution: the lexical address of variables
+        public int depth = -1;
+        public int slot = -1;
+        public NameExpr(String name, int nameId) {
             this.name = name;
+            this.nameId = nameId;
         }
         @Override
         public StringBuilder toStr(StringBuilder sb) {
@@ -398,9 +472,12 @@ public abstract class AST {
     public static class FieldExpr extends Expr {
         public final Expr object;
         public final String fieldName;
-        public FieldExpr(Expr object, String fieldName) {
+        // Id of the field name in the program's name table
+        public final int fieldNameId;
+        public FieldExpr(Expr object, String fieldName, int fieldNameId) {
             this.object = object;
             this.fieldName = fieldName;
+            this.fieldNameId = fieldNameId;
         }
         @Override
         public StringBuilder toStr(StringBuilder sb) {
@@ -456,8 +533,11 @@ public abstract class AST {
         public final String fieldName;
         public final AST.Expr value;
         public Type objectType;
-        public SetFieldExpr(String fieldName, Expr value) {
+        // Id of the field name in the program's name table
+        public final int fieldNameId;
+        public SetFieldExpr(String fieldName, int fieldNameId, Expr value) {
             this.fieldName = fieldName;
+            this.fieldNameId = fieldNameId;
             this.value = value;
         }
         @Override
@@ -735,6 +815,28 @@ public abstract class AST {
     }
 
 
+    /**
+     * Stands in for a statement that could not be parsed
+     */
+    public static class ErrorStmt extends Stmt {
+        public final String message;
+        public ErrorStmt(String message) {
+            this.message = message;
+        }
+        @Override
+        public StringBuilder toStr(StringBuilder sb) {
+            return sb.append("<error>");
+        }
+
+        @Override
+        public void accept(ASTVisitor visitor) {
+            visitor = visitor.visit(this, true);
+            if (visitor == null)
+                return;
+            visitor.visit(this, false);
+        }
+    }
+
     public static class BlockStmt extends Stmt {
         public final List<Stmt> stmtList = new ArrayList<>();
         public Scope scope;
@@ -0,0 +1,197 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Builds the object AST, recording the offset of each node's
+ * first token in the source
+ */
+class ASTBuilder implements NodeBuilder<AST> {
+    private final TokenStream tokens;
+
+    ASTBuilder(TokenStream tokens) {
+        this.tokens = tokens;
+    }
+
+    private <T extends AST> T at(int start, T node) {
+        node.offset = tokens.start(start);
+        return node;
+    }
+
+    /**
+     * The parser only puts nodes of the right kind in each list
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> cast(List<AST> nodes) {
+        return (List<T>) (List<?>) nodes;
+    }
+
+    private static AST.VarDecl[] varDecls(List<AST> nodes) {
+        return nodes.toArray(new AST.VarDecl[0]);
+    }
+
+    @Override
+    public AST program(List<AST> decls) {
+        AST.Program program = new AST.Program();
+        program.lineMap = tokens.lineMap();
+        program.names = tokens.names;
+        program.decls.addAll(cast(decls));
+        return program;
+    }
+
+    @Override
+    public AST funcDecl(int start, int name, List<AST> params, AST returnType, AST block) {
+        return returnOffset(at(start, new AST.FuncDecl(tokens.text(name), varDecls(params),
+                (AST.TypeExpr) returnType, (AST.BlockStmt) block)), returnType);
+    }
+
+    @Override
+    public AST lazyFuncDecl(int start, int name, List<AST> params, AST returnType, Supplier<AST> block) {
+        return returnOffset(at(start, new AST.FuncDecl(tokens.text(name), varDecls(params),
+                (AST.TypeExpr) returnType, () -> (AST.BlockStmt) block.get())), returnType);
+    }
+
+    private static AST.FuncDecl returnOffset(AST.FuncDecl funcDecl, AST returnType) {
+        if (returnType != null)
+            funcDecl.returnType.offset = returnType.offset;
+        return funcDecl;
+    }
+
+    @Override
+    public AST structDecl(int start, int name, List<AST> fields) {
+        return at(start, new AST.StructDecl(tokens.text(name), varDecls(fields)));
+    }
+
+    @Override
+    public AST varDecl(int start, int name, AST.VarType varType, AST typeExpr) {
+        return at(start, new AST.VarDecl(tokens.text(name), varType, (AST.TypeExpr) typeExpr));
+    }
+
+    @Override
+    public AST errorDecl(int start, String message) {
+        return at(start, new AST.ErrorDecl(message));
+    }
+
+    @Override
+    public AST simpleType(int start, int name, boolean nullable) {
+        String typeName = tokens.text(name);
+        return at(start, nullable ? new AST.NullableSimpleTypeExpr(typeName) : new AST.SimpleTypeExpr(typeName));
+    }
+
+    @Override
+    public AST arrayType(int start, AST elementType, boolean nullable) {
+        var simpleType = (AST.SimpleTypeExpr) elementType;
+        return at(start, nullable ? new AST.NullableArrayTypeExpr(simpleType) : new AST.ArrayTypeExpr(simpleType));
+    }
+
+    @Override
+    public AST varStmt(int start, int name, AST expr) {
+        return at(start, new AST.VarStmt(tokens.text(name), (AST.Expr) expr));
+    }
+
+    @Override
+    public AST varDeclStmt(int start, AST varDecl) {
+        return at(start, new AST.VarDeclStmt((AST.VarDecl) varDecl));
+    }
+
+    @Override
+    public AST ifElse(int start, AST expr, AST ifStmt, AST elseStmt) {
+        return at(start, new AST.IfElseStmt((AST.Expr) expr, (AST.Stmt) ifStmt, (AST.Stmt) elseStmt));
+    }
+
+    @Override
+    public AST whileStmt(int start, AST expr) {
+        return at(start, new AST.WhileStmt((AST.Expr) expr));
+    }
+
+    @Override
+    public AST whileBody(AST whileStmt, AST body) {
+        ((AST.WhileStmt) whileStmt).stmt = (AST.Stmt) body;
+        return whileStmt;
+    }
+
+    @Override
+    public AST breakStmt(int start, AST whileStmt) {
+        return at(start, new AST.BreakStmt((AST.WhileStmt) whileStmt));
+    }
+
+    @Override
+    public AST continueStmt(int start, AST whileStmt) {
+        return at(start, new AST.ContinueStmt((AST.WhileStmt) whileStmt));
+    }
+
+    @Override
+    public AST returnStmt(int start, AST expr) {
+        return at(start, new AST.ReturnStmt((AST.Expr) expr));
+    }
+
+    @Override
+    public AST block(int start, List<AST> stmts) {
+        AST.BlockStmt block = at(start, new AST.BlockStmt());
+        block.stmtList.addAll(cast(stmts));
+        return block;
+    }
+
+    @Override
+    public AST assign(int start, AST lhs, AST rhs) {
+        return at(start, new AST.AssignStmt((AST.Expr) lhs, (AST.Expr) rhs));
+    }
+
+    @Override
+    public AST exprStmt(int start, AST expr) {
+        return at(start, new AST.ExprStmt((AST.Expr) expr));
+    }
+
+    @Override
+    public AST errorStmt(int start, String message) {
+        return at(start, new AST.ErrorStmt(message));
+    }
+
+    @Override
+    public AST binary(int start, int op, AST expr1, AST expr2) {
+        return at(start, new AST.BinaryExpr(tokens.token(op), (AST.Expr) expr1, (AST.Expr) expr2));
+    }
+
+    @Override
+    public AST unary(int start, int op, AST expr) {
+        return at(start, new AST.UnaryExpr(tokens.token(op), (AST.Expr) expr));
+    }
+
+    @Override
+    public AST literal(int token) {
+        return at(token, new AST.LiteralExpr(tokens.token(token)));
+    }
+
+    @Override
+    public AST name(int token) {
+        return at(token, new AST.NameExpr(tokens.text(token), tokens.nameId(token)));
+    }
+
+    @Override
+    public AST arrayIndex(int start, AST array, AST expr) {
+        return at(start, new AST.ArrayIndexExpr((AST.Expr) array, (AST.Expr) expr));
+    }
+
+    @Override
+    public AST field(int start, AST object, int name) {
+        return at(start, new AST.FieldExpr((AST.Expr) object, tokens.text(name), tokens.nameId(name)));
+    }
+
+    @Override
+    public AST call(int start, AST callee, List<AST> args) {
+        return at(start, new AST.CallExpr((AST.Expr) callee, cast(args)));
+    }
+
+    @Override
+    public AST setField(int start, int name, AST value) {
+        return at(start, new AST.SetFieldExpr(tokens.text(name), tokens.nameId(name), (AST.Expr) value));
+    }
+
+    @Override
+    public AST newExpr(int start, AST typeExpr, List<AST> initExprs) {
+        return at(start, new AST.NewExpr((AST.TypeExpr) typeExpr, cast(initExprs)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.common.NameTable;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+import com.compilerprogramming.ezlang.lexer.Lexer;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Caches parsed programs in a directory, keyed by the SHA-256 hash
+ * of the source, so that unchanged sources are neither lexed nor
+ * parsed again. Entries that cannot be read, for example because
+ * they were written by another version, are treated as misses and
+ * overwritten. Sources with syntax errors are not cached.
+ */
+public class ASTCache {
+
+    private final Path directory;
+    private int hits;
+    private int misses;
+
+    public ASTCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public AST.Program parse(String source) {
+        return parse(source, new NameTable());
+    }
+
+    /**
+     * Parses the source, or loads it from the cache, interning
+     * its names in the given table
+     */
+    public AST.Program parse(String source, NameTable names) {
+        char[] chars = source.toCharArray();
+        Path file = directory.resolve(key(source) + ".ezast");
+        AST.Program program = load(file, names);
+        if (program != null) {
+            hits++;
+        }
+        else {
+            misses++;
+            program = new Parser().parse(TokenStream.lex(new Lexer(source), names));
+            store(file, ASTSerializer.serialize(program));
+        }
+        program.lineMap = new LineMap(chars);
+        return program;
+    }
+
+    private static String key(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static AST.Program load(Path file, NameTable names) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            return ASTSerializer.deserialize(bytes, names);
+        } catch (CompilerException e) {
+            // A stale or damaged entry
+            return null;
+        }
+    }
+
+    private void store(Path file, byte[] bytes) {
+        try {
+            Files.createDirectories(directory);
+            // Write to a temporary file first so that concurrent
+            // builds never see a partially written entry
+            Path temp = Files.createTempFile(directory, "ast", ".tmp");
+            try {
+                Files.write(temp, bytes);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int hits() { return hits; }
+    public int misses() { return misses; }
+}
@@ -0,0 +1,620 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.common.NameTable;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+import com.compilerprogramming.ezlang.lexer.Token;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes an AST.Program to a compact binary form and back.
+ *
+ * The format is a header, a table of all the strings in the tree,
+ * followed by the nodes in pre-order. Each node is a varint tag
+ * followed by its offset, its fields and the number of children
+ * in its lists, and then its children; strings are varint indexes
+ * into the string table. A null node is the tag 0. Break and
+ * continue statements refer to the innermost enclosing while.
+ *
+ * Because a node's fields come before its children, both directions
+ * work with an explicit stack rather than recursion, so that trees
+ * of any depth can be serialized.
+ */
+public class ASTSerializer {
+
+    private static final byte[] MAGIC = {'E', 'Z', 'A', 'S', 'T'};
+    /**
+     * Bumped whenever the format or the AST changes
+     */
+    public static final int VERSION = 2;
+
+    private static final int NULL = 0;
+    private static final int FUNC_DECL = 1;
+    private static final int STRUCT_DECL = 2;
+    private static final int VAR_DECL = 3;
+    private static final int ERROR_DECL = 4;
+    private static final int SIMPLE_TYPE = 5;
+    private static final int NULLABLE_SIMPLE_TYPE = 6;
+    private static final int ARRAY_TYPE = 7;
+    private static final int NULLABLE_ARRAY_TYPE = 8;
+    private static final int NAME_EXPR = 9;
+    private static final int BINARY_EXPR = 10;
+    private static final int UNARY_EXPR = 11;
+    private static final int LITERAL_EXPR = 12;
+    private static final int ARRAY_INDEX_EXPR = 13;
+    private static final int FIELD_EXPR = 14;
+    private static final int CALL_EXPR = 15;
+    private static final int SET_FIELD_EXPR = 16;
+    private static final int NEW_EXPR = 17;
+    private static final int IF_ELSE_STMT = 18;
+    private static final int WHILE_STMT = 19;
+    private static final int BREAK_STMT = 20;
+    private static final int CONTINUE_STMT = 21;
+    private static final int RETURN_STMT = 22;
+    private static final int ASSIGN_STMT = 23;
+    private static final int VAR_STMT = 24;
+    private static final int EXPR_STMT = 25;
+    private static final int VAR_DECL_STMT = 26;
+    private static final int BLOCK_STMT = 27;
+    private static final int ERROR_STMT = 28;
+
+    public static byte[] serialize(AST.Program program) {
+        return new Writer().write(program);
+    }
+
+    /**
+     * Reads a program written by serialize, throwing a
+     * CompilerException if the bytes are not a valid program
+     */
+    public static AST.Program deserialize(byte[] bytes) {
+        return deserialize(bytes, new NameTable());
+    }
+
+    /**
+     * Reads a program written by serialize, interning its names
+     * in the given table, which may be shared by all the sources
+     * of a compilation
+     */
+    public static AST.Program deserialize(byte[] bytes, NameTable names) {
+        try {
+            return new Reader(bytes, names).read();
+        } catch (CompilerException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new CompilerException("Malformed serialized AST", e);
+        }
+    }
+
+    /**
+     * A growable byte buffer with varint encoding
+     */
+    private static class Bytes {
+        byte[] buf = new byte[1024];
+        int size;
+
+        void put(int b) {
+            if (size == buf.length)
+                buf = Arrays.copyOf(buf, size * 2);
+            buf[size++] = (byte) b;
+        }
+        void put(byte[] bytes) {
+            for (byte b: bytes)
+                put(b);
+        }
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((int) value);
+        }
+        void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+    }
+
+    private static class Writer {
+        final Bytes nodes = new Bytes();
+        final Map<String, Integer> strings = new HashMap<>();
+        final List<String> stringList = new ArrayList<>();
+        /**
+         * Nodes still to be written, the next one last;
+         * may contain nulls for absent children
+         */
+        final List<AST> stack = new ArrayList<>();
+
+        byte[] write(AST.Program program) {
+            nodes.varint(program.decls.size());
+            push(program.decls);
+            while (!stack.isEmpty())
+                node(stack.remove(stack.size() - 1));
+            Bytes out = new Bytes();
+            out.put(MAGIC);
+            out.varint(VERSION);
+            out.varint(stringList.size());
+            for (String s: stringList) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                out.varint(utf8.length);
+                out.put(utf8);
+            }
+            out.put(Arrays.copyOf(nodes.buf, nodes.size));
+            return Arrays.copyOf(out.buf, out.size);
+        }
+
+        void string(String s) {
+            if (s == null) {
+                nodes.varint(0);
+                return;
+            }
+            Integer id = strings.get(s);
+            if (id == null) {
+                id = stringList.size();
+                strings.put(s, id);
+                stringList.add(s);
+            }
+            nodes.varint(id + 1);
+        }
+
+        void token(Token token) {
+            string(token.str);
+            nodes.varint(token.lineNumber);
+        }
+
+        void header(int tag, AST node) {
+            nodes.varint(tag);
+            nodes.varint(node.offset + 1);
+        }
+
+        /**
+         * Schedules children to be written in the given order
+         */
+        void push(AST... children) {
+            for (int i = children.length - 1; i >= 0; i--)
+                stack.add(children[i]);
+        }
+
+        void push(List<? extends AST> children) {
+            for (int i = children.size() - 1; i >= 0; i--)
+                stack.add(children.get(i));
+        }
+
+        /**
+         * Writes the node's tag and fields, and schedules its children
+         */
+        void node(AST node) {
+            switch (node) {
+                case null -> nodes.varint(NULL);
+                case AST.FuncDecl n -> {
+                    header(FUNC_DECL, n);
+                    string(n.name);
+                    nodes.varint(n.returnType.offset + 1);
+                    nodes.varint(n.args.length);
+                    push(n.returnType.returnType, n.block());
+                    push(n.args);
+                }
+                case AST.StructDecl n -> {
+                    header(STRUCT_DECL, n);
+                    string(n.name);
+                    nodes.varint(n.fields.length);
+                    push(n.fields);
+                }
+                case AST.VarDecl n -> {
+                    header(VAR_DECL, n);
+                    string(n.name);
+                    nodes.varint(n.varType.ordinal());
+                    push(n.typeExpr);
+                }
+                case AST.ErrorDecl n -> {
+                    header(ERROR_DECL, n);
+                    string(n.message);
+                }
+                case AST.NullableSimpleTypeExpr n -> {
+                    header(NULLABLE_SIMPLE_TYPE, n);
+                    string(n.baseTypeName());
+                }
+                case AST.SimpleTypeExpr n -> {
+                    header(SIMPLE_TYPE, n);
+                    string(n.name());
+                }
+                case AST.NullableArrayTypeExpr n -> {
+                    header(NULLABLE_ARRAY_TYPE, n);
+                    push(n.elementType);
+                }
+                case AST.ArrayTypeExpr n -> {
+                    header(ARRAY_TYPE, n);
+                    push(n.elementType);
+                }
+                case AST.NameExpr n -> {
+                    header(NAME_EXPR, n);
+                    string(n.name);
+                }
+                case AST.BinaryExpr n -> {
+                    header(BINARY_EXPR, n);
+                    token(n.op);
+                    push(n.expr1, n.expr2);
+                }
+                case AST.UnaryExpr n -> {
+                    header(UNARY_EXPR, n);
+                    token(n.op);
+                    push(n.expr);
+                }
+                case AST.LiteralExpr n -> {
+                    header(LITERAL_EXPR, n);
+                    token(n.value);
+                    nodes.zigzag(n.value.num);
+                    nodes.varint(Double.doubleToRawLongBits(n.value.fnum));
+                }
+                case AST.ArrayIndexExpr n -> {
+                    header(ARRAY_INDEX_EXPR, n);
+                    push(n.array, n.expr);
+                }
+                case AST.FieldExpr n -> {
+                    header(FIELD_EXPR, n);
+                    string(n.fieldName);
+                    push(n.object);
+                }
+                case AST.CallExpr n -> {
+                    header(CALL_EXPR, n);
+                    nodes.varint(n.args.size());
+                    push(n.args);
+                    push(n.callee);
+                }
+                case AST.SetFieldExpr n -> {
+                    header(SET_FIELD_EXPR, n);
+                    string(n.fieldName);
+                    push(n.value);
+                }
+                case AST.NewExpr n -> {
+                    header(NEW_EXPR, n);
+                    nodes.varint(n.initExprList.size());
+                    push(n.initExprList);
+                    push(n.typeExpr);
+                }
+                case AST.IfElseStmt n -> {
+                    header(IF_ELSE_STMT, n);
+                    push(n.condition, n.ifStmt, n.elseStmt);
+                }
+                case AST.WhileStmt n -> {
+                    header(WHILE_STMT, n);
+                    push(n.condition, n.stmt);
+                }
+                case AST.BreakStmt n -> {
+                    header(BREAK_STMT, n);
+                    nodes.varint(n.whileStmt != null ? 1 : 0);
+                }
+                case AST.ContinueStmt n -> {
+                    header(CONTINUE_STMT, n);
+                    nodes.varint(n.whileStmt != null ? 1 : 0);
+                }
+                case AST.ReturnStmt n -> {
+                    header(RETURN_STMT, n);
+                    push(n.expr);
+                }
+                case AST.AssignStmt n -> {
+                    header(ASSIGN_STMT, n);
+                    push(n.lhs, n.rhs);
+                }
+                case AST.VarStmt n -> {
+                    header(VAR_STMT, n);
+                    string(n.varName);
+                    push(n.expr);
+                }
+                case AST.ExprStmt n -> {
+                    header(EXPR_STMT, n);
+                    push(n.expr);
+                }
+                case AST.VarDeclStmt n -> {
+                    header(VAR_DECL_STMT, n);
+                    push(n.varDecl);
+                }
+                case AST.BlockStmt n -> {
+                    header(BLOCK_STMT, n);
+                    nodes.varint(n.stmtList.size());
+                    push(n.stmtList);
+                }
+                case AST.ErrorStmt n -> {
+                    header(ERROR_STMT, n);
+                    string(n.message);
+                }
+                default -> throw new CompilerException("Cannot serialize " + node.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * A node whose children are still being read
+     */
+    private static class Frame {
+        final int tag;
+        final int offset;
+        String name;
+        Token token;
+        int value;
+        final int childCount;
+        final List<AST> children;
+        /**
+         * A while statement is created once its condition is read,
+         * so that break and continue in its body can refer to it
+         */
+        AST.WhileStmt whileStmt;
+
+        Frame(int tag, int offset, int childCount) {
+            this.tag = tag;
+            this.offset = offset;
+            this.childCount = childCount;
+            this.children = new ArrayList<>(childCount);
+        }
+    }
+
+    private static class Reader {
+        final byte[] buf;
+        int pos;
+        String[] strings;
+        /**
+         * Enclosing while statements, innermost first
+         */
+        final Deque<AST.WhileStmt> whileStmts = new ArrayDeque<>();
+        final List<Frame> frames = new ArrayList<>();
+        final NameTable names;
+
+        Reader(byte[] buf, NameTable names) {
+            this.buf = buf;
+            this.names = names;
+        }
+
+        AST.Program read() {
+            for (byte b: MAGIC) {
+                if (pos >= buf.length || buf[pos++] != b)
+                    throw new CompilerException("Not a serialized AST");
+            }
+            if (varint() != VERSION)
+                throw new CompilerException("Unsupported serialized AST version");
+            strings = new String[count()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = intVarint();
+                if (length > buf.length - pos)
+                    throw new CompilerException("Truncated serialized AST");
+                strings[i] = new String(buf, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+            }
+            AST.Program program = new AST.Program();
+            program.names = names;
+            int count = count();
+            for (int i = 0; i < count; i++)
+                program.decls.add(as(AST.Decl.class, node()));
+            if (pos != buf.length)
+                throw new CompilerException("Trailing data in serialized AST");
+            return program;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= buf.length)
+                    throw new CompilerException("Truncated serialized AST");
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+            throw new CompilerException("Malformed varint in serialized AST");
+        }
+
+        int intVarint() {
+            long value = varint();
+            if (value < 0 || value > Integer.MAX_VALUE)
+                throw new CompilerException("Malformed serialized AST");
+            return (int) value;
+        }
+
+        /**
+         * Reads a number of items, each of which takes at least a byte
+         */
+        int count() {
+            int count = intVarint();
+            if (count > buf.length - pos)
+                throw new CompilerException("Truncated serialized AST");
+            return count;
+        }
+
+        long zigzag() {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String string() {
+            int id = intVarint();
+            if (id > strings.length)
+                throw new CompilerException("Malformed string reference in serialized AST");
+            return id == 0 ? null : strings[id - 1];
+        }
+
+        Token token(Token.Kind kind) {
+            String str = string();
+            int line = intVarint();
+            return new Token(kind != null ? kind : Token.punctuation(str), str, 0, 0, line);
+        }
+
+        static <T> T as(Class<T> type, AST node) {
+            if (node != null && !type.isInstance(node))
+                throw new CompilerException("Unexpected " + node.getClass().getSimpleName() + " in serialized AST");
+            return type.cast(node);
+        }
+
+        /**
+         * Reads a node and all of its descendants
+         */
+        AST node() {
+            int base = frames.size();
+            AST node = start();
+            while (frames.size() > base) {
+                Frame frame = frames.get(frames.size() - 1);
+                if (frame.children.size() < frame.childCount) {
+                    int depth = frames.size();
+                    AST child = start();
+                    // Unless the child has children of its own to read
+                    if (frames.size() == depth)
+                        addChild(frame, child);
+                }
+                else {
+                    frames.remove(frames.size() - 1);
+                    node = finish(frame);
+                    if (frames.size() > base)
+                        addChild(frames.get(frames.size() - 1), node);
+                }
+            }
+            return node;
+        }
+
+        /**
+         * Reads a node's tag and fields. Returns the node if it has
+         * no children, otherwise pushes a frame for it and returns null.
+         */
+        AST start() {
+            int tag = intVarint();
+            if (tag == NULL)
+                return null;
+            int offset = intVarint() - 1;
+            String name = null;
+            Token token = null;
+            int value = 0;
+            int childCount = switch (tag) {
+                case FUNC_DECL -> {
+                    name = string();
+                    value = intVarint() - 1;
+                    yield count() + 2;
+                }
+                case STRUCT_DECL -> {
+                    name = string();
+                    yield count();
+                }
+                case VAR_DECL -> {
+                    name = string();
+                    value = intVarint();
+                    if (value >= AST.VarType.values().length)
+                        throw new CompilerException("Malformed variable kind in serialized AST");
+                    yield 1;
+                }
+                case ERROR_DECL, SIMPLE_TYPE, NULLABLE_SIMPLE_TYPE, NAME_EXPR, ERROR_STMT -> {
+                    name = string();
+                    yield 0;
+                }
+                case ARRAY_TYPE, NULLABLE_ARRAY_TYPE, RETURN_STMT, EXPR_STMT, VAR_DECL_STMT -> 1;
+                case BINARY_EXPR -> {
+                    token = token(null);
+                    yield 2;
+                }
+                case UNARY_EXPR -> {
+                    token = token(null);
+                    yield 1;
+                }
+                case LITERAL_EXPR -> {
+                    Token literal = token(Token.Kind.NUM);
+                    long num = zigzag();
+                    double fnum = Double.longBitsToDouble(varint());
+                    token = Token.newNum(num, fnum, literal.str, literal.lineNumber);
+                    yield 0;
+                }
+                case ARRAY_INDEX_EXPR, WHILE_STMT, ASSIGN_STMT -> 2;
+                case FIELD_EXPR, SET_FIELD_EXPR, VAR_STMT -> {
+                    name = string();
+                    yield 1;
+                }
+                case CALL_EXPR, NEW_EXPR -> count() + 1;
+                case IF_ELSE_STMT -> 3;
+                case BREAK_STMT, CONTINUE_STMT -> {
+                    value = intVarint();
+                    yield 0;
+                }
+                case BLOCK_STMT -> count();
+                default -> throw new CompilerException("Unknown node tag " + tag + " in serialized AST");
+            };
+            Frame frame = new Frame(tag, offset, childCount);
+            frame.name = name;
+            frame.token = token;
+            frame.value = value;
+            if (childCount == 0)
+                return finish(frame);
+            frames.add(frame);
+            return null;
+        }
+
+        void addChild(Frame frame, AST child) {
+            frame.children.add(child);
+            if (frame.tag == WHILE_STMT && frame.children.size() == 1) {
+                frame.whileStmt = new AST.WhileStmt(as(AST.Expr.class, child));
+                whileStmts.push(frame.whileStmt);
+            }
+        }
+
+        static <T> List<T> list(Class<T> type, List<AST> children, int from) {
+            List<T> list = new ArrayList<>(children.size() - from);
+            for (int i = from; i < children.size(); i++)
+                list.add(as(type, children.get(i)));
+            return list;
+        }
+
+        /**
+         * Creates a node from its fields and children
+         */
+        AST finish(Frame frame) {
+            List<AST> c = frame.children;
+            AST node = switch (frame.tag) {
+                case FUNC_DECL -> {
+                    int args = c.size() - 2;
+                    AST.FuncDecl funcDecl = new AST.FuncDecl(frame.name,
+                            list(AST.VarDecl.class, c.subList(0, args), 0).toArray(new AST.VarDecl[0]),
+                            as(AST.TypeExpr.class, c.get(args)),
+                            as(AST.BlockStmt.class, c.get(args + 1)));
+                    funcDecl.returnType.offset = frame.value;
+                    yield funcDecl;
+                }
+                case STRUCT_DECL -> new AST.StructDecl(frame.name, list(AST.VarDecl.class, c, 0).toArray(new AST.VarDecl[0]));
+                case VAR_DECL -> new AST.VarDecl(frame.name, AST.VarType.values()[frame.value], as(AST.TypeExpr.class, c.get(0)));
+                case ERROR_DECL -> new AST.ErrorDecl(frame.name);
+                case SIMPLE_TYPE -> new AST.SimpleTypeExpr(frame.name);
+                case NULLABLE_SIMPLE_TYPE -> new AST.NullableSimpleTypeExpr(frame.name);
+                case ARRAY_TYPE -> new AST.ArrayTypeExpr(as(AST.SimpleTypeExpr.class, c.get(0)));
+                case NULLABLE_ARRAY_TYPE -> new AST.NullableArrayTypeExpr(as(AST.SimpleTypeExpr.class, c.get(0)));
+                case NAME_EXPR -> new AST.NameExpr(frame.name, names.intern(frame.name));
+                case BINARY_EXPR -> new AST.BinaryExpr(frame.token, as(AST.Expr.class, c.get(0)), as(AST.Expr.class, c.get(1)));
+                case UNARY_EXPR -> new AST.UnaryExpr(frame.token, as(AST.Expr.class, c.get(0)));
+                case LITERAL_EXPR -> new AST.LiteralExpr(frame.token);
+                case ARRAY_INDEX_EXPR -> new AST.ArrayIndexExpr(as(AST.Expr.class, c.get(0)), as(AST.Expr.class, c.get(1)));
+                case FIELD_EXPR -> new AST.FieldExpr(as(AST.Expr.class, c.get(0)), frame.name, names.intern(frame.name));
+                case CALL_EXPR -> new AST.CallExpr(as(AST.Expr.class, c.get(0)), list(AST.Expr.class, c, 1));
+                case SET_FIELD_EXPR -> new AST.SetFieldExpr(frame.name, names.intern(frame.name), as(AST.Expr.class, c.get(0)));
+                case NEW_EXPR -> new AST.NewExpr(as(AST.TypeExpr.class, c.get(0)), list(AST.Expr.class, c, 1));
+                case IF_ELSE_STMT -> new AST.IfElseStmt(as(AST.Expr.class, c.get(0)), as(AST.Stmt.class, c.get(1)), as(AST.Stmt.class, c.get(2)));
+                case WHILE_STMT -> {
+                    frame.whileStmt.stmt = as(AST.Stmt.class, c.get(1));
+                    whileStmts.pop();
+                    yield frame.whileStmt;
+                }
+                case BREAK_STMT -> new AST.BreakStmt(frame.value != 0 ? whileStmts.peek() : null);
+                case CONTINUE_STMT -> new AST.ContinueStmt(frame.value != 0 ? whileStmts.peek() : null);
+                case RETURN_STMT -> new AST.ReturnStmt(as(AST.Expr.class, c.get(0)));
+                case ASSIGN_STMT -> new AST.AssignStmt(as(AST.Expr.class, c.get(0)), as(AST.Expr.class, c.get(1)));
+                case VAR_STMT -> new AST.VarStmt(frame.name, as(AST.Expr.class, c.get(0)));
+                case EXPR_STMT -> new AST.ExprStmt(as(AST.Expr.class, c.get(0)));
+                case VAR_DECL_STMT -> new AST.VarDeclStmt(as(AST.VarDecl.class, c.get(0)));
+                case BLOCK_STMT -> {
+                    AST.BlockStmt block = new AST.BlockStmt();
+                    block.stmtList.addAll(list(AST.Stmt.class, c, 0));
+                    yield block;
+                }
+                case ERROR_STMT -> new AST.ErrorStmt(frame.name);
+                default -> throw new CompilerException("Unknown node tag " + frame.tag + " in serialized AST");
+            };
+            node.offset = frame.offset;
+            return node;
+        }
+    }
+}
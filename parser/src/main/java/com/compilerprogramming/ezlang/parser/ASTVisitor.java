@@ -29,4 +29,6 @@ public interface ASTVisitor {
     ASTVisitor visit(AST.VarDeclStmt varDeclStmt, boolean enter);
     ASTVisitor visit(AST.ExprStmt exprStmt, boolean enter);
     ASTVisitor visit(AST.AssignStmt assignStmt, boolean enter);
+    ASTVisitor visit(AST.ErrorDecl errorDecl, boolean enter);
+    ASTVisitor visit(AST.ErrorStmt errorStmt, boolean enter);
 }
@@ -0,0 +1,224 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Walks an AST calling the visitor exactly as AST.accept() does,
+ * but using an explicit stack instead of the Java stack, so that
+ * deeply nested trees such as long chains of binary expressions
+ * can be visited.
+ *
+ * As with accept(), the visitor returned when entering a node
+ * visits the node's children and is called when leaving the node;
+ * if it is null the children are skipped and there is no exit call.
+ *
+ * Several visitors can walk a tree together, each called at every
+ * node in the order given. Each one follows the visitor it returned,
+ * as if it walked the tree alone.
+ *
+ * Given the source's LineMap, a CompilerException without a position
+ * thrown by a visitor is given the position of the node, or of the
+ * closest enclosing node whose offset is known.
+ */
+public class ASTWalker {
+
+    /**
+     * Pending work: a node to enter, or to exit if exit is set
+     */
+    private final List<AST> nodes = new ArrayList<>();
+    private final List<ASTVisitor[]> visitors = new ArrayList<>();
+    private final List<Boolean> exits = new ArrayList<>();
+    private final List<AST> children = new ArrayList<>();
+    private final LineMap lineMap;
+
+    private ASTWalker(LineMap lineMap) {
+        this.lineMap = lineMap;
+    }
+
+    public static void walk(AST root, ASTVisitor visitor) {
+        new ASTWalker(null).run(root, new ASTVisitor[] {visitor});
+    }
+
+    public static void walk(AST root, ASTVisitor... visitors) {
+        new ASTWalker(null).run(root, visitors.clone());
+    }
+
+    public static void walk(AST root, LineMap lineMap, ASTVisitor... visitors) {
+        new ASTWalker(lineMap).run(root, visitors.clone());
+    }
+
+    private void push(AST node, ASTVisitor[] visitor, boolean exit) {
+        nodes.add(node);
+        visitors.add(visitor);
+        exits.add(exit);
+    }
+
+    private void run(AST root, ASTVisitor[] visitor) {
+        push(root, visitor, false);
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            AST node = nodes.remove(top);
+            ASTVisitor[] current = visitors.remove(top);
+            boolean exit = exits.remove(top);
+            ASTVisitor[] childVisitor;
+            try {
+                if (exit) {
+                    for (ASTVisitor v: current)
+                        dispatch(node, v, false);
+                    continue;
+                }
+                childVisitor = enter(node, current);
+            } catch (CompilerException e) {
+                throw e.at(lineMap, offset(node));
+            }
+            if (childVisitor == null)
+                continue;
+            push(node, childVisitor, true);
+            children.clear();
+            children(node, children);
+            // Push in reverse so that children are visited in order
+            for (int i = children.size() - 1; i >= 0; i--)
+                push(children.get(i), childVisitor, false);
+        }
+    }
+
+    /**
+     * Offset of the node, or of the closest enclosing node that has
+     * one; the nodes on the stack to exit are the node's ancestors
+     */
+    private int offset(AST node) {
+        for (int i = nodes.size() - 1; node.offset < 0 && i >= 0; i--) {
+            if (exits.get(i))
+                node = nodes.get(i);
+        }
+        return node.offset;
+    }
+
+    /**
+     * Enters the node with each visitor, returning the visitors for
+     * its children, or null if there are none. The array is shared
+     * while the visitors keep returning themselves.
+     */
+    private static ASTVisitor[] enter(AST node, ASTVisitor[] current) {
+        ASTVisitor[] next = current;
+        int count = 0;
+        for (int i = 0; i < current.length; i++) {
+            ASTVisitor v = dispatch(node, current[i], true);
+            if (v != current[i] && next == current)
+                next = current.clone();
+            if (v != null) {
+                if (next != current)
+                    next[count] = v;
+                count++;
+            }
+        }
+        if (count == 0)
+            return null;
+        return next == current ? current : Arrays.copyOf(next, count);
+    }
+
+    private static ASTVisitor dispatch(AST node, ASTVisitor visitor, boolean enter) {
+        return switch (node) {
+            case AST.Program n -> visitor.visit(n, enter);
+            case AST.FuncDecl n -> visitor.visit(n, enter);
+            case AST.StructDecl n -> visitor.visit(n, enter);
+            case AST.VarDecl n -> visitor.visit(n, enter);
+            case AST.ErrorDecl n -> visitor.visit(n, enter);
+            case AST.NullableSimpleTypeExpr n -> visitor.visit(n, enter);
+            case AST.SimpleTypeExpr n -> visitor.visit(n, enter);
+            case AST.NullableArrayTypeExpr n -> visitor.visit(n, enter);
+            case AST.ArrayTypeExpr n -> visitor.visit(n, enter);
+            case AST.ReturnTypeExpr n -> visitor.visit(n, enter);
+            case AST.NameExpr n -> visitor.visit(n, enter);
+            case AST.BinaryExpr n -> visitor.visit(n, enter);
+            case AST.UnaryExpr n -> visitor.visit(n, enter);
+            case AST.LiteralExpr n -> visitor.visit(n, enter);
+            case AST.ArrayIndexExpr n -> visitor.visit(n, enter);
+            case AST.FieldExpr n -> visitor.visit(n, enter);
+            case AST.CallExpr n -> visitor.visit(n, enter);
+            case AST.SetFieldExpr n -> visitor.visit(n, enter);
+            case AST.NewExpr n -> visitor.visit(n, enter);
+            case AST.IfElseStmt n -> visitor.visit(n, enter);
+            case AST.WhileStmt n -> visitor.visit(n, enter);
+            case AST.BreakStmt n -> visitor.visit(n, enter);
+            case AST.ContinueStmt n -> visitor.visit(n, enter);
+            case AST.ReturnStmt n -> visitor.visit(n, enter);
+            case AST.AssignStmt n -> visitor.visit(n, enter);
+            case AST.VarStmt n -> visitor.visit(n, enter);
+            case AST.ExprStmt n -> visitor.visit(n, enter);
+            case AST.VarDeclStmt n -> visitor.visit(n, enter);
+            case AST.BlockStmt n -> visitor.visit(n, enter);
+            case AST.ErrorStmt n -> visitor.visit(n, enter);
+            default -> throw new IllegalStateException("Unexpected node " + node.getClass().getSimpleName());
+        };
+    }
+
+    /**
+     * Adds the children of the node in the order accept() visits them
+     */
+    static void children(AST node, List<AST> out) {
+        switch (node) {
+            case AST.Program n -> out.addAll(n.decls);
+            case AST.FuncDecl n -> {
+                out.addAll(List.of(n.args));
+                if (n.returnType != null)
+                    out.add(n.returnType);
+                out.add(n.block());
+            }
+            case AST.StructDecl n -> out.addAll(List.of(n.fields));
+            case AST.VarDecl n -> out.add(n.typeExpr);
+            case AST.ArrayTypeExpr n -> out.add(n.elementType);
+            case AST.ReturnTypeExpr n -> {
+                if (n.returnType != null)
+                    out.add(n.returnType);
+            }
+            case AST.BinaryExpr n -> {
+                out.add(n.expr1);
+                out.add(n.expr2);
+            }
+            case AST.UnaryExpr n -> out.add(n.expr);
+            case AST.ArrayIndexExpr n -> {
+                out.add(n.array);
+                out.add(n.expr);
+            }
+            case AST.FieldExpr n -> out.add(n.object);
+            case AST.CallExpr n -> {
+                out.add(n.callee);
+                out.addAll(n.args);
+            }
+            case AST.SetFieldExpr n -> out.add(n.value);
+            case AST.NewExpr n -> {
+                out.add(n.typeExpr);
+                out.addAll(n.initExprList);
+            }
+            case AST.IfElseStmt n -> {
+                out.add(n.condition);
+                out.add(n.ifStmt);
+                if (n.elseStmt != null)
+                    out.add(n.elseStmt);
+            }
+            case AST.WhileStmt n -> {
+                out.add(n.condition);
+                out.add(n.stmt);
+            }
+            case AST.ReturnStmt n -> {
+                if (n.expr != null)
+                    out.add(n.expr);
+            }
+            case AST.AssignStmt n -> {
+                out.add(n.lhs);
+                out.add(n.rhs);
+            }
+            case AST.VarStmt n -> out.add(n.expr);
+            case AST.ExprStmt n -> out.add(n.expr);
+            case AST.VarDeclStmt n -> out.add(n.varDecl);
+            case AST.BlockStmt n -> out.addAll(n.stmtList);
+            default -> {}
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.common.NameTable;
+import com.compilerprogramming.ezlang.lexer.Token;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact form of the AST where nodes are ints indexing parallel
+ * arrays, rather than objects with lists of children. Each node has
+ * a kind, its first child, its next sibling, the index of its first
+ * token in the token stream, a kind specific datum and a type id.
+ *
+ * The parser writes nodes straight into the arrays as it reduces
+ * them, so children are mostly numbered before their parent and
+ * the root comes last. A flat form converted from an AST is numbered in
+ * pre-order instead; passes should follow the child links rather
+ * than depend on either order.
+ *
+ * The Node view gives passes an object-like API over the arrays,
+ * so that they can be ported from AST one at a time.
+ */
+public class FlatAST {
+
+    public enum Kind {
+        PROGRAM,
+        FUNC_DECL,
+        STRUCT_DECL,
+        FIELD_DECL,
+        PARAM_DECL,
+        VAR_DECL,
+        ERROR_DECL,
+        SIMPLE_TYPE,
+        NULLABLE_SIMPLE_TYPE,
+        ARRAY_TYPE,
+        NULLABLE_ARRAY_TYPE,
+        RETURN_TYPE,
+        NAME,
+        BINARY,
+        UNARY,
+        LITERAL,
+        ARRAY_INDEX,
+        FIELD,
+        CALL,
+        SET_FIELD,
+        NEW,
+        IF_ELSE,
+        WHILE,
+        BREAK,
+        CONTINUE,
+        RETURN,
+        ASSIGN,
+        VAR_STMT,
+        EXPR_STMT,
+        VAR_DECL_STMT,
+        BLOCK,
+        ERROR_STMT
+    }
+
+    public static final int NONE = -1;
+    private static final Kind[] KINDS = Kind.values();
+    private static final Token.Kind[] TOKEN_KINDS = Token.Kind.values();
+
+    private byte[] kinds;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] tokenIndex;
+    /**
+     * Name id in the names table for named nodes, the operator's
+     * token kind for unary and binary expressions, NONE otherwise
+     */
+    private int[] data;
+    private int[] typeIds;
+    private int size;
+    private int root = NONE;
+
+    public final TokenStream tokens;
+    /**
+     * Names of the named nodes. The parser uses the token stream's
+     * table as is, as all names are in it already. A flat form built
+     * from an AST gets a copy, so that names which are not in the
+     * tokens, such as error messages, do not change the token stream.
+     */
+    public final NameTable names;
+
+    FlatAST(TokenStream tokens, NameTable names, int capacity) {
+        this.tokens = tokens;
+        this.names = names;
+        capacity = Math.max(capacity, 16);
+        kinds = new byte[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        tokenIndex = new int[capacity];
+        data = new int[capacity];
+        typeIds = new int[capacity];
+    }
+
+    /**
+     * Adds a node whose children are the given node and its siblings
+     */
+    int add(Kind kind, int token, int datum, int firstChild) {
+        int id = add(kind, token, datum);
+        this.firstChild[id] = firstChild;
+        root = id;
+        return id;
+    }
+
+    /**
+     * Makes next the sibling that follows node
+     */
+    void link(int node, int next) {
+        nextSibling[node] = next;
+    }
+
+    private int add(Kind kind, int token, int datum) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            tokenIndex = Arrays.copyOf(tokenIndex, capacity);
+            data = Arrays.copyOf(data, capacity);
+            typeIds = Arrays.copyOf(typeIds, capacity);
+        }
+        int id = size++;
+        kinds[id] = (byte) kind.ordinal();
+        firstChild[id] = NONE;
+        nextSibling[id] = NONE;
+        tokenIndex[id] = token;
+        data[id] = datum;
+        typeIds[id] = NONE;
+        return id;
+    }
+
+    /**
+     * Parses the tokens straight into the flat form, without
+     * building an AST. The first syntax error ends the parse.
+     */
+    public static FlatAST parse(TokenStream tokens) {
+        FlatBuilder builder = new FlatBuilder(tokens);
+        new NodeParser<>(builder, tokens, false, null).parseProgram();
+        return builder.ast;
+    }
+
+    /**
+     * Builds the flat form of a program parsed from the given tokens.
+     * The tree is walked with an explicit stack, so any depth of
+     * nesting can be converted.
+     */
+    public static FlatAST build(AST.Program program, TokenStream tokens) {
+        FlatAST flat = new FlatAST(tokens, tokens.names.copy(), tokens.size());
+        flat.root = 0;
+        List<AST> nodes = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        List<AST> children = new ArrayList<>();
+        // Last child added to each node, so that we can append siblings
+        int[] lastChild = new int[16];
+        nodes.add(program);
+        parents.add(NONE);
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            AST node = nodes.remove(top);
+            int parent = parents.remove(top);
+            int id = flat.add(kind(node), flat.tokenAt(node.offset), flat.datum(node));
+            if (id == lastChild.length)
+                lastChild = Arrays.copyOf(lastChild, id * 2);
+            lastChild[id] = NONE;
+            if (parent != NONE) {
+                if (lastChild[parent] == NONE)
+                    flat.firstChild[parent] = id;
+                else
+                    flat.nextSibling[lastChild[parent]] = id;
+                lastChild[parent] = id;
+            }
+            children.clear();
+            ASTWalker.children(node, children);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                nodes.add(children.get(i));
+                parents.add(id);
+            }
+        }
+        return flat;
+    }
+
+    private int tokenAt(int offset) {
+        return offset < 0 ? NONE : tokens.indexBefore(offset + 1);
+    }
+
+    private int name(String name) {
+        return name == null ? NONE : names.intern(name);
+    }
+
+    private int datum(AST node) {
+        return switch (node) {
+            case AST.FuncDecl n -> name(n.name);
+            case AST.StructDecl n -> name(n.name);
+            case AST.VarDecl n -> name(n.name);
+            case AST.ErrorDecl n -> name(n.message);
+            case AST.NullableSimpleTypeExpr n -> name(n.baseTypeName());
+            case AST.SimpleTypeExpr n -> name(n.name());
+            case AST.NameExpr n -> name(n.name);
+            case AST.FieldExpr n -> name(n.fieldName);
+            case AST.SetFieldExpr n -> name(n.fieldName);
+            case AST.VarStmt n -> name(n.varName);
+            case AST.ErrorStmt n -> name(n.message);
+            case AST.BinaryExpr n -> n.op.kind.ordinal();
+            case AST.UnaryExpr n -> n.op.kind.ordinal();
+            default -> NONE;
+        };
+    }
+
+    private static Kind kind(AST node) {
+        return switch (node) {
+            case AST.Program n -> Kind.PROGRAM;
+            case AST.FuncDecl n -> Kind.FUNC_DECL;
+            case AST.StructDecl n -> Kind.STRUCT_DECL;
+            case AST.VarDecl n -> switch (n.varType) {
+                case STRUCT_FIELD -> Kind.FIELD_DECL;
+                case FUNCTION_PARAMETER -> Kind.PARAM_DECL;
+                case VARIABLE -> Kind.VAR_DECL;
+            };
+            case AST.ErrorDecl n -> Kind.ERROR_DECL;
+            case AST.NullableSimpleTypeExpr n -> Kind.NULLABLE_SIMPLE_TYPE;
+            case AST.SimpleTypeExpr n -> Kind.SIMPLE_TYPE;
+            case AST.NullableArrayTypeExpr n -> Kind.NULLABLE_ARRAY_TYPE;
+            case AST.ArrayTypeExpr n -> Kind.ARRAY_TYPE;
+            case AST.ReturnTypeExpr n -> Kind.RETURN_TYPE;
+            case AST.NameExpr n -> Kind.NAME;
+            case AST.BinaryExpr n -> Kind.BINARY;
+            case AST.UnaryExpr n -> Kind.UNARY;
+            case AST.LiteralExpr n -> Kind.LITERAL;
+            case AST.ArrayIndexExpr n -> Kind.ARRAY_INDEX;
+            case AST.FieldExpr n -> Kind.FIELD;
+            case AST.CallExpr n -> Kind.CALL;
+            case AST.SetFieldExpr n -> Kind.SET_FIELD;
+            case AST.NewExpr n -> Kind.NEW;
+            case AST.IfElseStmt n -> Kind.IF_ELSE;
+            case AST.WhileStmt n -> Kind.WHILE;
+            case AST.BreakStmt n -> Kind.BREAK;
+            case AST.ContinueStmt n -> Kind.CONTINUE;
+            case AST.ReturnStmt n -> Kind.RETURN;
+            case AST.AssignStmt n -> Kind.ASSIGN;
+            case AST.VarStmt n -> Kind.VAR_STMT;
+            case AST.ExprStmt n -> Kind.EXPR_STMT;
+            case AST.VarDeclStmt n -> Kind.VAR_DECL_STMT;
+            case AST.BlockStmt n -> Kind.BLOCK;
+            case AST.ErrorStmt n -> Kind.ERROR_STMT;
+            default -> throw new IllegalStateException("Unexpected node " + node.getClass().getSimpleName());
+        };
+    }
+
+    public int size() { return size; }
+    public Kind kind(int node) { return KINDS[kinds[node]]; }
+    public int firstChild(int node) { return firstChild[node]; }
+    public int nextSibling(int node) { return nextSibling[node]; }
+    public int token(int node) { return tokenIndex[node]; }
+    public int type(int node) { return typeIds[node]; }
+    public void setType(int node, int typeId) { typeIds[node] = typeId; }
+
+    /**
+     * Returns the name of a named node, null for other nodes
+     */
+    public String name(int node) {
+        Kind kind = kind(node);
+        if (kind == Kind.BINARY || kind == Kind.UNARY || data[node] == NONE)
+            return null;
+        return names.name(data[node]);
+    }
+
+    /**
+     * Returns the operator of a unary or binary expression
+     */
+    public Token.Kind operator(int node) {
+        return TOKEN_KINDS[data[node]];
+    }
+
+    /**
+     * Returns the offset of the node in the source, -1 if not known
+     */
+    public int offset(int node) {
+        return tokenIndex[node] == NONE ? -1 : tokens.start(tokenIndex[node]);
+    }
+
+    public Node root() {
+        return new Node(this, root);
+    }
+
+    /**
+     * An object view of a node
+     */
+    public record Node(FlatAST ast, int id) {
+        public Kind kind() { return ast.kind(id); }
+        public String name() { return ast.name(id); }
+        public Token.Kind operator() { return ast.operator(id); }
+        public int offset() { return ast.offset(id); }
+        public int type() { return ast.type(id); }
+        public void setType(int typeId) { ast.setType(id, typeId); }
+        /**
+         * Value of a literal
+         */
+        public long value() { return ast.tokens.value(ast.token(id)); }
+        public String text() { return ast.tokens.text(ast.token(id)); }
+        public Node firstChild() {
+            int child = ast.firstChild(id);
+            return child == NONE ? null : new Node(ast, child);
+        }
+        public Node nextSibling() {
+            int sibling = ast.nextSibling(id);
+            return sibling == NONE ? null : new Node(ast, sibling);
+        }
+        public List<Node> children() {
+            List<Node> list = new ArrayList<>();
+            for (int child = ast.firstChild(id); child != NONE; child = ast.nextSibling(child))
+                list.add(new Node(ast, child));
+            return list;
+        }
+        public Node child(int n) {
+            int child = ast.firstChild(id);
+            for (int i = 0; i < n && child != NONE; i++)
+                child = ast.nextSibling(child);
+            return child == NONE ? null : new Node(ast, child);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static com.compilerprogramming.ezlang.parser.FlatAST.Kind;
+import static com.compilerprogramming.ezlang.parser.FlatAST.NONE;
+
+/**
+ * Writes nodes straight into a FlatAST. A node is its id in the
+ * arrays; children are linked into a sibling list before their
+ * parent is added on top of them, except for the body of a while
+ * statement, which is linked in after the statement is added.
+ */
+class FlatBuilder implements NodeBuilder<Integer> {
+    private final TokenStream tokens;
+    final FlatAST ast;
+
+    FlatBuilder(TokenStream tokens) {
+        this.tokens = tokens;
+        this.ast = new FlatAST(tokens, tokens.names, tokens.size());
+    }
+
+    private static int id(Integer node) {
+        return node == null ? NONE : node;
+    }
+
+    /**
+     * Links the nodes as siblings, returning the first or NONE
+     */
+    private int link(List<Integer> nodes) {
+        for (int i = 1; i < nodes.size(); i++)
+            ast.link(nodes.get(i - 1), nodes.get(i));
+        return nodes.isEmpty() ? NONE : nodes.get(0);
+    }
+
+    /**
+     * Links the node and the nodes that follow it as siblings
+     */
+    private int link(int first, List<Integer> rest) {
+        if (!rest.isEmpty())
+            ast.link(first, link(rest));
+        return first;
+    }
+
+    private int link(int first, int next) {
+        if (next != NONE)
+            ast.link(first, next);
+        return first;
+    }
+
+    private int nameId(int token) {
+        return tokens.nameId(token);
+    }
+
+    @Override
+    public Integer program(List<Integer> decls) {
+        return ast.add(Kind.PROGRAM, NONE, NONE, link(decls));
+    }
+
+    @Override
+    public Integer funcDecl(int start, int name, List<Integer> params, Integer returnType, Integer block) {
+        int returnStart = returnType == null ? NONE : ast.token(returnType);
+        List<Integer> children = new ArrayList<>(params);
+        children.add(ast.add(Kind.RETURN_TYPE, returnStart, NONE, id(returnType)));
+        children.add(block);
+        return ast.add(Kind.FUNC_DECL, start, nameId(name), link(children));
+    }
+
+    @Override
+    public Integer lazyFuncDecl(int start, int name, List<Integer> params, Integer returnType, Supplier<Integer> block) {
+        throw new UnsupportedOperationException("A flat AST cannot have lazy function bodies");
+    }
+
+    @Override
+    public Integer structDecl(int start, int name, List<Integer> fields) {
+        return ast.add(Kind.STRUCT_DECL, start, nameId(name), link(fields));
+    }
+
+    @Override
+    public Integer varDecl(int start, int name, AST.VarType varType, Integer typeExpr) {
+        Kind kind = switch (varType) {
+            case STRUCT_FIELD -> Kind.FIELD_DECL;
+            case FUNCTION_PARAMETER -> Kind.PARAM_DECL;
+            case VARIABLE -> Kind.VAR_DECL;
+        };
+        return ast.add(kind, start, nameId(name), typeExpr);
+    }
+
+    @Override
+    public Integer errorDecl(int start, String message) {
+        return ast.add(Kind.ERROR_DECL, start, ast.names.intern(message), NONE);
+    }
+
+    @Override
+    public Integer simpleType(int start, int name, boolean nullable) {
+        return ast.add(nullable ? Kind.NULLABLE_SIMPLE_TYPE : Kind.SIMPLE_TYPE, start, nameId(name), NONE);
+    }
+
+    @Override
+    public Integer arrayType(int start, Integer elementType, boolean nullable) {
+        return ast.add(nullable ? Kind.NULLABLE_ARRAY_TYPE : Kind.ARRAY_TYPE, start, NONE, elementType);
+    }
+
+    @Override
+    public Integer varStmt(int start, int name, Integer expr) {
+        return ast.add(Kind.VAR_STMT, start, nameId(name), expr);
+    }
+
+    @Override
+    public Integer varDeclStmt(int start, Integer varDecl) {
+        return ast.add(Kind.VAR_DECL_STMT, start, NONE, varDecl);
+    }
+
+    @Override
+    public Integer ifElse(int start, Integer expr, Integer ifStmt, Integer elseStmt) {
+        link(expr, link(ifStmt, id(elseStmt)));
+        return ast.add(Kind.IF_ELSE, start, NONE, expr);
+    }
+
+    @Override
+    public Integer whileStmt(int start, Integer expr) {
+        return ast.add(Kind.WHILE, start, NONE, expr);
+    }
+
+    @Override
+    public Integer whileBody(Integer whileStmt, Integer body) {
+        link(ast.firstChild(whileStmt), body);
+        return whileStmt;
+    }
+
+    @Override
+    public Integer breakStmt(int start, Integer whileStmt) {
+        return ast.add(Kind.BREAK, start, NONE, NONE);
+    }
+
+    @Override
+    public Integer continueStmt(int start, Integer whileStmt) {
+        return ast.add(Kind.CONTINUE, start, NONE, NONE);
+    }
+
+    @Override
+    public Integer returnStmt(int start, Integer expr) {
+        return ast.add(Kind.RETURN, start, NONE, id(expr));
+    }
+
+    @Override
+    public Integer block(int start, List<Integer> stmts) {
+        return ast.add(Kind.BLOCK, start, NONE, link(stmts));
+    }
+
+    @Override
+    public Integer assign(int start, Integer lhs, Integer rhs) {
+        return ast.add(Kind.ASSIGN, start, NONE, link(lhs, rhs));
+    }
+
+    @Override
+    public Integer exprStmt(int start, Integer expr) {
+        return ast.add(Kind.EXPR_STMT, start, NONE, expr);
+    }
+
+    @Override
+    public Integer errorStmt(int start, String message) {
+        return ast.add(Kind.ERROR_STMT, start, ast.names.intern(message), NONE);
+    }
+
+    @Override
+    public Integer binary(int start, int op, Integer expr1, Integer expr2) {
+        return ast.add(Kind.BINARY, start, tokens.kind(op).ordinal(), link(expr1, expr2));
+    }
+
+    @Override
+    public Integer unary(int start, int op, Integer expr) {
+        return ast.add(Kind.UNARY, start, tokens.kind(op).ordinal(), expr);
+    }
+
+    @Override
+    public Integer literal(int token) {
+        return ast.add(Kind.LITERAL, token, NONE, NONE);
+    }
+
+    @Override
+    public Integer name(int token) {
+        return ast.add(Kind.NAME, token, nameId(token), NONE);
+    }
+
+    @Override
+    public Integer arrayIndex(int start, Integer array, Integer expr) {
+        return ast.add(Kind.ARRAY_INDEX, start, NONE, link(array, expr));
+    }
+
+    @Override
+    public Integer field(int start, Integer object, int name) {
+        return ast.add(Kind.FIELD, start, nameId(name), object);
+    }
+
+    @Override
+    public Integer call(int start, Integer callee, List<Integer> args) {
+        return ast.add(Kind.CALL, start, NONE, link(callee, args));
+    }
+
+    @Override
+    public Integer setField(int start, int name, Integer value) {
+        return ast.add(Kind.SET_FIELD, start, nameId(name), value);
+    }
+
+    @Override
+    public Integer newExpr(int start, Integer typeExpr, List<Integer> initExprs) {
+        return ast.add(Kind.NEW, start, NONE, link(typeExpr, initExprs));
+    }
+}
@@ -0,0 +1,53 @@
+package com.compilerprogramming.ezlang.parser;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Makes the nodes that the parser reduces, so that the same grammar
+ * can build the object AST or the FlatAST. Names, operators and
+ * literals are passed as the index of their token, and each node
+ * gets the index of its first token as start. Absent children
+ * are null.
+ */
+interface NodeBuilder<N> {
+    N program(List<N> decls);
+    N funcDecl(int start, int name, List<N> params, N returnType, N block);
+    /**
+     * A function whose body is parsed when first accessed
+     */
+    N lazyFuncDecl(int start, int name, List<N> params, N returnType, Supplier<N> block);
+    N structDecl(int start, int name, List<N> fields);
+    N varDecl(int start, int name, AST.VarType varType, N typeExpr);
+    N errorDecl(int start, String message);
+
+    N simpleType(int start, int name, boolean nullable);
+    N arrayType(int start, N elementType, boolean nullable);
+
+    N varStmt(int start, int name, N expr);
+    N varDeclStmt(int start, N varDecl);
+    N ifElse(int start, N expr, N ifStmt, N elseStmt);
+    /**
+     * A while statement is made before its body, so that the
+     * break and continue statements in the body can refer to it
+     */
+    N whileStmt(int start, N expr);
+    N whileBody(N whileStmt, N body);
+    N breakStmt(int start, N whileStmt);
+    N continueStmt(int start, N whileStmt);
+    N returnStmt(int start, N expr);
+    N block(int start, List<N> stmts);
+    N assign(int start, N lhs, N rhs);
+    N exprStmt(int start, N expr);
+    N errorStmt(int start, String message);
+
+    N binary(int start, int op, N expr1, N expr2);
+    N unary(int start, int op, N expr);
+    N literal(int token);
+    N name(int token);
+    N arrayIndex(int start, N array, N expr);
+    N field(int start, N object, int name);
+    N call(int start, N callee, List<N> args);
+    N setField(int start, int name, N value);
+    N newExpr(int start, N typeExpr, List<N> initExprs);
+}
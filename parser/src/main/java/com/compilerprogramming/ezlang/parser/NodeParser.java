@@ -0,0 +1,579 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+import com.compilerprogramming.ezlang.lexer.Token;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The recursive descent parser, reducing the tokens to nodes
+ * made by a NodeBuilder. Parser uses it to build the object AST,
+ * FlatAST to build the flat form.
+ */
+class NodeParser<N> {
+    private final NodeBuilder<N> builder;
+    private final TokenStream tokens;
+    /**
+     * If set, function bodies are only brace matched,
+     * and parsed when first accessed
+     */
+    private final boolean lazyBodies;
+    /**
+     * Syntax errors found so far when recovering from
+     * errors, null if the first error ends the parse
+     */
+    private final List<CompilerException> diagnostics;
+    /**
+     * Index of the current token in the token stream
+     */
+    private int index;
+    private N currentWhile;
+
+    NodeParser(NodeBuilder<N> builder, TokenStream tokens, boolean lazyBodies, List<CompilerException> diagnostics) {
+        this.builder = builder;
+        this.tokens = tokens;
+        this.lazyBodies = lazyBodies;
+        this.diagnostics = diagnostics;
+    }
+
+    TokenStream tokens() {
+        return tokens;
+    }
+
+    int index() {
+        return index;
+    }
+
+    private void nextToken() {
+        // The last token is EOZ, and we stay on it
+        if (index < tokens.size() - 1)
+            index++;
+    }
+
+    private Token.Kind kind() {
+        return tokens.kind(index);
+    }
+
+    private String str() {
+        return tokens.text(index);
+    }
+
+    private void error(String errorMessage) {
+        throw syntaxError(errorMessage);
+    }
+
+    private CompilerException syntaxError(String errorMessage) {
+        int line = tokens.line(index);
+        int column = tokens.column(index);
+        String position = column >= 0 ? "Line " + line + ", column " + column : "Line " + line;
+        return new CompilerException(position + ": " + errorMessage + " got " + str(), line, column);
+    }
+
+    /**
+     * Reports a block missing its '}' at the end of the source, the
+     * same error as when skipping a lazy body. When recovering, the
+     * enclosing blocks end at the same place, so it is recorded once.
+     */
+    private void missingBrace() {
+        CompilerException e = syntaxError("Syntax error: expected }");
+        if (diagnostics == null)
+            throw e;
+        if (diagnostics.isEmpty() || !diagnostics.get(diagnostics.size() - 1).getMessage().equals(e.getMessage()))
+            diagnostics.add(e);
+    }
+
+    private void matchPunctuation(Token.Kind value) {
+        if (kind() == value) {
+            nextToken();
+        } else {
+            error("Syntax error: expected " + value.str);
+        }
+    }
+
+    private boolean testPunctuation(Token.Kind value) {
+        if (kind() == value) {
+            nextToken();
+            return true;
+        }
+        return false;
+    }
+
+    private void matchKeyword(Token.Kind keyword) {
+        if (kind() == keyword) {
+            nextToken();
+        } else {
+            error("syntax error, expected " + keyword.str);
+        }
+    }
+
+    private boolean isToken(Token.Kind value) {
+        return kind() == value;
+    }
+
+    /**
+     * Checks whether the token after the current one is of given kind
+     */
+    private boolean isNextToken(Token.Kind value) {
+        int next = index + 1;
+        return next < tokens.size() && tokens.kind(next) == value;
+    }
+
+    /**
+     * Returns the index of the current token, which must be a name
+     */
+    private int name(String errorMessage) {
+        if (kind() != Token.Kind.IDENT)
+            error(errorMessage);
+        int name = index;
+        nextToken();
+        return name;
+    }
+
+    N parseProgram() {
+        index = 0;
+        List<N> decls = new ArrayList<>();
+        while (kind() == Token.Kind.IDENT || kind().isKeyword()
+                || (diagnostics != null && kind() != Token.Kind.EOZ)) {
+            int start = index;
+            try {
+                decls.add(parseDeclaration());
+            } catch (CompilerException e) {
+                if (diagnostics == null)
+                    throw e;
+                diagnostics.add(e);
+                decls.add(builder.errorDecl(start, e.getMessage()));
+                skipToDeclaration(start);
+            }
+        }
+        return builder.program(decls);
+    }
+
+    /**
+     * Skips to the next func or struct keyword after
+     * a syntax error in a declaration
+     */
+    private void skipToDeclaration(int start) {
+        if (index == start)
+            nextToken();
+        while (kind() != Token.Kind.EOZ && kind() != Token.Kind.FUNC && kind() != Token.Kind.STRUCT)
+            nextToken();
+    }
+
+    /**
+     * Skips past the next ';', or to the '}' that ends the enclosing
+     * block or to a func or struct keyword, after a syntax error in
+     * a statement. As semicolons are optional, we also stop at a
+     * keyword that starts a statement. Blocks nested in the skipped
+     * tokens are skipped whole.
+     */
+    private void skipToStatement(int start) {
+        int depth = 0;
+        while (true) {
+            switch (kind()) {
+                case EOZ, FUNC, STRUCT -> {
+                    return;
+                }
+                case VAR, IF, WHILE, BREAK, CONTINUE, RETURN -> {
+                    if (depth == 0 && index != start)
+                        return;
+                }
+                case SEMICOLON -> {
+                    if (depth == 0) {
+                        nextToken();
+                        return;
+                    }
+                }
+                case LBRACE -> depth++;
+                case RBRACE -> {
+                    if (depth == 0)
+                        return;
+                    depth--;
+                }
+                default -> {}
+            }
+            nextToken();
+        }
+    }
+
+    /**
+     * Parses the top level declaration starting at given index
+     */
+    N parseDeclaration(int start) {
+        index = start;
+        return parseDeclaration();
+    }
+
+    private N parseDeclaration() {
+        return switch (kind()) {
+            case FUNC -> parseFunction();
+            case STRUCT -> parseStructDeclaration();
+            default -> {
+                error("Syntax error: Expected the keyword 'func' or 'struct' at start of a declaration");
+                yield null;
+            }
+        };
+    }
+
+    private N parseFunction() {
+        int start = index;
+        matchKeyword(Token.Kind.FUNC);
+        int functionName = name("Syntax error: Function name expected");
+        matchPunctuation(Token.Kind.LPAREN);
+        List<N> params = new ArrayList<>();
+        while (kind() == Token.Kind.IDENT) {
+            params.add(parseVarDeclaration(false, AST.VarType.FUNCTION_PARAMETER));
+            if (!testPunctuation(Token.Kind.COMMA)) break;
+        }
+        matchPunctuation(Token.Kind.RPAREN);
+        N returnType = null;
+        if (testPunctuation(Token.Kind.ARROW))
+            returnType = parseTypeExpr();
+        if (lazyBodies) {
+            int bodyStart = skipBlock();
+            return builder.lazyFuncDecl(start, functionName, params, returnType,
+                    () -> new NodeParser<>(builder, tokens, false, null).parseBody(bodyStart));
+        }
+        return builder.funcDecl(start, functionName, params, returnType, parseBlock());
+    }
+
+    /**
+     * Skips a block by matching braces, returning the
+     * index of its opening brace
+     */
+    private int skipBlock() {
+        int start = index;
+        matchPunctuation(Token.Kind.LBRACE);
+        int depth = 1;
+        while (depth > 0) {
+            switch (kind()) {
+                case LBRACE -> depth++;
+                case RBRACE -> depth--;
+                case EOZ -> error("Syntax error: expected }");
+                default -> {}
+            }
+            nextToken();
+        }
+        return start;
+    }
+
+    /**
+     * Parses a function body that was skipped
+     */
+    private N parseBody(int start) {
+        index = start;
+        return parseBlock();
+    }
+
+    private N parseVarDeclaration(boolean expectVar, AST.VarType varType) {
+        int start = index;
+        if (expectVar)
+            matchKeyword(Token.Kind.VAR);
+        int identifier = name("Syntax error: name expected");
+        matchPunctuation(Token.Kind.COLON);
+        return builder.varDecl(start, identifier, varType, parseTypeExpr());
+    }
+
+    private N parseArrayTypeExpr() {
+        int start = index;
+        matchPunctuation(Token.Kind.LBRACKET);
+        N elementType = parseSimpleTypeExpr();
+        matchPunctuation(Token.Kind.RBRACKET);
+        boolean isNullable = testPunctuation(Token.Kind.QUESTION);
+        return builder.arrayType(start, elementType, isNullable);
+    }
+
+    private N parseSimpleTypeExpr() {
+        int start = index;
+        int typeName = name("Expected a type name");
+        boolean isNullable = testPunctuation(Token.Kind.QUESTION);
+        return builder.simpleType(start, typeName, isNullable);
+    }
+
+    private N parseTypeExpr() {
+        if (isToken(Token.Kind.LBRACKET))
+            return parseArrayTypeExpr();
+        else
+            return parseSimpleTypeExpr();
+    }
+
+    private N parseStructDeclaration() {
+        int start = index;
+        matchKeyword(Token.Kind.STRUCT);
+        int structName = name("Expected an identifier after struct keyword");
+        matchPunctuation(Token.Kind.LBRACE);
+        List<N> fields = new ArrayList<>();
+        while (kind() == Token.Kind.VAR || kind() == Token.Kind.IDENT) {
+            fields.add(parseVarDeclaration(true, AST.VarType.STRUCT_FIELD));
+            testPunctuation(Token.Kind.SEMICOLON);
+        }
+        matchPunctuation(Token.Kind.RBRACE);
+        return builder.structDecl(start, structName, fields);
+    }
+
+    private N parseVarDeclOrStmt() {
+        int start = index;
+        matchKeyword(Token.Kind.VAR);
+        N stmt;
+        if (kind() == Token.Kind.IDENT && isNextToken(Token.Kind.ASSIGN)) {
+            int name = index;
+            nextToken();
+            matchPunctuation(Token.Kind.ASSIGN);
+            stmt = builder.varStmt(start, name, parseBool());
+        }
+        else {
+            stmt = builder.varDeclStmt(start, parseVarDeclaration(false, AST.VarType.VARIABLE));
+        }
+        testPunctuation(Token.Kind.SEMICOLON);
+        return stmt;
+    }
+
+    private N parseStatement() {
+        N x = null;
+        N s1;
+        N s2;
+        int start = index;
+
+        switch (kind()) {
+            case VAR -> {
+                return parseVarDeclOrStmt();
+            }
+            case IF -> {
+                matchKeyword(Token.Kind.IF);
+                matchPunctuation(Token.Kind.LPAREN);
+                x = parseBool();
+                matchPunctuation(Token.Kind.RPAREN);
+                s1 = parseStatement();
+                if (!isToken(Token.Kind.ELSE)) {
+                    return builder.ifElse(start, x, s1, null);
+                }
+                matchKeyword(Token.Kind.ELSE);
+                s2 = parseStatement();
+                return builder.ifElse(start, x, s1, s2);
+            }
+            case WHILE -> {
+                matchKeyword(Token.Kind.WHILE);
+                matchPunctuation(Token.Kind.LPAREN);
+                x = parseBool();
+                matchPunctuation(Token.Kind.RPAREN);
+                var savedWhile = currentWhile;
+                var whileStmt = currentWhile = builder.whileStmt(start, x);
+                builder.whileBody(whileStmt, parseStatement());
+                currentWhile = savedWhile;
+                return whileStmt;
+            }
+            case BREAK -> {
+                matchKeyword(Token.Kind.BREAK);
+                testPunctuation(Token.Kind.SEMICOLON);
+                return builder.breakStmt(start, currentWhile);
+            }
+            case CONTINUE -> {
+                matchKeyword(Token.Kind.CONTINUE);
+                testPunctuation(Token.Kind.SEMICOLON);
+                return builder.continueStmt(start, currentWhile);
+            }
+            case RETURN -> {
+                matchKeyword(Token.Kind.RETURN);
+                if (!isToken(Token.Kind.SEMICOLON)
+                    && !isToken(Token.Kind.RBRACE))
+                    x = parseBool();
+                testPunctuation(Token.Kind.SEMICOLON);
+                return builder.returnStmt(start, x);
+            }
+            case LBRACE -> {
+                return parseBlock();
+            }
+            default -> {
+                return parseAssign();
+            }
+        }
+    }
+
+    private N parseBlock() {
+        int blockStart = index;
+        List<N> stmts = new ArrayList<>();
+        matchPunctuation(Token.Kind.LBRACE);
+        while (!testPunctuation(Token.Kind.RBRACE)) {
+            if (kind() == Token.Kind.EOZ) {
+                missingBrace();
+                break;
+            }
+            if (diagnostics == null) {
+                stmts.add(parseStatement());
+                continue;
+            }
+            int start = index;
+            var savedWhile = currentWhile;
+            try {
+                stmts.add(parseStatement());
+            } catch (CompilerException e) {
+                diagnostics.add(e);
+                currentWhile = savedWhile;
+                stmts.add(builder.errorStmt(start, e.getMessage()));
+                skipToStatement(start);
+                // The block is missing its '}' if we stopped at a declaration
+                if (kind() == Token.Kind.FUNC || kind() == Token.Kind.STRUCT)
+                    break;
+            }
+        }
+        return builder.block(blockStart, stmts);
+    }
+
+    // Parse assignment or expression statement
+    private N parseAssign() {
+        int start = index;
+        N lhs = parseBool();
+        N rhs = null;
+        if (testPunctuation(Token.Kind.ASSIGN))
+            rhs = parseBool();
+        testPunctuation(Token.Kind.SEMICOLON);
+        if (rhs == null)
+            return builder.exprStmt(start, lhs);
+        return builder.assign(start, lhs, rhs);
+    }
+
+    /**
+     * Binding power of binary operators indexed by token kind,
+     * 0 for tokens that are not binary operators.
+     * All binary operators are left associative.
+     */
+    static final byte[] BINARY_PRECEDENCE = new byte[Token.Kind.values().length];
+    static {
+        BINARY_PRECEDENCE[Token.Kind.LOGICAL_OR.ordinal()] = 1;
+        BINARY_PRECEDENCE[Token.Kind.LOGICAL_AND.ordinal()] = 2;
+        for (Token.Kind kind: new Token.Kind[] {Token.Kind.EQ, Token.Kind.NE, Token.Kind.LE, Token.Kind.LT, Token.Kind.GT, Token.Kind.GE})
+            BINARY_PRECEDENCE[kind.ordinal()] = 3;
+        for (Token.Kind kind: new Token.Kind[] {Token.Kind.PLUS, Token.Kind.MINUS})
+            BINARY_PRECEDENCE[kind.ordinal()] = 4;
+        for (Token.Kind kind: new Token.Kind[] {Token.Kind.MUL, Token.Kind.DIV, Token.Kind.MOD})
+            BINARY_PRECEDENCE[kind.ordinal()] = 5;
+    }
+
+    private N parseBool() {
+        return parseBinary(1);
+    }
+
+    /**
+     * Parses an expression made of binary operators that bind at
+     * least as tightly as minPrecedence, by precedence climbing
+     */
+    private N parseBinary(int minPrecedence) {
+        int start = index;
+        var x = parseUnary();
+        int precedence;
+        while ((precedence = BINARY_PRECEDENCE[kind().ordinal()]) >= minPrecedence) {
+            int op = index;
+            nextToken();
+            x = builder.binary(start, op, x, parseBinary(precedence + 1));
+        }
+        return x;
+    }
+
+    private N parseUnary() {
+        int start = index;
+        if (isToken(Token.Kind.MINUS)
+                || isToken(Token.Kind.NOT)) {
+            int op = index;
+            nextToken();
+            return builder.unary(start, op, parseUnary());
+        } else {
+            return parsePostfix(start, parsePrimary());
+        }
+    }
+
+    private N parseNew() {
+        int start = index;
+        matchKeyword(Token.Kind.NEW);
+        N resultType = parseTypeExpr();
+        List<N> initExpr = new ArrayList<>();
+        if (testPunctuation(Token.Kind.LBRACE)) {
+            while (!isToken(Token.Kind.RBRACE)) {
+                int fieldStart = index;
+                if (kind() == Token.Kind.IDENT && isNextToken(Token.Kind.ASSIGN)) {
+                    int fieldname = index;
+                    nextToken();
+                    matchPunctuation(Token.Kind.ASSIGN);
+                    N value = parseBool();
+                    initExpr.add(builder.setField(fieldStart, fieldname, value));
+                }
+                else {
+                    initExpr.add(parseBool());
+                }
+                if (isToken(Token.Kind.COMMA))
+                    nextToken();
+                else break;
+            }
+        }
+        matchPunctuation(Token.Kind.RBRACE);
+        return builder.newExpr(start, resultType, initExpr);
+    }
+
+    private N parsePrimary() {
+        switch (kind()) {
+            case LPAREN -> {
+                /* Nested expression */
+                matchPunctuation(Token.Kind.LPAREN);
+                nextToken();
+                var x = parseBool();
+                matchPunctuation(Token.Kind.RPAREN);
+                return x;
+            }
+            case NUM -> {
+                var x = builder.literal(index);
+                nextToken();
+                return x;
+            }
+            case NEW -> {
+                return parseNew();
+            }
+            case IDENT -> {
+                var x = builder.name(index);
+                nextToken();
+                return x;
+            }
+            default -> {
+                error("syntax error, expected nested expr, integer value or variable");
+                return null;
+            }
+        }
+    }
+
+    private N parsePostfix(int start, N primaryExpr) {
+        N prevExpr = primaryExpr;
+        while (isToken(Token.Kind.LBRACKET)
+                || isToken(Token.Kind.LPAREN)
+                || isToken(Token.Kind.DOT)) {
+            Token.Kind tok = kind();
+            nextToken();
+            switch (tok) {
+                case LBRACKET -> {
+                    N expr = parseBool();
+                    prevExpr = builder.arrayIndex(start, prevExpr, expr);
+                    matchPunctuation(Token.Kind.RBRACKET);
+                }
+                case DOT -> {
+                    if (kind() == Token.Kind.IDENT) {
+                        prevExpr = builder.field(start, prevExpr, index);
+                        nextToken();
+                    }
+                    else
+                        error("Syntax error: Expected name after .");
+                }
+                case LPAREN -> {
+                    List<N> args = new ArrayList<>();
+                    while (!isToken(Token.Kind.RPAREN)) {
+                        args.add(parseBool());
+                        if (isToken(Token.Kind.COMMA))
+                            nextToken();
+                        else break;
+                    }
+                    matchPunctuation(Token.Kind.RPAREN);
+                    prevExpr = builder.call(start, prevExpr, args);
+                }
+                default -> throw new CompilerException("Syntax error");
+            }
+        }
+        return prevExpr;
+    }
+}
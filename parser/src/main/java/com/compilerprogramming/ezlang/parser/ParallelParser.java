@@ -0,0 +1,116 @@
+package com.compilerprogramming.ezlang.parser;
+
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+import com.compilerprogramming.ezlang.lexer.Token;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the top level declarations of a token stream in parallel.
+ * A brace matching scan splits the tokens into declarations, each
+ * starting with func or struct outside any braces. Batches of
+ * declarations are parsed on a ForkJoinPool, each by its own Parser.
+ * Declarations are kept in source order. If the source does not
+ * split cleanly, or a batch fails, it is parsed serially so that
+ * the result and any error are the same as for the serial parser.
+ */
+public class ParallelParser {
+
+    /**
+     * Declarations are batched into tasks of about this many tokens
+     */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+    private final int batchSize;
+
+    public ParallelParser() {
+        this(ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    public ParallelParser(ForkJoinPool pool, int batchSize) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+    }
+
+    public AST.Program parse(TokenStream tokens) {
+        List<Integer> starts = declarationStarts(tokens);
+        if (starts == null || starts.size() < 2)
+            return new Parser().parse(tokens);
+        List<Callable<List<AST.Decl>>> tasks = new ArrayList<>();
+        int first = 0;
+        while (first < starts.size()) {
+            int last = first + 1;
+            while (last < starts.size() && starts.get(last) - starts.get(first) < batchSize)
+                last++;
+            List<Integer> batch = starts.subList(first, last);
+            int end = last < starts.size() ? starts.get(last) : tokens.size() - 1;
+            tasks.add(() -> parseBatch(tokens, batch, end));
+            first = last;
+        }
+        AST.Program program = new AST.Program();
+        program.lineMap = tokens.lineMap();
+        program.names = tokens.names;
+        try {
+            for (Future<List<AST.Decl>> future: pool.invokeAll(tasks)) {
+                List<AST.Decl> decls = future.get();
+                if (decls == null)
+                    return new Parser().parse(tokens);
+                program.decls.addAll(decls);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CompilerException)
+                return new Parser().parse(tokens);
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        return program;
+    }
+
+    /**
+     * Returns the indexes of the tokens that start top level
+     * declarations, or null if there is anything else at top level
+     */
+    private static List<Integer> declarationStarts(TokenStream tokens) {
+        List<Integer> starts = new ArrayList<>();
+        int depth = 0;
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            Token.Kind kind = tokens.kind(i);
+            if (depth == 0) {
+                if (kind == Token.Kind.FUNC || kind == Token.Kind.STRUCT)
+                    starts.add(i);
+                else if (starts.isEmpty())
+                    return null;
+            }
+            if (kind == Token.Kind.LBRACE)
+                depth++;
+            else if (kind == Token.Kind.RBRACE && --depth < 0)
+                return null;
+        }
+        return depth == 0 ? starts : null;
+    }
+
+    /**
+     * Parses the declarations starting at the given indexes, returning
+     * null if a declaration does not end where the next one starts
+     */
+    private static List<AST.Decl> parseBatch(TokenStream tokens, List<Integer> starts, int end) {
+        Parser parser = new Parser();
+        List<AST.Decl> decls = new ArrayList<>(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            int declEnd = i + 1 < starts.size() ? starts.get(i + 1) : end;
+            decls.add(parser.parseDeclaration(tokens, starts.get(i)));
+            if (parser.index() != declEnd)
+                return null;
+        }
+        return decls;
+    }
+}
@@ -0,0 +1,36 @@
+package com.compilerprogramming.ezlang.parser;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Visitors for tests, shared with the modules
+ * that depend on the parser's test jar
+ */
+public final class ASTTestUtil {
+
+    private ASTTestUtil() {}
+
+    /**
+     * Returns a visitor that passes each enter and exit of a node
+     * to the listener, and skips the children of nodes of the
+     * given class
+     */
+    public static ASTVisitor visitor(BiConsumer<AST, Boolean> listener, Class<?> skip) {
+        return (ASTVisitor) Proxy.newProxyInstance(ASTVisitor.class.getClassLoader(), new Class<?>[] {ASTVisitor.class},
+                (proxy, method, args) -> {
+                    boolean enter = (Boolean) args[1];
+                    listener.accept((AST) args[0], enter);
+                    return enter && args[0].getClass() == skip ? null : proxy;
+                });
+    }
+
+    /**
+     * Returns a visitor that logs its calls, and skips the
+     * children of nodes of the given class
+     */
+    public static ASTVisitor loggingVisitor(List<String> log, Class<?> skip) {
+        return visitor((node, enter) -> log.add((enter ? "enter " : "exit ") + node.getClass().getSimpleName()), skip);
+    }
+}
@@ -1,8 +1,21 @@
 package com.compilerprogramming.ezlang.parser;
 
 import com.compilerprogramming.ezlang.lexer.Lexer;
+import com.compilerprogramming.ezlang.lexer.Token;
+import com.compilerprogramming.ezlang.lexer.TokenStream;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 public class TestParser {
 
     @Test
@@ -48,4 +61,457 @@ func main() {
         System.out.println(program.toString());
         return;
     }
+
+    @Test
+    public void testPositions() {
+        String src = """
+func foo(a: Int) -> Int {
+    return a * 2
+}
+""";
+        var program = new Parser().parse(new Lexer(src));
+        var func = (AST.FuncDecl) program.decls.get(0);
+        Assert.assertEquals(src.indexOf("func"), func.offset);
+        Assert.assertEquals(src.indexOf("a: Int"), func.args[0].offset);
+        Assert.assertEquals(src.indexOf("Int {"), func.returnType.offset);
+        var ret = (AST.ReturnStmt) func.block().stmtList.get(0);
+        Assert.assertEquals(src.indexOf("return"), ret.offset);
+        Assert.assertEquals(src.indexOf("a * 2"), ret.expr.offset);
+        Assert.assertEquals(src.indexOf("2\n"), ((AST.BinaryExpr) ret.expr).expr2.offset);
+        Assert.assertEquals(1, program.lineMap.line(ret.offset));
+        Assert.assertEquals(4, program.lineMap.column(ret.offset));
+    }
+
+    @Test
+    public void testErrorPosition() {
+        try {
+            new Parser().parse(new Lexer("func foo() {\n  var = 1\n}"));
+            Assert.fail();
+        } catch (CompilerException e) {
+            Assert.assertEquals(1, e.line);
+            Assert.assertEquals(6, e.column);
+            Assert.assertEquals("Line 1, column 6: Syntax error: name expected got =", e.getMessage());
+        }
+    }
+
+    private static String parseExpr(String expr) {
+        var program = new Parser().parse(new Lexer("func f() { return " + expr + " }"));
+        var func = (AST.FuncDecl) program.decls.get(0);
+        return ((AST.ReturnStmt) func.block().stmtList.get(0)).expr.toString();
+    }
+
+    @Test
+    public void testPrecedence() {
+        Assert.assertEquals("(a+(b*c))", parseExpr("a + b * c"));
+        Assert.assertEquals("((a-b)-c)", parseExpr("a - b - c"));
+        Assert.assertEquals("((a*b)%c)", parseExpr("a * b % c"));
+        Assert.assertEquals("(a+(b%c))", parseExpr("a + b % c"));
+        Assert.assertEquals("(((a<b)==c)>=d)", parseExpr("a < b == c >= d"));
+        Assert.assertEquals("((a&&(b<c))||((-(d))&&(!(e))))", parseExpr("a && b < c || -d && !e"));
+        Assert.assertEquals("(a[1]+(f(b).c*2))", parseExpr("a[1] + f(b).c * 2"));
+    }
+
+    @Test
+    public void testLazyBodies() {
+        String src = """
+struct S { var values: [Int] }
+func foo(a: Int) -> S {
+    var s = new S { values = new [Int] { a, 2 } }
+    while (a > 0) { if (a == 1) break a = a - 1 }
+    return s
+}
+func bar() { foo(1) }
+""";
+        var program = new Parser(true).parse(new Lexer(src));
+        var foo = (AST.FuncDecl) program.decls.get(1);
+        var bar = (AST.FuncDecl) program.decls.get(2);
+        Assert.assertEquals("bar", bar.name);
+        Assert.assertFalse(foo.isBodyParsed());
+        Assert.assertEquals(new Parser().parse(new Lexer(src)).toString(), program.toString());
+        Assert.assertTrue(foo.isBodyParsed());
+        Assert.assertSame(foo.block(), foo.block());
+    }
+
+    @Test
+    public void testLazyBodyErrors() {
+        // Errors in a body are reported when it is parsed
+        var program = new Parser(true).parse(new Lexer("func foo() { var = 1 }"));
+        var foo = (AST.FuncDecl) program.decls.get(0);
+        Assert.assertThrows(CompilerException.class, foo::block);
+        // Unbalanced braces are found when skipping the body
+        Assert.assertThrows(CompilerException.class, () -> new Parser(true).parse(new Lexer("func foo() { {")));
+    }
+
+    @Test
+    public void testTruncatedBody() {
+        // Eager and lazy parsing report a body missing its '}' alike
+        String src = "func foo(a: Int) {\n    while (a > 0) { a = a - 1 }\n    return a";
+        List<String> messages = new ArrayList<>();
+        for (boolean lazy: new boolean[] {false, true}) {
+            var e = Assert.assertThrows(CompilerException.class, () -> new Parser(lazy).parse(new Lexer(src)));
+            messages.add(e.getMessage());
+            var result = new Parser(lazy).parseWithRecovery(new Lexer(src));
+            Assert.assertEquals(1, result.diagnostics().size());
+            Assert.assertEquals(e.getMessage(), result.diagnostics().get(0).getMessage());
+        }
+        Assert.assertEquals("Line 2, column 12: Syntax error: expected } got ", messages.get(0));
+        Assert.assertEquals(messages.get(0), messages.get(1));
+    }
+
+    @Test
+    public void testParallelParse() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append("struct S").append(i).append(" { var next: S").append(i).append("? }\n");
+            sb.append("func f").append(i).append("(a: Int) -> Int {\n")
+              .append("    var s = new S").append(i).append(" { next = null }\n")
+              .append("    while (a > 0) { if (a % 2 == 0) { a = a - 1 } else a = a / 2 }\n")
+              .append("    return a\n}\n");
+        }
+        TokenStream tokens = TokenStream.lex(new Lexer(sb.toString()));
+        String expected = new Parser().parse(tokens).toString();
+        for (int batchSize: new int[] {1, 10, 100, 100000}) {
+            var program = new ParallelParser(ForkJoinPool.commonPool(), batchSize).parse(tokens);
+            Assert.assertEquals(100, program.decls.size());
+            Assert.assertEquals(expected, program.toString());
+        }
+        // Sources that do not split into declarations give the serial result
+        tokens = TokenStream.lex(new Lexer("func f() {} func g() { return 1 } 42 func h() {}"));
+        Assert.assertEquals(new Parser().parse(tokens).toString(),
+                new ParallelParser(ForkJoinPool.commonPool(), 1).parse(tokens).toString());
+    }
+
+    @Test
+    public void testParallelParseError() {
+        TokenStream tokens = TokenStream.lex(new Lexer("func f() {}\nfunc g() { var = 1 }\nfunc h() {}"));
+        try {
+            new ParallelParser(ForkJoinPool.commonPool(), 1).parse(tokens);
+            Assert.fail();
+        } catch (CompilerException e) {
+            Assert.assertEquals("Line 1, column 15: Syntax error: name expected got =", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testErrorRecovery() {
+        String src = """
+func foo(a: Int) -> Int {
+    var x = a +;
+    while (a > 0) { a = a - 1 }
+    var = 2
+    return x
+}
+func bar(a Int) { return 1 }
+struct S { var x: Int }
+func baz() {
+    if (1 ==) return
+}
+""";
+        var result = new Parser().parseWithRecovery(new Lexer(src));
+        Assert.assertTrue(result.hasErrors());
+        Assert.assertEquals(4, result.diagnostics().size());
+        Assert.assertEquals(1, result.diagnostics().get(0).line);
+        Assert.assertEquals(3, result.diagnostics().get(1).line);
+        Assert.assertEquals(6, result.diagnostics().get(2).line);
+        Assert.assertEquals(9, result.diagnostics().get(3).line);
+        var decls = result.program().decls;
+        Assert.assertEquals(4, decls.size());
+        var foo = (AST.FuncDecl) decls.get(0);
+        var stmts = foo.block().stmtList;
+        Assert.assertEquals(4, stmts.size());
+        Assert.assertTrue(stmts.get(0) instanceof AST.ErrorStmt);
+        Assert.assertTrue(stmts.get(1) instanceof AST.WhileStmt);
+        Assert.assertTrue(stmts.get(2) instanceof AST.ErrorStmt);
+        Assert.assertTrue(stmts.get(3) instanceof AST.ReturnStmt);
+        Assert.assertTrue(decls.get(1) instanceof AST.ErrorDecl);
+        Assert.assertTrue(decls.get(2) instanceof AST.StructDecl);
+        // The error in baz's body is an error statement
+        var baz = (AST.FuncDecl) decls.get(3);
+        Assert.assertTrue(baz.block().stmtList.get(0) instanceof AST.ErrorStmt);
+    }
+
+    @Test
+    public void testRecoveryWithoutErrors() {
+        String src = "func foo(a: Int) -> Int { return a % 2 }";
+        var result = new Parser().parseWithRecovery(new Lexer(src));
+        Assert.assertFalse(result.hasErrors());
+        Assert.assertEquals(new Parser().parse(new Lexer(src)).toString(), result.program().toString());
+        // Without recovery the first error ends the parse
+        Assert.assertThrows(CompilerException.class, () -> new Parser().parse(new Lexer("func foo( { }")));
+    }
+
+    static final String SERIALIZE_SOURCE = """
+struct Tree { var left: Tree? var values: [Int]? var children: [Tree?] }
+func foo(a: Int, t: Tree?) -> [Int] {
+    var x = -a * 3 % 2 + 1.5
+    var y: Int
+    var n = new Tree { values = new [Int] { 1, 2 }, left = null }
+    while (a > 0 && !x) {
+        if (a == 1) break else { a = a - 1 continue }
+        n.values[0] = foo(a - 1, n.left)[1]
+    }
+    return new [Int] {}
+}
+""";
+
+    @Test
+    public void testSerialize() {
+        var program = new Parser().parse(new Lexer(SERIALIZE_SOURCE));
+        byte[] bytes = ASTSerializer.serialize(program);
+        var copy = ASTSerializer.deserialize(bytes);
+        Assert.assertEquals(program.toString(), copy.toString());
+        Assert.assertArrayEquals(bytes, ASTSerializer.serialize(copy));
+        var foo = (AST.FuncDecl) copy.decls.get(1);
+        Assert.assertEquals(SERIALIZE_SOURCE.indexOf("func foo"), foo.offset);
+        Assert.assertEquals(SERIALIZE_SOURCE.indexOf("[Int] {\n"), foo.returnType.offset);
+        // Break and continue refer to their loop
+        var whileStmt = (AST.WhileStmt) foo.block().stmtList.get(3);
+        var ifStmt = (AST.IfElseStmt) ((AST.BlockStmt) whileStmt.stmt).stmtList.get(0);
+        Assert.assertSame(whileStmt, ((AST.BreakStmt) ifStmt.ifStmt).whileStmt);
+        var literal = (AST.LiteralExpr) ((AST.BinaryExpr) ((AST.VarStmt) foo.block().stmtList.get(0)).expr).expr2;
+        Assert.assertEquals(1.5, literal.value.fnum, 0.0);
+        Assert.assertEquals(1, literal.value.num);
+        Assert.assertThrows(CompilerException.class, () -> ASTSerializer.deserialize(new byte[] {1, 2, 3}));
+        // Names carry the ids of their tokens, and keep them when
+        // read back into the same table
+        var same = ASTSerializer.deserialize(bytes, program.names);
+        Assert.assertSame(program.names, same.names);
+        Assert.assertEquals(nameIds(program), nameIds(same));
+        Assert.assertTrue(nameIds(program).contains("a=" + program.names.lookup("a")));
+    }
+
+    private static List<String> nameIds(AST.Program program) {
+        List<String> ids = new ArrayList<>();
+        ASTWalker.walk(program, ASTTestUtil.visitor((node, enter) -> {
+            if (!enter)
+                return;
+            switch (node) {
+                case AST.NameExpr n -> ids.add(n.name + "=" + n.nameId);
+                case AST.FieldExpr n -> ids.add(n.fieldName + "=" + n.fieldNameId);
+                case AST.SetFieldExpr n -> ids.add(n.fieldName + "=" + n.fieldNameId);
+                default -> {}
+            }
+        }, null));
+        return ids;
+    }
+
+    /**
+     * Runs the test on a thread with a 1MB stack, so that
+     * recursion proportional to the tree depth would overflow
+     */
+    static void withSmallStack(Runnable test) throws InterruptedException {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                test.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 1 << 20);
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof Error error)
+            throw error;
+        if (failure[0] instanceof RuntimeException e)
+            throw e;
+    }
+
+    @Test
+    public void testSerializeDeepExpression() throws Exception {
+        String src = "func f(a: Int) -> Int { return a" + " + a".repeat(100000) + " }";
+        withSmallStack(() -> {
+            var program = new Parser().parse(new Lexer(src));
+            byte[] bytes = ASTSerializer.serialize(program);
+            Assert.assertArrayEquals(bytes, ASTSerializer.serialize(ASTSerializer.deserialize(bytes)));
+            try {
+                Path dir = Files.createTempDirectory("ezcache");
+                try {
+                    ASTCache cache = new ASTCache(dir);
+                    cache.parse(src);
+                    var cached = cache.parse(src);
+                    Assert.assertEquals(1, cache.hits());
+                    Assert.assertArrayEquals(bytes, ASTSerializer.serialize(cached));
+                } finally {
+                    try (var files = Files.list(dir)) {
+                        for (Path file: files.toList())
+                            Files.delete(file);
+                    }
+                    Files.delete(dir);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Test
+    public void testDeserializeMalformed() {
+        byte[] header = {'E', 'Z', 'A', 'S', 'T', ASTSerializer.VERSION, 1, 1, 'a', 1};
+        // A variable declaration with an unknown kind
+        byte[] badVarType = Arrays.copyOf(header, header.length + 4);
+        System.arraycopy(new byte[] {3, 0, 1, 9}, 0, badVarType, header.length, 4);
+        Assert.assertThrows(CompilerException.class, () -> ASTSerializer.deserialize(badVarType));
+        // A name expression where a declaration is expected
+        byte[] notDecl = Arrays.copyOf(header, header.length + 3);
+        System.arraycopy(new byte[] {9, 0, 1}, 0, notDecl, header.length, 3);
+        Assert.assertThrows(CompilerException.class, () -> ASTSerializer.deserialize(notDecl));
+        // A string reference past the table
+        byte[] badString = Arrays.copyOf(header, header.length + 3);
+        System.arraycopy(new byte[] {4, 0, 5}, 0, badString, header.length, 3);
+        Assert.assertThrows(CompilerException.class, () -> ASTSerializer.deserialize(badString));
+        // A valid declaration
+        byte[] valid = Arrays.copyOf(header, header.length + 3);
+        System.arraycopy(new byte[] {4, 0, 1}, 0, valid, header.length, 3);
+        Assert.assertEquals("a", ((AST.ErrorDecl) ASTSerializer.deserialize(valid).decls.get(0)).message);
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        Path dir = Files.createTempDirectory("ezcache");
+        try {
+            ASTCache cache = new ASTCache(dir);
+            String expected = new Parser().parse(new Lexer(SERIALIZE_SOURCE)).toString();
+            Assert.assertEquals(expected, cache.parse(SERIALIZE_SOURCE).toString());
+            Assert.assertEquals(expected, cache.parse(SERIALIZE_SOURCE).toString());
+            Assert.assertEquals(1, cache.hits());
+            Assert.assertEquals(1, cache.misses());
+            cache.parse(SERIALIZE_SOURCE + "func bar() {}");
+            Assert.assertEquals(2, cache.misses());
+            // Damaged entries are replaced
+            try (var files = Files.list(dir)) {
+                for (Path file: files.toList())
+                    Files.write(file, new byte[] {'E', 'Z'});
+            }
+            Assert.assertEquals(expected, new ASTCache(dir).parse(SERIALIZE_SOURCE).toString());
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file: files.toList())
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testWalkerMatchesAccept() {
+        var program = new Parser().parse(new Lexer(SERIALIZE_SOURCE));
+        for (Class<?> skip: new Class<?>[] {null, AST.BinaryExpr.class, AST.WhileStmt.class}) {
+            List<String> expected = new ArrayList<>();
+            program.accept(ASTTestUtil.loggingVisitor(expected, skip));
+            List<String> walked = new ArrayList<>();
+            ASTWalker.walk(program, ASTTestUtil.loggingVisitor(walked, skip));
+            Assert.assertEquals(expected, walked);
+        }
+    }
+
+    @Test
+    public void testWalkSeveralVisitors() {
+        var program = new Parser().parse(new Lexer(SERIALIZE_SOURCE));
+        Class<?>[] skips = {null, AST.BinaryExpr.class, AST.WhileStmt.class};
+        List<List<String>> logs = new ArrayList<>();
+        ASTVisitor[] visitors = new ASTVisitor[skips.length];
+        for (int i = 0; i < skips.length; i++) {
+            logs.add(new ArrayList<>());
+            visitors[i] = ASTTestUtil.loggingVisitor(logs.get(i), skips[i]);
+        }
+        ASTWalker.walk(program, visitors);
+        // Each visitor sees what it would see walking alone
+        for (int i = 0; i < skips.length; i++) {
+            List<String> alone = new ArrayList<>();
+            ASTWalker.walk(program, ASTTestUtil.loggingVisitor(alone, skips[i]));
+            Assert.assertEquals(alone, logs.get(i));
+        }
+    }
+
+    @Test
+    public void testWalkDeepExpression() {
+        String src = "func f(a: Int) -> Int { return a" + " + a".repeat(100000) + " }";
+        var program = new Parser().parse(new Lexer(src));
+        List<String> log = new ArrayList<>();
+        ASTWalker.walk(program, ASTTestUtil.loggingVisitor(log, null));
+        Assert.assertEquals("exit Program", log.get(log.size() - 1));
+    }
+
+    @Test
+    public void testFlatAST() {
+        TokenStream tokens = TokenStream.lex(new Lexer(SERIALIZE_SOURCE));
+        var program = new Parser().parse(tokens);
+        FlatAST flat = FlatAST.build(program, tokens);
+        // Node ids follow the order in which a walk enters nodes
+        List<String> entered = new ArrayList<>();
+        ASTWalker.walk(program, ASTTestUtil.loggingVisitor(entered, null));
+        entered.removeIf(s -> s.startsWith("exit"));
+        Assert.assertEquals(entered.size(), flat.size());
+        var foo = flat.root().child(1);
+        Assert.assertEquals(FlatAST.Kind.FUNC_DECL, foo.kind());
+        Assert.assertEquals("foo", foo.name());
+        Assert.assertEquals(SERIALIZE_SOURCE.indexOf("func foo"), foo.offset());
+        var params = foo.children();
+        Assert.assertEquals(FlatAST.Kind.PARAM_DECL, params.get(0).kind());
+        Assert.assertEquals("a", params.get(0).name());
+        Assert.assertEquals("Int", params.get(0).firstChild().name());
+        Assert.assertEquals(FlatAST.Kind.NULLABLE_SIMPLE_TYPE, params.get(1).firstChild().kind());
+        Assert.assertEquals(FlatAST.Kind.RETURN_TYPE, params.get(2).kind());
+        Assert.assertEquals(FlatAST.Kind.ARRAY_TYPE, params.get(2).firstChild().kind());
+        var block = params.get(3);
+        Assert.assertEquals(FlatAST.Kind.BLOCK, block.kind());
+        // var x = -a * 3 % 2 + 1.5
+        var varStmt = block.firstChild();
+        Assert.assertEquals("x", varStmt.name());
+        var plus = varStmt.firstChild();
+        Assert.assertEquals(Token.Kind.PLUS, plus.operator());
+        Assert.assertEquals(Token.Kind.MOD, plus.firstChild().operator());
+        Assert.assertEquals("1.5", plus.child(1).text());
+        Assert.assertEquals(1, plus.child(1).value());
+        Assert.assertNull(plus.child(2));
+        Assert.assertEquals(FlatAST.Kind.WHILE, block.child(3).kind());
+        plus.setType(7);
+        Assert.assertEquals(7, flat.type(plus.id()));
+    }
+
+    @Test
+    public void testParseFlatAST() {
+        String src = SERIALIZE_SOURCE + "func bar() { foo(1, new Tree {})[0] }";
+        TokenStream tokens = TokenStream.lex(new Lexer(src));
+        int names = tokens.names.size();
+        FlatAST parsed = FlatAST.parse(tokens);
+        FlatAST built = FlatAST.build(new Parser().parse(tokens), tokens);
+        Assert.assertEquals(built.size(), parsed.size());
+        assertSameTree(built.root(), parsed.root());
+        Assert.assertEquals(FlatAST.Kind.PROGRAM, parsed.root().kind());
+        // Children are added before their parent
+        Assert.assertEquals(parsed.size() - 1, parsed.root().id());
+        Assert.assertEquals(names, tokens.names.size());
+        // Both forms come from the same grammar, with the same errors
+        String truncated = "func foo(a: Int) {\n    return a";
+        var e = Assert.assertThrows(CompilerException.class, () -> new Parser().parse(new Lexer(truncated)));
+        var flatError = Assert.assertThrows(CompilerException.class, () -> FlatAST.parse(TokenStream.lex(new Lexer(truncated))));
+        Assert.assertEquals(e.getMessage(), flatError.getMessage());
+    }
+
+    @Test
+    public void testFlatASTKeepsTokenNames() {
+        TokenStream tokens = TokenStream.lex(new Lexer("func f() { x = } struct S { var a: Int }"));
+        int names = tokens.names.size();
+        var result = new Parser().parseWithRecovery(tokens);
+        Assert.assertTrue(result.hasErrors());
+        FlatAST flat = FlatAST.build(result.program(), tokens);
+        Assert.assertEquals(FlatAST.Kind.ERROR_STMT, flat.root().firstChild().child(1).firstChild().kind());
+        Assert.assertEquals(result.diagnostics().get(0).getMessage(), flat.root().firstChild().child(1).firstChild().name());
+        Assert.assertEquals("S", flat.root().child(1).name());
+        Assert.assertEquals(names, tokens.names.size());
+    }
+
+    private static void assertSameTree(FlatAST.Node expected, FlatAST.Node actual) {
+        Assert.assertEquals(expected.kind(), actual.kind());
+        Assert.assertEquals(expected.name(), actual.name());
+        Assert.assertEquals(expected.offset(), actual.offset());
+        if (expected.kind() == FlatAST.Kind.BINARY || expected.kind() == FlatAST.Kind.UNARY)
+            Assert.assertEquals(expected.operator(), actual.operator());
+        var children = expected.children();
+        var actualChildren = actual.children();
+        Assert.assertEquals(children.size(), actualChildren.size());
+        for (int i = 0; i < children.size(); i++)
+            assertSameTree(children.get(i), actualChildren.get(i));
+    }
 }
@@ -36,7 +36,7 @@ public class FunctionBuilder {
         this.exit = createBlock();
         this.currentBreakTarget = null;
         this.currentContinueTarget = null;
-        compileStatement(funcDecl.block);
+        compileStatement(funcDecl.block());
         exitBlockIfNeeded();
     }
 
@@ -57,7 +57,7 @@ public class FunctionBuilder {
             }
         }
         scope.maxReg = reg;
-        for (Scope childScope: scope.children) {
+        for (Scope childScope: scope.children()) {
             setVirtualRegisters(childScope);
         }
     }
@@ -70,9 +70,40 @@ public class FunctionBuilder {
         return new BasicBlock(bid++, true);
     }
 
-    private void compileBlock(AST.BlockStmt block) {
-        for (AST.Stmt stmt: block.stmtList) {
-            compileStatement(stmt);
+    /**
+     * A statement or expression being compiled, and the number of
+     * its children compiled so far. Statements and expressions are
+     * compiled from explicit stacks of frames rather than by
+     * recursion, so that any depth of nesting can be compiled.
+     */
+    private static class Frame<T extends AST> {
+        final T node;
+        int step;
+        Frame(T node) {
+            this.node = node;
+        }
+    }
+
+    private static class StmtFrame extends Frame<AST.Stmt> {
+        BasicBlock elseBlock;
+        BasicBlock loopBlock;
+        BasicBlock exitBlock;
+        BasicBlock savedBreakTarget;
+        BasicBlock savedContinueTarget;
+        StmtFrame(AST.Stmt stmt) {
+            super(stmt);
+        }
+    }
+
+    private static class ExprFrame extends Frame<AST.Expr> {
+        // Set when the expression leaves an indexed load
+        // on the virtual stack, rather than a value
+        boolean indexed;
+        int fieldIndex;
+        Operand callee;
+        List<Operand> args;
+        ExprFrame(AST.Expr expr) {
+            super(expr);
         }
     }
 
@@ -92,18 +123,38 @@ public class FunctionBuilder {
     }
 
     private void compileStatement(AST.Stmt statement) {
-        switch (statement) {
+        List<StmtFrame> stack = new ArrayList<>();
+        stack.add(new StmtFrame(statement));
+        while (!stack.isEmpty()) {
+            StmtFrame frame = stack.getLast();
+            AST.Stmt child = compileStatementStep(frame);
+            if (child != null) {
+                frame.step++;
+                stack.add(new StmtFrame(child));
+            }
+            else
+                stack.removeLast();
+        }
+    }
+
+    /**
+     * Compiles the statement up to its next child statement, which is
+     * returned, or to its end, in which case null is returned
+     */
+    private AST.Stmt compileStatementStep(StmtFrame frame) {
+        switch (frame.node) {
             case AST.BlockStmt blockStmt -> {
-                compileBlock(blockStmt);
+                if (frame.step < blockStmt.stmtList.size())
+                    return blockStmt.stmtList.get(frame.step);
             }
             case AST.VarStmt letStmt -> {
                 compileLet(letStmt);
             }
             case AST.IfElseStmt ifElseStmt -> {
-                compileIf(ifElseStmt);
+                return compileIf(ifElseStmt, frame);
             }
             case AST.WhileStmt whileStmt -> {
-                compileWhile(whileStmt);
+                return compileWhile(whileStmt, frame);
             }
             case AST.ContinueStmt continueStmt -> {
                 compileContinue(continueStmt);
@@ -120,8 +171,9 @@ public class FunctionBuilder {
             case AST.ExprStmt exprStmt -> {
                 compileExprStmt(exprStmt);
             }
-            default -> throw new IllegalStateException("Unexpected value: " + statement);
+            default -> throw new IllegalStateException("Unexpected value: " + frame.node);
         }
+        return null;
     }
 
     private void compileAssign(AST.AssignStmt assignStmt) {
@@ -161,27 +213,30 @@ public class FunctionBuilder {
         jumpTo(currentBreakTarget);
     }
 
-    private void compileWhile(AST.WhileStmt whileStmt) {
-        BasicBlock loopBlock = createLoopHead();
-        BasicBlock bodyBlock = createBlock();
-        BasicBlock exitBlock = createBlock();
-        BasicBlock savedBreakTarget = currentBreakTarget;
-        BasicBlock savedContinueTarget = currentContinueTarget;
-        currentBreakTarget = exitBlock;
-        currentContinueTarget = loopBlock;
-        startBlock(loopBlock);
-        boolean indexed = compileExpr(whileStmt.condition);
-        if (indexed)
-            codeIndexedLoad();
-        code(new Instruction.ConditionalBranch(currentBlock, pop(), bodyBlock, exitBlock));
-        assert vstackEmpty();
-        startBlock(bodyBlock);
-        compileStatement(whileStmt.stmt);
+    private AST.Stmt compileWhile(AST.WhileStmt whileStmt, StmtFrame frame) {
+        if (frame.step == 0) {
+            BasicBlock loopBlock = frame.loopBlock = createLoopHead();
+            BasicBlock bodyBlock = createBlock();
+            BasicBlock exitBlock = frame.exitBlock = createBlock();
+            frame.savedBreakTarget = currentBreakTarget;
+            frame.savedContinueTarget = currentContinueTarget;
+            currentBreakTarget = exitBlock;
+            currentContinueTarget = loopBlock;
+            startBlock(loopBlock);
+            boolean indexed = compileExpr(whileStmt.condition);
+            if (indexed)
+                codeIndexedLoad();
+            code(new Instruction.ConditionalBranch(currentBlock, pop(), bodyBlock, exitBlock));
+            assert vstackEmpty();
+            startBlock(bodyBlock);
+            return whileStmt.stmt;
+        }
         if (!isBlockTerminated(currentBlock))
-            jumpTo(loopBlock);
-        startBlock(exitBlock);
-        currentContinueTarget = savedContinueTarget;
-        currentBreakTarget = savedBreakTarget;
+            jumpTo(frame.loopBlock);
+        startBlock(frame.exitBlock);
+        currentContinueTarget = frame.savedContinueTarget;
+        currentBreakTarget = frame.savedBreakTarget;
+        return null;
     }
 
     private boolean isBlockTerminated(BasicBlock block) {
@@ -202,27 +257,28 @@ public class FunctionBuilder {
         currentBlock = block;
     }
 
-    private void compileIf(AST.IfElseStmt ifElseStmt) {
-        BasicBlock ifBlock = createBlock();
-        boolean needElse = ifElseStmt.elseStmt != null;
-        BasicBlock elseBlock = needElse ? createBlock() : null;
-        BasicBlock exitBlock = createBlock();
-        boolean indexed = compileExpr(ifElseStmt.condition);
-        if (indexed)
-            codeIndexedLoad();
-        code(new Instruction.ConditionalBranch(currentBlock, pop(), ifBlock, needElse ? elseBlock : exitBlock));
-        assert vstackEmpty();
-        startBlock(ifBlock);
-        compileStatement(ifElseStmt.ifStmt);
+    private AST.Stmt compileIf(AST.IfElseStmt ifElseStmt, StmtFrame frame) {
+        if (frame.step == 0) {
+            BasicBlock ifBlock = createBlock();
+            boolean needElse = ifElseStmt.elseStmt != null;
+            BasicBlock elseBlock = frame.elseBlock = needElse ? createBlock() : null;
+            BasicBlock exitBlock = frame.exitBlock = createBlock();
+            boolean indexed = compileExpr(ifElseStmt.condition);
+            if (indexed)
+                codeIndexedLoad();
+            code(new Instruction.ConditionalBranch(currentBlock, pop(), ifBlock, needElse ? elseBlock : exitBlock));
+            assert vstackEmpty();
+            startBlock(ifBlock);
+            return ifElseStmt.ifStmt;
+        }
         if (!isBlockTerminated(currentBlock))
-            jumpTo(exitBlock);
-        if (elseBlock != null) {
-            startBlock(elseBlock);
-            compileStatement(ifElseStmt.elseStmt);
-            if (!isBlockTerminated(currentBlock))
-                jumpTo(exitBlock);
+            jumpTo(frame.exitBlock);
+        if (frame.step == 1 && frame.elseBlock != null) {
+            startBlock(frame.elseBlock);
+            return ifElseStmt.elseStmt;
         }
-        startBlock(exitBlock);
+        startBlock(frame.exitBlock);
+        return null;
     }
 
     private void compileLet(AST.VarStmt letStmt) {
@@ -234,50 +290,123 @@ public class FunctionBuilder {
         }
     }
 
+    /**
+     * Compiles the expression, returning true if it left an
+     * indexed load rather than a value on the virtual stack
+     */
     private boolean compileExpr(AST.Expr expr) {
-        switch (expr) {
+        List<ExprFrame> stack = new ArrayList<>();
+        stack.add(new ExprFrame(expr));
+        boolean indexed = false;
+        while (!stack.isEmpty()) {
+            ExprFrame frame = stack.getLast();
+            AST.Expr child = compileExprStep(frame, indexed);
+            if (child != null) {
+                frame.step++;
+                stack.add(new ExprFrame(child));
+            }
+            else {
+                stack.removeLast();
+                indexed = frame.indexed;
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Compiles the expression up to its next child, which is returned,
+     * or to its end, in which case null is returned. The indexed flag
+     * is the result of the child compiled last, if any.
+     */
+    private AST.Expr compileExprStep(ExprFrame frame, boolean indexed) {
+        int step = frame.step;
+        switch (frame.node) {
             case AST.LiteralExpr constantExpr -> {
-                return compileConstantExpr(constantExpr);
+                pushConstant(constantExpr.value.num);
             }
             case AST.BinaryExpr binaryExpr -> {
-                return compileBinaryExpr(binaryExpr);
+                if (step > 0 && indexed)
+                    codeIndexedLoad();
+                if (step == 0)
+                    return binaryExpr.expr1;
+                if (step == 1)
+                    return binaryExpr.expr2;
+                compileBinaryOp(binaryExpr);
             }
             case AST.UnaryExpr unaryExpr -> {
-                return compileUnaryExpr(unaryExpr);
+                if (step == 0)
+                    return unaryExpr.expr;
+                if (indexed)
+                    codeIndexedLoad();
+                compileUnaryOp(unaryExpr);
             }
             case AST.NameExpr symbolExpr -> {
-                return compileSymbolExpr(symbolExpr);
+                compileSymbolExpr(symbolExpr);
             }
             case AST.NewExpr newExpr -> {
-                return compileNewExpr(newExpr);
+                return compileNewExpr(newExpr, step, indexed);
             }
             case AST.ArrayIndexExpr arrayIndexExpr -> {
-                return compileArrayIndexExpr(arrayIndexExpr);
+                if (step == 0)
+                    return arrayIndexExpr.array;
+                if (step == 1)
+                    return arrayIndexExpr.expr;
+                if (indexed)
+                    codeIndexedLoad();
+                Operand index = pop();
+                Operand array = pop();
+                pushOperand(new Operand.LoadIndexedOperand(array, index));
+                frame.indexed = true;
             }
             case AST.FieldExpr fieldExpr -> {
-                return compileFieldExpr(fieldExpr);
+                if (step == 0) {
+                    Type.TypeStruct typeStruct = getStructType(fieldExpr.object.type);
+                    frame.fieldIndex = typeStruct.getFieldIndex(fieldExpr.fieldNameId);
+                    if (frame.fieldIndex < 0)
+                        throw new CompilerException("Field " + fieldExpr.fieldName + " not found");
+                    return fieldExpr.object;
+                }
+                if (indexed)
+                    codeIndexedLoad();
+                pushOperand(new Operand.LoadFieldOperand(pop(), fieldExpr.fieldName, frame.fieldIndex));
+                frame.indexed = true;
             }
             case AST.SetFieldExpr setFieldExpr -> {
-                return compileSetFieldExpr(setFieldExpr);
+                if (step == 0) {
+                    Type.TypeStruct structType = (Type.TypeStruct) setFieldExpr.objectType;
+                    int fieldIndex = structType.getFieldIndex(setFieldExpr.fieldNameId);
+                    if (fieldIndex == -1)
+                        throw new CompilerException("Field " + setFieldExpr.fieldName + " not found in struct " + structType.name);
+                    pushOperand(new Operand.LoadFieldOperand(top(), setFieldExpr.fieldName, fieldIndex));
+                    return setFieldExpr.value;
+                }
+                if (indexed)
+                    codeIndexedLoad();
+                codeIndexedStore();
             }
             case AST.CallExpr callExpr -> {
-                return compileCallExpr(callExpr);
+                return compileCallExpr(callExpr, frame, indexed);
             }
-            default -> throw new IllegalStateException("Unexpected value: " + expr);
+            default -> throw new IllegalStateException("Unexpected value: " + frame.node);
         }
-    }
-
-    private boolean compileCallExpr(AST.CallExpr callExpr) {
-        compileExpr(callExpr.callee);
-        var callee = top();
-        if (!(callee instanceof Operand.TempRegisterOperand) ) {
-            var origCallee = pop();
-            callee = createTemp();
-            code(new Instruction.Move(origCallee, callee));
+        return null;
+    }
+
+    private AST.Expr compileCallExpr(AST.CallExpr callExpr, ExprFrame frame, boolean indexed) {
+        int step = frame.step;
+        if (step == 0)
+            return callExpr.callee;
+        if (step == 1) {
+            var callee = top();
+            if (!(callee instanceof Operand.TempRegisterOperand) ) {
+                var origCallee = pop();
+                callee = createTemp();
+                code(new Instruction.Move(origCallee, callee));
+            }
+            frame.callee = callee;
+            frame.args = new ArrayList<>();
         }
-        List<Operand> args = new ArrayList<>();
-        for (AST.Expr expr: callExpr.args) {
-            boolean indexed = compileExpr(expr);
+        else {
             if (indexed)
                 codeIndexedLoad();
             var arg = top();
@@ -286,16 +415,19 @@ public class FunctionBuilder {
                 arg = createTemp();
                 code(new Instruction.Move(origArg, arg));
             }
-            args.add(arg);
+            frame.args.add(arg);
         }
-        code(new Instruction.Call(callee, args.toArray(new Operand[args.size()])));
+        if (step <= callExpr.args.size())
+            return callExpr.args.get(step - 1);
+        List<Operand> args = frame.args;
+        code(new Instruction.Call(frame.callee, args.toArray(new Operand[args.size()])));
         // Similute the actions on the stack
         for (int i = 0; i < args.size()+1; i++)
             pop();
         if (callExpr.callee.type instanceof Type.TypeFunction tf &&
             tf.returnType != null)
             createTemp();
-        return false;
+        return null;
     }
 
     private Type.TypeStruct getStructType(Type t) {
@@ -310,42 +442,6 @@ public class FunctionBuilder {
             throw new CompilerException("Unexpected type: " + t);
     }
 
-    private boolean compileFieldExpr(AST.FieldExpr fieldExpr) {
-        Type.TypeStruct typeStruct = getStructType(fieldExpr.object.type);
-        int fieldIndex = typeStruct.getFieldIndex(fieldExpr.fieldName);
-        if (fieldIndex < 0)
-            throw new CompilerException("Field " + fieldExpr.fieldName + " not found");
-        boolean indexed = compileExpr(fieldExpr.object);
-        if (indexed)
-            codeIndexedLoad();
-        pushOperand(new Operand.LoadFieldOperand(pop(), fieldExpr.fieldName, fieldIndex));
-        return true;
-    }
-
-    private boolean compileArrayIndexExpr(AST.ArrayIndexExpr arrayIndexExpr) {
-        compileExpr(arrayIndexExpr.array);
-        boolean indexed = compileExpr(arrayIndexExpr.expr);
-        if (indexed)
-            codeIndexedLoad();
-        Operand index = pop();
-        Operand array = pop();
-        pushOperand(new Operand.LoadIndexedOperand(array, index));
-        return true;
-    }
-
-    private boolean compileSetFieldExpr(AST.SetFieldExpr setFieldExpr) {
-        Type.TypeStruct structType = (Type.TypeStruct) setFieldExpr.objectType;
-        int fieldIndex = structType.getFieldIndex(setFieldExpr.fieldName);
-        if (fieldIndex == -1)
-            throw new CompilerException("Field " + setFieldExpr.fieldName + " not found in struct " + structType.name);
-        pushOperand(new Operand.LoadFieldOperand(top(), setFieldExpr.fieldName, fieldIndex));
-        boolean indexed = compileExpr(setFieldExpr.value);
-        if (indexed)
-            codeIndexedLoad();
-        codeIndexedStore();
-        return false;
-    }
-
     private void codeNew(Type type) {
         var temp = createTemp();
         code(new Instruction.Move(new Operand.NewTypeOperand(type), temp));
@@ -356,46 +452,32 @@ public class FunctionBuilder {
         code(new Instruction.AStoreAppend(top(), operand));
     }
 
-    private boolean compileNewExpr(AST.NewExpr newExpr) {
-        codeNew(newExpr.type);
-        if (newExpr.initExprList != null && !newExpr.initExprList.isEmpty()) {
-            if (newExpr.type instanceof Type.TypeArray) {
-                for (AST.Expr expr : newExpr.initExprList) {
-                    // Maybe have specific AST similar to how we have SetFieldExpr?
-                    boolean indexed = compileExpr(expr);
-                    if (indexed)
-                        codeIndexedLoad();
-                    codeStoreAppend();
-                }
-            }
-            else if (newExpr.type instanceof Type.TypeStruct) {
-                for (AST.Expr expr : newExpr.initExprList) {
-                    compileExpr(expr);
-                }
-            }
+    private AST.Expr compileNewExpr(AST.NewExpr newExpr, int step, boolean indexed) {
+        if (step == 0)
+            codeNew(newExpr.type);
+        else if (newExpr.type instanceof Type.TypeArray) {
+            // Maybe have specific AST similar to how we have SetFieldExpr?
+            if (indexed)
+                codeIndexedLoad();
+            codeStoreAppend();
         }
-        return false;
+        if (newExpr.initExprList != null && step < newExpr.initExprList.size()
+                && (newExpr.type instanceof Type.TypeArray || newExpr.type instanceof Type.TypeStruct))
+            return newExpr.initExprList.get(step);
+        return null;
     }
 
-    private boolean compileSymbolExpr(AST.NameExpr symbolExpr) {
+    private void compileSymbolExpr(AST.NameExpr symbolExpr) {
         if (symbolExpr.type instanceof Type.TypeFunction functionType)
             pushOperand(new Operand.LocalFunctionOperand(functionType));
         else {
             Symbol.VarSymbol varSymbol = (Symbol.VarSymbol) symbolExpr.symbol;
             pushLocal(varSymbol.reg, varSymbol.name);
         }
-        return false;
     }
 
-    private boolean compileBinaryExpr(AST.BinaryExpr binaryExpr) {
-        String opCode = null;
-        boolean indexed = compileExpr(binaryExpr.expr1);
-        if (indexed)
-            codeIndexedLoad();
-        indexed = compileExpr(binaryExpr.expr2);
-        if (indexed)
-            codeIndexedLoad();
-        opCode = binaryExpr.op.str;
+    private void compileBinaryOp(AST.BinaryExpr binaryExpr) {
+        String opCode = binaryExpr.op.str;
         Operand right = pop();
         Operand left = pop();
         if (left instanceof Operand.ConstantOperand leftconstant &&
@@ -421,15 +503,10 @@ public class FunctionBuilder {
             var temp = createTemp();
             code(new Instruction.BinaryInstruction(opCode, temp, left, right));
         }
-        return false;
     }
 
-    private boolean compileUnaryExpr(AST.UnaryExpr unaryExpr) {
-        String opCode;
-        boolean indexed = compileExpr(unaryExpr.expr);
-        if (indexed)
-            codeIndexedLoad();
-        opCode = unaryExpr.op.str;
+    private void compileUnaryOp(AST.UnaryExpr unaryExpr) {
+        String opCode = unaryExpr.op.str;
         Operand top = pop();
         if (top instanceof Operand.ConstantOperand constant) {
             switch (opCode) {
@@ -442,12 +519,6 @@ public class FunctionBuilder {
             var temp = createTemp();
             code(new Instruction.UnaryInstruction(opCode, temp, top));
         }
-        return false;
-    }
-
-    private boolean compileConstantExpr(AST.LiteralExpr constantExpr) {
-        pushConstant(constantExpr.value.num.intValue());
-        return false;
     }
 
     private void pushConstant(long value) {
@@ -16,7 +16,7 @@ public class TestCompiler {
     String compileSrc(String src) {
         Parser parser = new Parser();
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var sema2 = new SemaAssignTypes(typeDict);
@@ -24,7 +24,7 @@ public class TestCompiler {
         RegisterVMCompiler byteCodeCompiler = new RegisterVMCompiler();
         byteCodeCompiler.compile(typeDict);
         StringBuilder sb = new StringBuilder();
-        for (Symbol s: typeDict.bindings.values()) {
+        for (Symbol s: typeDict.getLocalSymbols()) {
             if (s instanceof Symbol.FunctionTypeSymbol f) {
                 var functionBuilder = (FunctionBuilder) f.code;
                 BasicBlock.toStr(sb, functionBuilder.entry, new BitSet());
@@ -581,4 +581,19 @@ public class TestCompiler {
                 L1:
                 """, result);
     }
+
+    @Test
+    public void testDeepNesting() {
+        // A left-deep tree of additions and a long else-if chain
+        String src = "func foo(a: Int)->Int { if (a == 0) return a" + " + a".repeat(100000)
+                + " else if (a == 1) return 1".repeat(200) + " return 2 }";
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        new SemaDefineTypes(typeDict).analyze(program);
+        new SemaAssignTypes(typeDict).analyze(program);
+        new RegisterVMCompiler().compile(typeDict);
+        var functionBuilder = (FunctionBuilder) ((Symbol.FunctionTypeSymbol) typeDict.lookup("foo")).code;
+        String code = BasicBlock.toStr(new StringBuilder(), functionBuilder.entry, new BitSet()).toString();
+        Assert.assertEquals(604, code.lines().filter(line -> line.startsWith("L")).count());
+    }
 }
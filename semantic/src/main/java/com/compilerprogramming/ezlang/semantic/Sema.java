@@ -0,0 +1,76 @@
+package com.compilerprogramming.ezlang.semantic;
+
+import com.compilerprogramming.ezlang.common.LineMap;
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+import com.compilerprogramming.ezlang.parser.AST;
+import com.compilerprogramming.ezlang.parser.ASTWalker;
+import com.compilerprogramming.ezlang.types.TypeDictionary;
+
+/**
+ * Runs semantic analysis with a single walk over function bodies.
+ *
+ * The first step defines the headers of the top level declarations:
+ * structs first, so that all their fields are known before any
+ * function signature or body refers to them, then the function
+ * signatures. Each function body is then walked once, with
+ * SemaDefineTypes and SemaAssignTypes applied together at every
+ * node. The annotations are the same as running the two passes
+ * one after the other over the whole program: the variables of
+ * each block are declared on entering it, before any of its
+ * statements is typed, so a name used before its var in the same
+ * block refers to that var in both.
+ */
+public class Sema {
+    final TypeDictionary typeDictionary;
+    final SemaDefineTypes defineTypes;
+    final SemaAssignTypes assignTypes;
+    private LineMap lineMap;
+
+    public Sema(TypeDictionary typeDictionary) {
+        this.typeDictionary = typeDictionary;
+        this.defineTypes = new SemaDefineTypes(typeDictionary);
+        this.assignTypes = new SemaAssignTypes(typeDictionary);
+        this.defineTypes.declareAhead = true;
+    }
+
+    public void analyze(AST.Program program) {
+        lineMap = program.lineMap;
+        defineTypes.lineMap = lineMap;
+        defineTypes.visit(program, true);
+        for (AST.Decl decl: program.decls) {
+            if (!(decl instanceof AST.FuncDecl))
+                ASTWalker.walk(decl, lineMap, defineTypes);
+        }
+        for (AST.Decl decl: program.decls) {
+            if (decl instanceof AST.FuncDecl funcDecl)
+                defineHeader(funcDecl);
+        }
+        defineTypes.visit(program, false);
+        for (AST.Decl decl: program.decls) {
+            if (decl instanceof AST.FuncDecl funcDecl)
+                analyzeBody(funcDecl);
+        }
+    }
+
+    private void defineHeader(AST.FuncDecl funcDecl) {
+        try {
+            defineTypes.visit(funcDecl, true);
+            for (AST.VarDecl arg: funcDecl.args)
+                ASTWalker.walk(arg, lineMap, defineTypes);
+            ASTWalker.walk(funcDecl.returnType, lineMap, defineTypes);
+            defineTypes.visit(funcDecl, false);
+        } catch (CompilerException e) {
+            throw e.at(lineMap, funcDecl.offset);
+        }
+    }
+
+    private void analyzeBody(AST.FuncDecl funcDecl) {
+        defineTypes.currentScope = funcDecl.scope;
+        defineTypes.currentFuncDecl = funcDecl;
+        assignTypes.currentScope = funcDecl.scope;
+        assignTypes.currentFuncDecl = funcDecl;
+        ASTWalker.walk(funcDecl.block(), lineMap, defineTypes, assignTypes);
+        defineTypes.currentFuncDecl = null;
+        assignTypes.currentFuncDecl = null;
+    }
+}
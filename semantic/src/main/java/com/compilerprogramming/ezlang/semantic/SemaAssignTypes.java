@@ -4,9 +4,12 @@ import com.compilerprogramming.ezlang.exceptions.CompilerException;
 import com.compilerprogramming.ezlang.lexer.Token;
 import com.compilerprogramming.ezlang.parser.AST;
 import com.compilerprogramming.ezlang.parser.ASTVisitor;
+import com.compilerprogramming.ezlang.parser.ASTWalker;
 import com.compilerprogramming.ezlang.types.Scope;
+import com.compilerprogramming.ezlang.types.Symbol;
 import com.compilerprogramming.ezlang.types.Type;
 import com.compilerprogramming.ezlang.types.TypeDictionary;
+import com.compilerprogramming.ezlang.types.TypeLattice;
 
 /**
  * The goal of this semantic analysis pass is to define
@@ -17,14 +20,17 @@ public class SemaAssignTypes implements ASTVisitor {
     AST.StructDecl currentStructDecl;
     AST.FuncDecl currentFuncDecl;
     final TypeDictionary typeDictionary;
+    final TypeLattice lattice;
 
     public SemaAssignTypes(TypeDictionary typeDictionary) {
         this.typeDictionary = typeDictionary;
+        this.lattice = typeDictionary.lattice();
     }
 
     @Override
     public ASTVisitor visit(AST.Program program, boolean enter) {
         if (enter) {
+            checkNames(program, typeDictionary);
             currentScope = program.scope;
         }
         else {
@@ -110,7 +116,7 @@ public class SemaAssignTypes implements ASTVisitor {
         }
         else
             throw new CompilerException("Unexpected struct type " + fieldExpr.object.type);
-        var fieldType = structType.getField(fieldExpr.fieldName);
+        var fieldType = structType.getField(fieldExpr.fieldNameId);
         if (fieldType == null)
             throw new CompilerException("Struct " + structType + " does not have field named " + fieldExpr.fieldName);
         fieldExpr.type = fieldType;
@@ -122,6 +128,13 @@ public class SemaAssignTypes implements ASTVisitor {
         if (!enter) {
             validType(callExpr.callee.type);
             if (callExpr.callee.type instanceof Type.TypeFunction f) {
+                if (callExpr.args.size() != f.args.size())
+                    throw new CompilerException("Function " + f.name + " expects " + f.args.size() + " arguments, got " + callExpr.args.size());
+                for (int i = 0; i < callExpr.args.size(); i++) {
+                    var arg = callExpr.args.get(i);
+                    validType(arg.type);
+                    checkAssignable(f.args.get(i).type, arg.type, "argument " + f.args.get(i).name);
+                }
                 callExpr.type = f.returnType;
             }
             else
@@ -207,6 +220,15 @@ public class SemaAssignTypes implements ASTVisitor {
             for (AST.Expr expr: newExpr.initExprList) {
                 if (expr instanceof AST.SetFieldExpr setFieldExpr) {
                     setFieldExpr.objectType = newExpr.typeExpr.type;
+                    var structType = (Type.TypeStruct) newExpr.typeExpr.type;
+                    var fieldType = structType.getField(setFieldExpr.fieldNameId);
+                    if (fieldType == null)
+                        throw new CompilerException("Struct " + structType + " does not have field named " + setFieldExpr.fieldName);
+                    checkAssignable(fieldType, setFieldExpr.value.type, "field " + setFieldExpr.fieldName);
+                }
+                else if (newExpr.typeExpr.type instanceof Type.TypeArray arrayType) {
+                    validType(expr.type);
+                    checkAssignable(arrayType.getElementType(), expr.type, "array element");
                 }
             }
         }
@@ -219,13 +241,17 @@ public class SemaAssignTypes implements ASTVisitor {
     public ASTVisitor visit(AST.NameExpr nameExpr, boolean enter) {
         if (!enter)
             return this;
-        var symbol = currentScope.lookup(nameExpr.name);
+        var symbol = currentScope.lookup(nameExpr.nameId);
         if (symbol == null) {
             throw new CompilerException("Unknown symbol " + nameExpr.name);
         }
         validType(symbol.type);
         nameExpr.symbol = symbol;
         nameExpr.type = symbol.type;
+        if (symbol instanceof Symbol.VarSymbol varSymbol) {
+            nameExpr.depth = varSymbol.depth;
+            nameExpr.slot = varSymbol.slot;
+        }
         return this;
     }
 
@@ -243,8 +269,15 @@ public class SemaAssignTypes implements ASTVisitor {
     public ASTVisitor visit(AST.ReturnStmt returnStmt, boolean enter) {
         if (enter)
             return this;
-        if (returnStmt.expr != null)
+        var returnType = ((Type.TypeFunction) currentFuncDecl.symbol.type).returnType;
+        if (returnStmt.expr != null) {
             validType(returnStmt.expr.type);
+            if (returnType == null)
+                throw new CompilerException("Function " + currentFuncDecl.name + " does not return a value");
+            checkAssignable(returnType, returnStmt.expr.type, "return value");
+        }
+        else if (returnType != null)
+            throw new CompilerException("Function " + currentFuncDecl.name + " must return a value");
         return this;
     }
 
@@ -262,7 +295,7 @@ public class SemaAssignTypes implements ASTVisitor {
     public ASTVisitor visit(AST.VarStmt varStmt, boolean enter) {
         if (!enter) {
             validType(varStmt.expr.type);
-            var symbol = currentScope.lookup(varStmt.varName);
+            var symbol = varStmt.symbol;
             symbol.type = typeDictionary.merge(varStmt.expr.type, symbol.type);
         }
         return this;
@@ -289,18 +322,42 @@ public class SemaAssignTypes implements ASTVisitor {
         return this;
     }
 
+    @Override
+    public ASTVisitor visit(AST.ErrorDecl errorDecl, boolean enter) {
+        throw new CompilerException(errorDecl.message);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ErrorStmt errorStmt, boolean enter) {
+        throw new CompilerException(errorStmt.message);
+    }
+
     @Override
     public ASTVisitor visit(AST.AssignStmt assignStmt, boolean enter) {
         if (!enter) {
             validType(assignStmt.lhs.type);
             validType(assignStmt.rhs.type);
-            // TODO check assignment
+            checkAssignable(assignStmt.lhs.type, assignStmt.rhs.type, "assignment");
         }
         return this;
     }
 
     public void analyze(AST.Program program) {
-        program.accept(this);
+        ASTWalker.walk(program, program.lineMap, this);
+    }
+
+    /**
+     * Name ids in the program are looked up as they are, so the
+     * program must have been lexed with the dictionary's names
+     */
+    static void checkNames(AST.Program program, TypeDictionary typeDictionary) {
+        if (program.names != typeDictionary.names)
+            throw new CompilerException("Program names are not in the type dictionary's name table");
+    }
+
+    private void checkAssignable(Type targetType, Type valueType, String what) {
+        if (!lattice.isAssignable(targetType, valueType))
+            throw new CompilerException("Type mismatch in " + what + ": cannot assign " + valueType + " to " + targetType);
     }
 
     private void validType(Type t) {
@@ -1,8 +1,10 @@
 package com.compilerprogramming.ezlang.semantic;
 
+import com.compilerprogramming.ezlang.common.LineMap;
 import com.compilerprogramming.ezlang.exceptions.CompilerException;
 import com.compilerprogramming.ezlang.parser.AST;
 import com.compilerprogramming.ezlang.parser.ASTVisitor;
+import com.compilerprogramming.ezlang.parser.ASTWalker;
 import com.compilerprogramming.ezlang.types.Scope;
 import com.compilerprogramming.ezlang.types.Symbol;
 import com.compilerprogramming.ezlang.types.Type;
@@ -17,6 +19,13 @@ public class SemaDefineTypes implements ASTVisitor {
     AST.StructDecl currentStructDecl;
     AST.FuncDecl currentFuncDecl;
     final TypeDictionary typeDictionary;
+    /**
+     * Set when types are assigned in the same walk: the variables
+     * of a block are then declared on entering it, so that a name
+     * resolves as it would after a full define pass
+     */
+    boolean declareAhead;
+    LineMap lineMap;
 
     public SemaDefineTypes(TypeDictionary typeDictionary) {
         this.typeDictionary = typeDictionary;
@@ -25,6 +34,7 @@ public class SemaDefineTypes implements ASTVisitor {
     @Override
     public ASTVisitor visit(AST.Program program, boolean enter) {
         if (enter) {
+            SemaAssignTypes.checkNames(program, typeDictionary);
             currentScope = typeDictionary;
             program.scope = currentScope;
         }
@@ -73,7 +83,7 @@ public class SemaDefineTypes implements ASTVisitor {
                     throw new CompilerException("Symbol " + structDecl.name + " is already declared");
             }
             else {
-                Type.TypeStruct structType = new Type.TypeStruct(structDecl.name);
+                Type.TypeStruct structType = new Type.TypeStruct(structDecl.name, typeDictionary.names);
                 structSymbol = new Symbol.TypeSymbol(structDecl.name, structType);
                 typeDictionary.install(structDecl.name, structSymbol);
             }
@@ -84,6 +94,7 @@ public class SemaDefineTypes implements ASTVisitor {
             currentStructDecl = structDecl;
         }
         else {
+            ((Type.TypeStruct) structDecl.symbol.type).complete();
             currentScope = currentScope.parent;
             currentStructDecl = null;
         }
@@ -119,15 +130,25 @@ public class SemaDefineTypes implements ASTVisitor {
                 varDecl.symbol = currentScope.install(varDecl.name, new Symbol.VarSymbol(varDecl.name, varDecl.typeExpr.type));
                 type.addArg(varDecl.symbol);
             }
-            else if (varDecl.varType == AST.VarType.VARIABLE) {
-                if (currentScope.localLookup(varDecl.name) != null)
-                    throw new CompilerException("Variable " + varDecl.name + " is already declared");
-                varDecl.symbol = currentScope.install(varDecl.name, new Symbol.VarSymbol(varDecl.name, varDecl.typeExpr.type));
+            else if (varDecl.varType == AST.VarType.VARIABLE && !declareAhead) {
+                declare(varDecl);
             }
         }
         return this;
     }
 
+    private void declare(AST.VarDecl varDecl) {
+        if (currentScope.localLookup(varDecl.name) != null)
+            throw new CompilerException("Variable " + varDecl.name + " is already declared");
+        varDecl.symbol = currentScope.install(varDecl.name, new Symbol.VarSymbol(varDecl.name, varDecl.typeExpr.type));
+    }
+
+    private void declare(AST.VarStmt varStmt) {
+        if (currentScope.localLookup(varStmt.varName) != null)
+            throw new CompilerException("Variable " + varStmt.varName + " already declared in current scope");
+        varStmt.symbol = (Symbol.VarSymbol) currentScope.install(varStmt.varName, new Symbol.VarSymbol(varStmt.varName, typeDictionary.ANY));
+    }
+
     @Override
     public ASTVisitor visit(AST.BinaryExpr binaryExpr, boolean enter) {
         return this;
@@ -158,12 +179,12 @@ public class SemaDefineTypes implements ASTVisitor {
         Symbol typeSymbol = typeDictionary.lookup(baseTypeName);
         Type baseType;
         if (typeSymbol == null)
-            baseType = typeDictionary.intern(new Type.TypeStruct(baseTypeName));
+            baseType = typeDictionary.intern(new Type.TypeStruct(baseTypeName, typeDictionary.names));
         else
             baseType = typeSymbol.type;
         if (baseType.isPrimitive())
             throw new CompilerException("Cannot make nullable instance of primitive type");
-        return typeDictionary.intern(new Type.TypeNullable(baseType));
+        return typeDictionary.makeNullableType(baseType);
     }
 
     Type getSimpleType(AST.SimpleTypeExpr simpleTypeExpr) {
@@ -172,7 +193,7 @@ public class SemaDefineTypes implements ASTVisitor {
         String typeName = simpleTypeExpr.name();
         Symbol typeSymbol = typeDictionary.lookup(typeName);
         if (typeSymbol == null) {
-            return  typeDictionary.intern(new Type.TypeStruct(typeName));
+            return  typeDictionary.intern(new Type.TypeStruct(typeName, typeDictionary.names));
         }
         return typeSymbol.type;
     }
@@ -230,7 +251,7 @@ public class SemaDefineTypes implements ASTVisitor {
             // we need to associate the return type to the function's return type
             // The visitor mechanism doesn't allow us to associate values between two steps
             if (returnTypeExpr.returnType != null) {
-                returnTypeExpr.returnType.accept(this);
+                ASTWalker.walk(returnTypeExpr.returnType, this);
                 Type.TypeFunction type = (Type.TypeFunction) currentFuncDecl.symbol.type;
                 returnTypeExpr.type = returnTypeExpr.returnType.type;
                 type.setReturnType(returnTypeExpr.type);
@@ -287,11 +308,8 @@ public class SemaDefineTypes implements ASTVisitor {
 
     @Override
     public ASTVisitor visit(AST.VarStmt varStmt, boolean enter) {
-        if (enter) {
-            if (currentScope.localLookup(varStmt.varName) != null)
-                throw new CompilerException("Variable " + varStmt.varName + " already declared in current scope");
-            varStmt.symbol = (Symbol.VarSymbol) currentScope.install(varStmt.varName, new Symbol.VarSymbol(varStmt.varName, typeDictionary.ANY));
-        }
+        if (enter && !declareAhead)
+            declare(varStmt);
         return this;
     }
 
@@ -301,6 +319,8 @@ public class SemaDefineTypes implements ASTVisitor {
             Scope blockScope = new Scope(currentScope);
             blockStmt.scope = blockScope;
             currentScope = blockScope;
+            if (declareAhead)
+                declareVariables(blockStmt);
         }
         else {
             currentScope = currentScope.parent;
@@ -308,6 +328,21 @@ public class SemaDefineTypes implements ASTVisitor {
         return this;
     }
 
+    private void declareVariables(AST.BlockStmt blockStmt) {
+        for (AST.Stmt stmt: blockStmt.stmtList) {
+            try {
+                if (stmt instanceof AST.VarStmt varStmt)
+                    declare(varStmt);
+                else if (stmt instanceof AST.VarDeclStmt varDeclStmt) {
+                    ASTWalker.walk(varDeclStmt.varDecl.typeExpr, this);
+                    declare(varDeclStmt.varDecl);
+                }
+            } catch (CompilerException e) {
+                throw e.at(lineMap, stmt.offset);
+            }
+        }
+    }
+
     @Override
     public ASTVisitor visit(AST.VarDeclStmt varDeclStmt, boolean enter) {
         return this;
@@ -318,12 +353,22 @@ public class SemaDefineTypes implements ASTVisitor {
         return this;
     }
 
+    @Override
+    public ASTVisitor visit(AST.ErrorDecl errorDecl, boolean enter) {
+        throw new CompilerException(errorDecl.message);
+    }
+
+    @Override
+    public ASTVisitor visit(AST.ErrorStmt errorStmt, boolean enter) {
+        throw new CompilerException(errorStmt.message);
+    }
+
     @Override
     public ASTVisitor visit(AST.AssignStmt assignStmt, boolean enter) {
         return this;
     }
 
     public void analyze(AST.Program program) {
-        program.accept(this);
+        ASTWalker.walk(program, program.lineMap, this);
     }
 }
@@ -1,11 +1,19 @@
 package com.compilerprogramming.ezlang.semantic;
 
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
 import com.compilerprogramming.ezlang.lexer.Lexer;
+import com.compilerprogramming.ezlang.parser.AST;
+import com.compilerprogramming.ezlang.parser.ASTTestUtil;
+import com.compilerprogramming.ezlang.parser.ASTWalker;
 import com.compilerprogramming.ezlang.parser.Parser;
+import com.compilerprogramming.ezlang.types.Type;
 import com.compilerprogramming.ezlang.types.TypeDictionary;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class TestSemaAssignTypes {
 
     @Test
@@ -18,7 +26,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -38,7 +46,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -58,7 +66,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -78,7 +86,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -99,7 +107,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -119,7 +127,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -139,7 +147,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -159,7 +167,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -180,7 +188,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -201,7 +209,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -221,7 +229,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -241,7 +249,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -262,7 +270,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -283,7 +291,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -303,7 +311,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -323,7 +331,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -343,7 +351,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -363,7 +371,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -383,7 +391,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -403,7 +411,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -423,7 +431,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -443,7 +451,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -463,7 +471,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -483,7 +491,7 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
@@ -509,14 +517,231 @@ public class TestSemaAssignTypes {
     }
 """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("foo");
         Assert.assertNotNull(symbol);
         Assert.assertEquals("func foo()->Foo", symbol.type.describe());
         var sema2 = new SemaAssignTypes(typeDict);
-        sema2.analyze(program);
+        // f.bar[0] is an Int
+        var e = Assert.assertThrows(CompilerException.class, () -> sema2.analyze(program));
+        Assert.assertEquals("Type mismatch in return value: cannot assign Int to Foo", e.getMessage());
+    }
+
+
+    @Test
+    public void testDeepExpression() {
+        String src = "func foo(a: Int)->Int { return a" + " + a".repeat(50000) + " }";
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        new SemaDefineTypes(typeDict).analyze(program);
+        new SemaAssignTypes(typeDict).analyze(program);
+        var ret = (AST.ReturnStmt) ((AST.FuncDecl) program.decls.get(0)).block().stmtList.get(0);
+        Assert.assertEquals("Int", ret.expr.type.describe());
+    }
+
+    @Test
+    public void testLexicalAddresses() {
+        String src = """
+    func foo(a: Int, b: Int)
+    {
+       var x = a;
+       while (1) {
+          var y = x;
+          var a = y;
+          b = a + x;
+       }
+    }
+""";
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        new SemaDefineTypes(typeDict).analyze(program);
+        new SemaAssignTypes(typeDict).analyze(program);
+        var body = ((AST.FuncDecl) program.decls.get(0)).block();
+        var whileStmt = (AST.WhileStmt) body.stmtList.get(1);
+        var assign = (AST.AssignStmt) ((AST.BlockStmt) whileStmt.stmt).stmtList.get(2);
+        // b is a parameter, a shadows the parameter, x is in the function body
+        var b = (AST.NameExpr) assign.lhs;
+        var sum = (AST.BinaryExpr) assign.rhs;
+        var a = (AST.NameExpr) sum.expr1;
+        var x = (AST.NameExpr) sum.expr2;
+        Assert.assertEquals(1, b.depth);
+        Assert.assertEquals(1, b.slot);
+        Assert.assertEquals(3, a.depth);
+        Assert.assertEquals(1, a.slot);
+        Assert.assertEquals(2, x.depth);
+        Assert.assertEquals(0, x.slot);
+        Assert.assertEquals(typeDict.names.lookup("a"), a.nameId);
+        Assert.assertSame(a.symbol, ((AST.BlockStmt) whileStmt.stmt).scope.localLookup(a.nameId));
+    }
+
+    private static String typeCheck(String src) {
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        new SemaDefineTypes(typeDict).analyze(program);
+        try {
+            new SemaAssignTypes(typeDict).analyze(program);
+            return null;
+        }
+        catch (CompilerException e) {
+            return e.getMessage();
+        }
     }
 
+    @Test
+    public void testTypeChecks() {
+        String decls = """
+    struct Foo { var bar: Int }
+    func f(a: Int, b: Foo?)->Foo? { return b }
+    """;
+        Assert.assertNull(typeCheck(decls + """
+    func g()->Foo? {
+       var x: Foo?
+       x = new Foo{bar = 1}
+       x = f(1, x)
+       var y = new [Foo?]{x, new Foo{}}
+       return x
+    }"""));
+        Assert.assertEquals("Type mismatch in assignment: cannot assign Foo? to Foo",
+                typeCheck(decls + "func g() { var x: Foo\n x = f(1, new Foo{}) }"));
+        Assert.assertEquals("Type mismatch in argument b: cannot assign Int to Foo?",
+                typeCheck(decls + "func g() { f(1, 2) }"));
+        Assert.assertEquals("Function f expects 2 arguments, got 1",
+                typeCheck(decls + "func g() { f(1) }"));
+        Assert.assertEquals("Type mismatch in field bar: cannot assign Foo to Int",
+                typeCheck(decls + "func g() { var x = new Foo{bar = new Foo{}} }"));
+        Assert.assertEquals("Type mismatch in array element: cannot assign Foo to Int",
+                typeCheck(decls + "func g() { var x = new [Int]{1, new Foo{}} }"));
+        Assert.assertEquals("Function g must return a value",
+                typeCheck(decls + "func g()->Int { return }"));
+        Assert.assertEquals("Function g does not return a value",
+                typeCheck(decls + "func g() { return 1 }"));
+    }
+
+    private static CompilerException semaError(String src, boolean fused) {
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        return Assert.assertThrows(CompilerException.class, () -> {
+            if (fused)
+                new Sema(typeDict).analyze(program);
+            else {
+                new SemaDefineTypes(typeDict).analyze(program);
+                new SemaAssignTypes(typeDict).analyze(program);
+            }
+        });
+    }
+
+    @Test
+    public void testErrorPositions() {
+        for (boolean fused: new boolean[] {false, true}) {
+            var e = semaError("struct Foo { var bar: Int }\nfunc g() {\n  var x = 1\n  x = new Foo{}\n}", fused);
+            Assert.assertEquals("Type mismatch in assignment: cannot assign Foo to Int", e.getMessage());
+            Assert.assertEquals(3, e.line);
+            Assert.assertEquals(2, e.column);
+            e = semaError("func g() {}\nfunc h(a: Int, a: Int) {}", fused);
+            Assert.assertEquals(1, e.line);
+            Assert.assertEquals(15, e.column);
+            e = semaError("func g() -> Int {\n  return\n}", fused);
+            Assert.assertEquals("Function g must return a value", e.getMessage());
+            Assert.assertEquals(1, e.line);
+            Assert.assertEquals(2, e.column);
+        }
+    }
+
+    private static List<String> annotations(AST.Program program) {
+        List<String> log = new ArrayList<>();
+        ASTWalker.walk(program, ASTTestUtil.visitor((node, enter) -> {
+            if (!enter) {
+                switch (node) {
+                    case AST.NameExpr e -> log.add(e + ": " + e.type + " " + e.symbol.name + "@" + e.depth + "," + e.slot);
+                    case AST.Expr e -> log.add(e + ": " + e.type);
+                    case AST.VarStmt v -> log.add(v + ": " + v.symbol.type);
+                    case AST.BlockStmt b -> log.add("block " + b.scope.getLocalSymbols().size());
+                    default -> {}
+                }
+            }
+        }, null));
+        return log;
+    }
+
+    @Test
+    public void testFusedSema() {
+        String src = """
+    func make(n: Int)->List { return new List{head = new Node{value = n}} }
+    struct List { var head: Node? }
+    func sum(l: List)->Int {
+       var total = 0
+       var n: Node?
+       n = l.head
+       while (total < 10) {
+          var v = n.value
+          total = total + v
+          n = n.next
+       }
+       return total + count(new [Node]{new Node{value = 1}})
+    }
+    struct Node { var value: Int; var next: Node? }
+    func count(nodes: [Node])->Int { return nodes[0].value }
+    """;
+        var expected = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(expected.names);
+        new SemaDefineTypes(typeDict).analyze(expected);
+        new SemaAssignTypes(typeDict).analyze(expected);
+
+        var fused = new Parser().parse(new Lexer(src));
+        var fusedDict = new TypeDictionary(fused.names);
+        new Sema(fusedDict).analyze(fused);
+        Assert.assertEquals(annotations(expected), annotations(fused));
+        for (String name: new String[] {"make", "sum", "count", "List", "Node"})
+            Assert.assertEquals(typeDict.lookup(name).type.describe(), fusedDict.lookup(name).type.describe());
+
+        var e = Assert.assertThrows(CompilerException.class,
+                () -> analyzeFused("func f()->Int { return g() }"));
+        Assert.assertEquals("Unknown symbol g", e.getMessage());
+        // Name ids are only meaningful in the table they were lexed with
+        e = Assert.assertThrows(CompilerException.class,
+                () -> new Sema(new TypeDictionary()).analyze(new Parser().parse(new Lexer(src))));
+        Assert.assertEquals("Program names are not in the type dictionary's name table", e.getMessage());
+    }
+
+    @Test
+    public void testFusedSemaDeclaresBlockVariablesAhead() {
+        // A name used before its var in the same block refers to that var
+        String src = """
+    func f(x: Int)->Int {
+       var z = 0
+       {
+          var y = x
+          var x: [Int]
+          z = y[0]
+       }
+       return z
+    }
+    """;
+        var twoPass = analyzeTwoPass(src);
+        var fused = analyzeFused(src);
+        Assert.assertEquals(annotations(twoPass), annotations(fused));
+        var inner = (AST.BlockStmt) ((AST.FuncDecl) fused.decls.get(0)).block().stmtList.get(1);
+        Assert.assertTrue(((AST.VarStmt) inner.stmtList.get(0)).symbol.type instanceof Type.TypeArray);
+
+        String untyped = "func f()->Int { var y = x var x = 1 return y }";
+        var e1 = Assert.assertThrows(CompilerException.class, () -> analyzeTwoPass(untyped));
+        var e2 = Assert.assertThrows(CompilerException.class, () -> analyzeFused(untyped));
+        Assert.assertEquals(e1.getMessage(), e2.getMessage());
+    }
+
+    private static AST.Program analyzeTwoPass(String src) {
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        new SemaDefineTypes(typeDict).analyze(program);
+        new SemaAssignTypes(typeDict).analyze(program);
+        return program;
+    }
+
+    private static AST.Program analyzeFused(String src) {
+        var program = new Parser().parse(new Lexer(src));
+        new Sema(new TypeDictionary(program.names)).analyze(program);
+        return program;
+    }
 }
@@ -18,7 +18,7 @@ struct Tree {
     var right: Tree?
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("Tree");
@@ -35,7 +35,7 @@ struct Tree {
     var right: Tree
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("Tree");
@@ -51,7 +51,7 @@ struct TreeArray {
     var data: [Tree]
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("TreeArray");
@@ -67,7 +67,7 @@ struct TreeArray {
     var data: [Tree?]
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("TreeArray");
@@ -83,7 +83,7 @@ struct TreeArray {
     var data: [Tree?]?
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("TreeArray");
@@ -98,7 +98,7 @@ struct TreeArray {
 func print(t: Tree) {
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("print");
@@ -113,7 +113,7 @@ func print(t: Tree) {
 func makeTree()->Tree {
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("makeTree");
@@ -129,7 +129,7 @@ struct TreeArray {
     var data: [Int?]
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
     }
@@ -142,7 +142,7 @@ struct TreeArray {
     var data: [Int]
 }                """;
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var symbol = typeDict.lookup("TreeArray");
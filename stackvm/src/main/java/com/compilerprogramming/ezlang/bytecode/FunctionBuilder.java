@@ -6,6 +6,9 @@ import com.compilerprogramming.ezlang.types.Scope;
 import com.compilerprogramming.ezlang.types.Symbol;
 import com.compilerprogramming.ezlang.types.Type;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class FunctionBuilder {
 
     BasicBlock entry;
@@ -23,7 +26,7 @@ public class FunctionBuilder {
         this.exit = createBlock();
         this.currentBreakTarget = null;
         this.currentContinueTarget = null;
-        compileStatement(funcDecl.block);
+        compileStatement(funcDecl.block());
     }
 
     private void setVirtualRegisters(Scope scope) {
@@ -36,7 +39,7 @@ public class FunctionBuilder {
             }
         }
         scope.maxReg = reg;
-        for (Scope childScope: scope.children) {
+        for (Scope childScope: scope.children()) {
             setVirtualRegisters(childScope);
         }
     }
@@ -49,9 +52,38 @@ public class FunctionBuilder {
         return new BasicBlock(bid++, true);
     }
 
-    private void compileBlock(AST.BlockStmt block) {
-        for (AST.Stmt stmt: block.stmtList) {
-            compileStatement(stmt);
+    /**
+     * A statement or expression being compiled, and the number of
+     * its children compiled so far. Statements and expressions are
+     * compiled from explicit stacks of frames rather than by
+     * recursion, so that any depth of nesting can be compiled.
+     */
+    private static class Frame<T extends AST> {
+        final T node;
+        int step;
+        Frame(T node) {
+            this.node = node;
+        }
+    }
+
+    private static class StmtFrame extends Frame<AST.Stmt> {
+        BasicBlock elseBlock;
+        BasicBlock loopBlock;
+        BasicBlock exitBlock;
+        BasicBlock savedBreakTarget;
+        BasicBlock savedContinueTarget;
+        StmtFrame(AST.Stmt stmt) {
+            super(stmt);
+        }
+    }
+
+    private static class ExprFrame extends Frame<AST.Expr> {
+        // Set when the expression leaves an array or struct
+        // and an index on the stack, rather than a value
+        boolean indexed;
+        int fieldIndex;
+        ExprFrame(AST.Expr expr) {
+            super(expr);
         }
     }
 
@@ -69,18 +101,38 @@ public class FunctionBuilder {
     }
 
     private void compileStatement(AST.Stmt statement) {
-        switch (statement) {
+        List<StmtFrame> stack = new ArrayList<>();
+        stack.add(new StmtFrame(statement));
+        while (!stack.isEmpty()) {
+            StmtFrame frame = stack.getLast();
+            AST.Stmt child = compileStatementStep(frame);
+            if (child != null) {
+                frame.step++;
+                stack.add(new StmtFrame(child));
+            }
+            else
+                stack.removeLast();
+        }
+    }
+
+    /**
+     * Compiles the statement up to its next child statement, which is
+     * returned, or to its end, in which case null is returned
+     */
+    private AST.Stmt compileStatementStep(StmtFrame frame) {
+        switch (frame.node) {
             case AST.BlockStmt blockStmt -> {
-                compileBlock(blockStmt);
+                if (frame.step < blockStmt.stmtList.size())
+                    return blockStmt.stmtList.get(frame.step);
             }
             case AST.VarStmt letStmt -> {
                 compileLet(letStmt);
             }
             case AST.IfElseStmt ifElseStmt -> {
-                compileIf(ifElseStmt);
+                return compileIf(ifElseStmt, frame);
             }
             case AST.WhileStmt whileStmt -> {
-                compileWhile(whileStmt);
+                return compileWhile(whileStmt, frame);
             }
             case AST.ContinueStmt continueStmt -> {
                 compileContinue(continueStmt);
@@ -97,8 +149,9 @@ public class FunctionBuilder {
             case AST.ExprStmt exprStmt -> {
                 compileExprStmt(exprStmt);
             }
-            default -> throw new IllegalStateException("Unexpected value: " + statement);
+            default -> throw new IllegalStateException("Unexpected value: " + frame.node);
         }
+        return null;
     }
 
     private void compileAssign(AST.AssignStmt assignStmt) {
@@ -137,26 +190,29 @@ public class FunctionBuilder {
         jumpTo(currentBreakTarget);
     }
 
-    private void compileWhile(AST.WhileStmt whileStmt) {
-        BasicBlock loopBlock = createLoopHead();
-        BasicBlock bodyBlock = createBlock();
-        BasicBlock exitBlock = createBlock();
-        BasicBlock savedBreakTarget = currentBreakTarget;
-        BasicBlock savedContinueTarget = currentContinueTarget;
-        currentBreakTarget = exitBlock;
-        currentContinueTarget = loopBlock;
-        startBlock(loopBlock);
-        boolean indexed = compileExpr(whileStmt.condition);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
-        code(new Instruction.ConditionalBranch(currentBlock, bodyBlock, exitBlock));
-        startBlock(bodyBlock);
-        compileStatement(whileStmt.stmt);
+    private AST.Stmt compileWhile(AST.WhileStmt whileStmt, StmtFrame frame) {
+        if (frame.step == 0) {
+            BasicBlock loopBlock = frame.loopBlock = createLoopHead();
+            BasicBlock bodyBlock = createBlock();
+            BasicBlock exitBlock = frame.exitBlock = createBlock();
+            frame.savedBreakTarget = currentBreakTarget;
+            frame.savedContinueTarget = currentContinueTarget;
+            currentBreakTarget = exitBlock;
+            currentContinueTarget = loopBlock;
+            startBlock(loopBlock);
+            boolean indexed = compileExpr(whileStmt.condition);
+            if (indexed)
+                code(new Instruction.LoadIndexed());
+            code(new Instruction.ConditionalBranch(currentBlock, bodyBlock, exitBlock));
+            startBlock(bodyBlock);
+            return whileStmt.stmt;
+        }
         if (!isBlockTerminated(currentBlock))
-            jumpTo(loopBlock);
-        startBlock(exitBlock);
-        currentContinueTarget = savedContinueTarget;
-        currentBreakTarget = savedBreakTarget;
+            jumpTo(frame.loopBlock);
+        startBlock(frame.exitBlock);
+        currentContinueTarget = frame.savedContinueTarget;
+        currentBreakTarget = frame.savedBreakTarget;
+        return null;
     }
 
     private boolean isBlockTerminated(BasicBlock block) {
@@ -176,26 +232,27 @@ public class FunctionBuilder {
         currentBlock = block;
     }
 
-    private void compileIf(AST.IfElseStmt ifElseStmt) {
-        BasicBlock ifBlock = createBlock();
-        boolean needElse = ifElseStmt.elseStmt != null;
-        BasicBlock elseBlock = needElse ? createBlock() : null;
-        BasicBlock exitBlock = createBlock();
-        boolean indexed = compileExpr(ifElseStmt.condition);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
-        code(new Instruction.ConditionalBranch(currentBlock, ifBlock, needElse ? elseBlock : exitBlock));
-        startBlock(ifBlock);
-        compileStatement(ifElseStmt.ifStmt);
+    private AST.Stmt compileIf(AST.IfElseStmt ifElseStmt, StmtFrame frame) {
+        if (frame.step == 0) {
+            BasicBlock ifBlock = createBlock();
+            boolean needElse = ifElseStmt.elseStmt != null;
+            BasicBlock elseBlock = frame.elseBlock = needElse ? createBlock() : null;
+            BasicBlock exitBlock = frame.exitBlock = createBlock();
+            boolean indexed = compileExpr(ifElseStmt.condition);
+            if (indexed)
+                code(new Instruction.LoadIndexed());
+            code(new Instruction.ConditionalBranch(currentBlock, ifBlock, needElse ? elseBlock : exitBlock));
+            startBlock(ifBlock);
+            return ifElseStmt.ifStmt;
+        }
         if (!isBlockTerminated(currentBlock))
-            jumpTo(exitBlock);
-        if (elseBlock != null) {
-            startBlock(elseBlock);
-            compileStatement(ifElseStmt.elseStmt);
-            if (!isBlockTerminated(currentBlock))
-                jumpTo(exitBlock);
+            jumpTo(frame.exitBlock);
+        if (frame.step == 1 && frame.elseBlock != null) {
+            startBlock(frame.elseBlock);
+            return ifElseStmt.elseStmt;
         }
-        startBlock(exitBlock);
+        startBlock(frame.exitBlock);
+        return null;
     }
 
     private void compileLet(AST.VarStmt letStmt) {
@@ -207,48 +264,109 @@ public class FunctionBuilder {
         }
     }
 
+    /**
+     * Compiles the expression, returning true if it left an
+     * indexed reference rather than a value on the stack
+     */
     private boolean compileExpr(AST.Expr expr) {
-        switch (expr) {
+        List<ExprFrame> stack = new ArrayList<>();
+        stack.add(new ExprFrame(expr));
+        boolean indexed = false;
+        while (!stack.isEmpty()) {
+            ExprFrame frame = stack.getLast();
+            AST.Expr child = compileExprStep(frame, indexed);
+            if (child != null) {
+                frame.step++;
+                stack.add(new ExprFrame(child));
+            }
+            else {
+                stack.removeLast();
+                indexed = frame.indexed;
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Compiles the expression up to its next child, which is returned,
+     * or to its end, in which case null is returned. The indexed flag
+     * is the result of the child compiled last, if any.
+     */
+    private AST.Expr compileExprStep(ExprFrame frame, boolean indexed) {
+        int step = frame.step;
+        switch (frame.node) {
             case AST.LiteralExpr constantExpr -> {
-                return compileConstantExpr(constantExpr);
+                code(new Instruction.PushConst(constantExpr.value.num));
             }
             case AST.BinaryExpr binaryExpr -> {
-                return compileBinaryExpr(binaryExpr);
+                if (step > 0 && indexed)
+                    code(new Instruction.LoadIndexed());
+                if (step == 0)
+                    return binaryExpr.expr1;
+                if (step == 1)
+                    return binaryExpr.expr2;
+                compileBinaryOp(binaryExpr);
             }
             case AST.UnaryExpr unaryExpr -> {
-                return compileUnaryExpr(unaryExpr);
+                if (step == 0)
+                    return unaryExpr.expr;
+                if (indexed)
+                    code(new Instruction.LoadIndexed());
+                compileUnaryOp(unaryExpr);
             }
             case AST.NameExpr symbolExpr -> {
-                return compileSymbolExpr(symbolExpr);
+                compileSymbolExpr(symbolExpr);
             }
             case AST.NewExpr newExpr -> {
-                return compileNewExpr(newExpr);
+                return compileNewExpr(newExpr, step, indexed);
             }
             case AST.ArrayIndexExpr arrayIndexExpr -> {
-                return compileArrayIndexExpr(arrayIndexExpr);
+                if (step == 0)
+                    return arrayIndexExpr.array;
+                if (step == 1)
+                    return arrayIndexExpr.expr;
+                if (indexed)
+                    code(new Instruction.LoadIndexed());
+                frame.indexed = true;
             }
             case AST.FieldExpr fieldExpr -> {
-                return compileFieldExpr(fieldExpr);
+                if (step == 0) {
+                    Type.TypeStruct typeStruct = getStructType(fieldExpr.object.type);
+                    frame.fieldIndex = typeStruct.getFieldIndex(fieldExpr.fieldNameId);
+                    if (frame.fieldIndex < 0)
+                        throw new CompilerException("Field " + fieldExpr.fieldName + " not found");
+                    return fieldExpr.object;
+                }
+                if (indexed)
+                    code(new Instruction.LoadIndexed());
+                code(new Instruction.PushConst(frame.fieldIndex));
+                frame.indexed = true;
             }
             case AST.SetFieldExpr setFieldExpr -> {
-                return compileSetFieldExpr(setFieldExpr);
+                if (step == 0) {
+                    Type.TypeStruct structType = (Type.TypeStruct) setFieldExpr.objectType;
+                    int fieldIndex = structType.getFieldIndex(setFieldExpr.fieldNameId);
+                    if (fieldIndex == -1)
+                        throw new CompilerException("Field " + setFieldExpr.fieldName + " not found in struct " + structType.name);
+                    code(new Instruction.PushConst(fieldIndex));
+                    return setFieldExpr.value;
+                }
+                if (indexed)
+                    code(new Instruction.LoadIndexed());
+                code(new Instruction.StoreIndexed());
             }
             case AST.CallExpr callExpr -> {
-                return compileCallExpr(callExpr);
+                if (step == 0)
+                    return callExpr.callee;
+                if (step > 1 && indexed)
+                    code(new Instruction.LoadIndexed());
+                if (step <= callExpr.args.size())
+                    return callExpr.args.get(step - 1);
+                code(new Instruction.Call(callExpr.args.size()));
             }
-            default -> throw new IllegalStateException("Unexpected value: " + expr);
+            default -> throw new IllegalStateException("Unexpected value: " + frame.node);
         }
-    }
-
-    private boolean compileCallExpr(AST.CallExpr callExpr) {
-        compileExpr(callExpr.callee);
-        for (AST.Expr expr: callExpr.args) {
-            boolean indexed = compileExpr(expr);
-            if (indexed)
-                code(new Instruction.LoadIndexed());
-        }
-        code(new Instruction.Call(callExpr.args.size()));
-        return false;
+        return null;
     }
 
     private Type.TypeStruct getStructType(Type t) {
@@ -263,78 +381,32 @@ public class FunctionBuilder {
             throw new CompilerException("Unexpected type: " + t);
     }
 
-    private boolean compileFieldExpr(AST.FieldExpr fieldExpr) {
-        Type.TypeStruct typeStruct = getStructType(fieldExpr.object.type);
-        int fieldIndex = typeStruct.getFieldIndex(fieldExpr.fieldName);
-        if (fieldIndex < 0)
-            throw new CompilerException("Field " + fieldExpr.fieldName + " not found");
-        boolean indexed = compileExpr(fieldExpr.object);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
-        code(new Instruction.PushConst(fieldIndex));
-        return true;
-    }
-
-    private boolean compileArrayIndexExpr(AST.ArrayIndexExpr arrayIndexExpr) {
-        compileExpr(arrayIndexExpr.array);
-        boolean indexed = compileExpr(arrayIndexExpr.expr);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
-        return true;
-    }
-
-    private boolean compileSetFieldExpr(AST.SetFieldExpr setFieldExpr) {
-        Type.TypeStruct structType = (Type.TypeStruct) setFieldExpr.objectType;
-        int fieldIndex = structType.getFieldIndex(setFieldExpr.fieldName);
-        if (fieldIndex == -1)
-            throw new CompilerException("Field " + setFieldExpr.fieldName + " not found in struct " + structType.name);
-        code(new Instruction.PushConst(fieldIndex));
-        boolean indexed = compileExpr(setFieldExpr.value);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
-        code(new Instruction.StoreIndexed());
-        return false;
-    }
-
-    private boolean compileNewExpr(AST.NewExpr newExpr) {
-        code(new Instruction.New(newExpr.type));
-        if (newExpr.initExprList != null && !newExpr.initExprList.isEmpty()) {
-            if (newExpr.type instanceof Type.TypeArray) {
-                for (AST.Expr expr : newExpr.initExprList) {
-                    // Maybe have specific AST similar to how we have SetFieldExpr?
-                    boolean indexed = compileExpr(expr);
-                    if (indexed)
-                        code(new Instruction.LoadIndexed());
-                    code(new Instruction.StoreAppend());
-                }
-            }
-            else if (newExpr.type instanceof Type.TypeStruct) {
-                for (AST.Expr expr : newExpr.initExprList) {
-                    compileExpr(expr);
-                }
-            }
+    private AST.Expr compileNewExpr(AST.NewExpr newExpr, int step, boolean indexed) {
+        if (step == 0)
+            code(new Instruction.New(newExpr.type));
+        else if (newExpr.type instanceof Type.TypeArray) {
+            // Maybe have specific AST similar to how we have SetFieldExpr?
+            if (indexed)
+                code(new Instruction.LoadIndexed());
+            code(new Instruction.StoreAppend());
         }
-        return false;
+        if (newExpr.initExprList != null && step < newExpr.initExprList.size()
+                && (newExpr.type instanceof Type.TypeArray || newExpr.type instanceof Type.TypeStruct))
+            return newExpr.initExprList.get(step);
+        return null;
     }
 
-    private boolean compileSymbolExpr(AST.NameExpr symbolExpr) {
+    private void compileSymbolExpr(AST.NameExpr symbolExpr) {
         if (symbolExpr.type instanceof Type.TypeFunction functionType)
             code(new Instruction.LoadFunction(functionType));
         else {
             Symbol.VarSymbol varSymbol = (Symbol.VarSymbol) symbolExpr.symbol;
             code(new Instruction.LoadVar(varSymbol.reg));
         }
-        return false;
     }
 
-    private boolean compileBinaryExpr(AST.BinaryExpr binaryExpr) {
+    private void compileBinaryOp(AST.BinaryExpr binaryExpr) {
         int opCode = 0;
-        boolean indexed = compileExpr(binaryExpr.expr1);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
-        indexed = compileExpr(binaryExpr.expr2);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
         switch (binaryExpr.op.str) {
             case "+" -> opCode = Instruction.ADD_I;
             case "-" -> opCode = Instruction.SUB_I;
@@ -350,26 +422,16 @@ public class FunctionBuilder {
             default -> throw new CompilerException("Invalid binary op");
         }
         code(new Instruction.BinaryOp(opCode));
-        return false;
     }
 
-    private boolean compileUnaryExpr(AST.UnaryExpr unaryExpr) {
+    private void compileUnaryOp(AST.UnaryExpr unaryExpr) {
         int opCode = 0;
-        boolean indexed = compileExpr(unaryExpr.expr);
-        if (indexed)
-            code(new Instruction.LoadIndexed());
         switch (unaryExpr.op.str) {
             case "-" -> opCode = Instruction.NEG_I;
             case "!" -> opCode = Instruction.NOT;
             default -> throw new CompilerException("Invalid binary op");
         }
         code(new Instruction.UnaryOp(opCode));
-        return false;
-    }
-
-    private boolean compileConstantExpr(AST.LiteralExpr constantExpr) {
-        code(new Instruction.PushConst(constantExpr.value.num.intValue()));
-        return false;
     }
 
 }
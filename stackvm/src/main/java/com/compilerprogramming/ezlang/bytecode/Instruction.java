@@ -76,8 +76,8 @@ public class Instruction {
     }
 
     public static class PushConst extends Instruction {
-        public final int value;
-        public PushConst(int value) {
+        public final long value;
+        public PushConst(long value) {
             super(PUSH_I);
             this.value = value;
         }
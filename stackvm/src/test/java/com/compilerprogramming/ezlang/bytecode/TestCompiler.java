@@ -6,6 +6,7 @@ import com.compilerprogramming.ezlang.semantic.SemaAssignTypes;
 import com.compilerprogramming.ezlang.semantic.SemaDefineTypes;
 import com.compilerprogramming.ezlang.types.Symbol;
 import com.compilerprogramming.ezlang.types.TypeDictionary;
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.BitSet;
@@ -15,14 +16,14 @@ public class TestCompiler {
     void compileSrc(String src, String functionName) {
         Parser parser = new Parser();
         var program = parser.parse(new Lexer(src));
-        var typeDict = new TypeDictionary();
+        var typeDict = new TypeDictionary(program.names);
         var sema = new SemaDefineTypes(typeDict);
         sema.analyze(program);
         var sema2 = new SemaAssignTypes(typeDict);
         sema2.analyze(program);
         ByteCodeCompiler byteCodeCompiler = new ByteCodeCompiler();
         byteCodeCompiler.compile(typeDict);
-        for (Symbol s: typeDict.bindings.values()) {
+        for (Symbol s: typeDict.getLocalSymbols()) {
             if (s instanceof Symbol.FunctionTypeSymbol f) {
                 var functionBuilder = (FunctionBuilder) f.code;
                 System.out.println(BasicBlock.toStr(new StringBuilder(), functionBuilder.entry, new BitSet()));
@@ -287,4 +288,18 @@ public class TestCompiler {
         compileSrc(src, "bar");
     }
 
+    @Test
+    public void testDeepNesting() {
+        // A left-deep tree of additions and a long else-if chain
+        String src = "func foo(a: Int)->Int { if (a == 0) return a" + " + a".repeat(100000)
+                + " else if (a == 1) return 1".repeat(200) + " return 2 }";
+        var program = new Parser().parse(new Lexer(src));
+        var typeDict = new TypeDictionary(program.names);
+        new SemaDefineTypes(typeDict).analyze(program);
+        new SemaAssignTypes(typeDict).analyze(program);
+        new ByteCodeCompiler().compile(typeDict);
+        var functionBuilder = (FunctionBuilder) ((Symbol.FunctionTypeSymbol) typeDict.lookup("foo")).code;
+        String code = BasicBlock.toStr(new StringBuilder(), functionBuilder.entry, new BitSet()).toString();
+        Assert.assertEquals(604, code.lines().filter(line -> line.startsWith("L")).count());
+    }
 }
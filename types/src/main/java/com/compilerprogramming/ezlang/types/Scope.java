@@ -1,42 +1,160 @@
 package com.compilerprogramming.ezlang.types;
 
+import com.compilerprogramming.ezlang.common.NameTable;
+
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Scope {
 
-    public final Map<String, Symbol> bindings = new LinkedHashMap<>();
     public final Scope parent;
-    public final List<Scope> children = new ArrayList<>();
+    /**
+     * Names are interned in a table shared by all scopes
+     * descending from the same root
+     */
+    public final NameTable names;
+    /**
+     * Number of enclosing scopes
+     */
+    public final int depth;
+
+    /**
+     * The symbols, child scopes and register count of a scope at
+     * some point in time. Snapshots are immutable, so taking one is
+     * O(1), and restoring one undoes every install, every child scope
+     * created and every change to maxReg made since it was taken.
+     */
+    public static final class Snapshot {
+        final SymbolMap symbols;
+        // Installed symbols, most recent first
+        final Installed installed;
+        final int numVars;
+        // Child scopes, most recent first
+        final Child children;
+        final int maxReg;
+
+        Snapshot(SymbolMap symbols, Installed installed, int numVars, Child children, int maxReg) {
+            this.symbols = symbols;
+            this.installed = installed;
+            this.numVars = numVars;
+            this.children = children;
+            this.maxReg = maxReg;
+        }
+
+        public int size() {
+            return symbols.size();
+        }
+    }
+
+    record Installed(Symbol symbol, Installed next) {}
+    record Child(Scope scope, Child next) {}
+
+    private Snapshot current = new Snapshot(SymbolMap.EMPTY, null, 0, null, 0);
 
     // values assigned by compiler
     public int maxReg;
 
     public Scope(Scope parent) {
         this.parent = parent;
-        if (parent != null)
-            parent.children.add(this);
+        if (parent != null) {
+            parent.addChild(this);
+            names = parent.names;
+            depth = parent.depth + 1;
+        }
+        else {
+            names = new NameTable();
+            depth = 0;
+        }
+    }
+
+    /**
+     * Creates a scope on top of a parent that may be shared with
+     * other threads, so the parent is left untouched: this scope
+     * is not added to its children, and names are interned in
+     * the given table, which must be layered on the parent's names.
+     */
+    protected Scope(Scope parent, NameTable names) {
+        this.parent = parent;
+        this.names = names;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    public Snapshot snapshot() {
+        if (current.maxReg != maxReg)
+            current = new Snapshot(current.symbols, current.installed, current.numVars, current.children, maxReg);
+        return current;
+    }
+
+    public void restore(Snapshot snapshot) {
+        current = snapshot;
+        maxReg = snapshot.maxReg;
+    }
+
+    private void addChild(Scope child) {
+        current = new Snapshot(current.symbols, current.installed, current.numVars,
+                new Child(child, current.children), current.maxReg);
+    }
+
+    /**
+     * Returns the child scopes in the order they were created
+     */
+    public List<Scope> children() {
+        List<Scope> children = new ArrayList<>();
+        for (Child c = current.children; c != null; c = c.next)
+            children.add(c.scope);
+        return children.reversed();
     }
 
     public Symbol lookup(String name) {
-        Symbol symbol = bindings.get(name);
-        if (symbol == null && parent != null)
-            symbol = parent.lookup(name);
-        return symbol;
+        int nameId = names.lookup(name);
+        return nameId < 0 ? null : lookup(nameId);
+    }
+
+    /**
+     * Looks up a name by its id in the names table,
+     * searching enclosing scopes if not found here
+     */
+    public Symbol lookup(int nameId) {
+        for (Scope scope = this; scope != null; scope = scope.parent) {
+            Symbol symbol = scope.current.symbols.get(nameId);
+            if (symbol != null)
+                return symbol;
+        }
+        return null;
     }
 
     public Symbol localLookup(String name) {
-        return bindings.get(name);
+        int nameId = names.lookup(name);
+        return nameId < 0 ? null : localLookup(nameId);
+    }
+
+    public Symbol localLookup(int nameId) {
+        return current.symbols.get(nameId);
     }
 
     public Symbol install(String name, Symbol symbol) {
-        bindings.put(name, symbol);
+        int nameId = names.intern(name);
+        symbol.nameId = nameId;
+        int numVars = current.numVars;
+        if (symbol instanceof Symbol.VarSymbol varSymbol && varSymbol.depth < 0) {
+            varSymbol.depth = depth;
+            varSymbol.slot = numVars++;
+        }
+        current = new Snapshot(current.symbols.put(nameId, symbol),
+                new Installed(symbol, current.installed), numVars, current.children, current.maxReg);
         return symbol;
     }
 
+    /**
+     * Returns the symbols in this scope in the order they were installed
+     */
     public List<Symbol> getLocalSymbols() {
-        return new ArrayList<>(bindings.values());
+        List<Symbol> symbols = new ArrayList<>(current.symbols.size());
+        for (Installed i = current.installed; i != null; i = i.next) {
+            // Skip symbols that were replaced by a later install
+            if (current.symbols.get(i.symbol.nameId) == i.symbol)
+                symbols.add(i.symbol);
+        }
+        return symbols.reversed();
     }
 }
@@ -7,6 +7,8 @@ public abstract class Symbol {
 
     public final String name;
     public Type type;
+    // Id of the name in the scope's name table, set on install
+    public int nameId = -1;
 
     protected Symbol(String name, Type type) {
         this.name = name;
@@ -29,6 +31,10 @@ public abstract class Symbol {
     }
 
     public static class VarSymbol extends Symbol {
+        // Lexical address assigned when installed in a scope:
+        // the depth of the scope and the index of the variable in it
+        public int depth = -1;
+        public int slot = -1;
         // Values assigned by bytecode compiler
         public int reg;
         public VarSymbol(String name, Type type) {
@@ -0,0 +1,82 @@
+package com.compilerprogramming.ezlang.types;
+
+/**
+ * An immutable map from name id to symbol, as a hash array mapped
+ * trie: each level uses 5 bits of the id to index a node, and a
+ * node only holds its occupied entries, found by a bitmap.
+ * Putting a symbol copies only the nodes on the path to it, so a
+ * map can be kept as a snapshot while newer versions share most
+ * of its nodes.
+ */
+final class SymbolMap {
+
+    static final SymbolMap EMPTY = new SymbolMap(new Node(0, new Object[0]), 0);
+
+    private record Leaf(int nameId, Symbol symbol) {}
+
+    private record Node(int bitmap, Object[] entries) {
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private SymbolMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Symbol get(int nameId) {
+        Node node = root;
+        for (int shift = 0; ; shift += 5) {
+            int bit = 1 << ((nameId >>> shift) & 31);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            Object entry = node.entries[node.index(bit)];
+            if (entry instanceof Leaf leaf)
+                return leaf.nameId == nameId ? leaf.symbol : null;
+            node = (Node) entry;
+        }
+    }
+
+    SymbolMap put(int nameId, Symbol symbol) {
+        boolean[] added = new boolean[1];
+        Node newRoot = put(root, 0, new Leaf(nameId, symbol), added);
+        return new SymbolMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    private static Node put(Node node, int shift, Leaf leaf, boolean[] added) {
+        int bit = 1 << ((leaf.nameId >>> shift) & 31);
+        int index = node.index(bit);
+        if ((node.bitmap & bit) == 0) {
+            Object[] entries = new Object[node.entries.length + 1];
+            System.arraycopy(node.entries, 0, entries, 0, index);
+            entries[index] = leaf;
+            System.arraycopy(node.entries, index, entries, index + 1, node.entries.length - index);
+            added[0] = true;
+            return new Node(node.bitmap | bit, entries);
+        }
+        Object entry = node.entries[index];
+        Object replacement;
+        if (entry instanceof Leaf existing) {
+            if (existing.nameId == leaf.nameId)
+                replacement = leaf;
+            else {
+                Node child = new Node(0, new Object[0]);
+                child = put(child, shift + 5, existing, added);
+                replacement = put(child, shift + 5, leaf, added);
+            }
+        }
+        else
+            replacement = put((Node) entry, shift + 5, leaf, added);
+        Object[] entries = node.entries.clone();
+        entries[index] = replacement;
+        return new Node(node.bitmap, entries);
+    }
+}
@@ -1,10 +1,10 @@
 package com.compilerprogramming.ezlang.types;
 
+import com.compilerprogramming.ezlang.common.NameTable;
 import com.compilerprogramming.ezlang.exceptions.CompilerException;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 /**
  * Currently, we support Int, Struct, and Array of Int/Struct.
@@ -23,6 +23,7 @@ public abstract class Type {
 
     public final byte tclass;    // type class
     public final String name;      // type name, always unique
+    int id = -1;                   // dense id assigned by the TypeDictionary
 
     protected Type(byte tclass, String name) {
         this.tclass = tclass;
@@ -32,18 +33,12 @@ public abstract class Type {
     public boolean isPrimitive() { return false; }
     public String describe() { return toString(); }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        Type type = (Type) o;
-        return tclass == type.tclass && Objects.equals(name, type.name);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(tclass, name);
-    }
+    /**
+     * Types are interned by the TypeDictionary, so equality is
+     * identity and the id can be used as a dense index.
+     * Returns -1 if the type has not been interned.
+     */
+    public int id() { return id; }
 
     @Override
     public String toString() {
@@ -79,21 +74,62 @@ public abstract class Type {
     public static class TypeStruct extends Type {
         ArrayList<String> fieldNames = new ArrayList<>();
         ArrayList<Type> fieldTypes = new ArrayList<>();
+        /**
+         * Field names are looked up by their id in this table, which
+         * should be the one used by the scopes, so that name ids
+         * from name resolution can be used as they are
+         */
+        public final NameTable names;
+        // Open addressing table from name id to field index + 1,
+        // 0 for empty slots
+        int[] fieldNameIds = new int[8];
+        int[] fieldIndexes = new int[8];
         public boolean pending = true;
 
+        // Layout computed when the struct is completed:
+        // primitive fields get the first slots, followed by the
+        // reference fields, so that a VM can scan references as a block
+        int[] fieldSlots;
+        int primitiveSlots;
+
         public TypeStruct(String name) {
+            this(name, new NameTable(8));
+        }
+        public TypeStruct(String name, NameTable names) {
             super(TSTRUCT, name);
+            this.names = names;
         }
         public void addField(String name, Type type) {
             if (!pending)
                 throw new CompilerException("Cannot add field to an already defined struct");
-            if (fieldNames.contains(name))
+            int nameId = names.intern(name);
+            if (getFieldIndex(nameId) >= 0)
                 throw new CompilerException("Field " + name + " already exists in struct " + this.name);
             if (type == null)
                 throw new CompilerException("Cannot a field with null type");
+            if (fieldNames.size() * 2 >= fieldIndexes.length)
+                growFieldIndexes();
+            insertFieldIndex(nameId, fieldNames.size());
             fieldNames.add(name);
             fieldTypes.add(type);
         }
+        private void insertFieldIndex(int nameId, int index) {
+            int mask = fieldIndexes.length - 1;
+            int i = nameId & mask;
+            while (fieldIndexes[i] != 0)
+                i = (i + 1) & mask;
+            fieldNameIds[i] = nameId;
+            fieldIndexes[i] = index + 1;
+        }
+        private void growFieldIndexes() {
+            int[] oldNameIds = fieldNameIds;
+            int[] oldIndexes = fieldIndexes;
+            fieldNameIds = new int[oldIndexes.length * 2];
+            fieldIndexes = new int[oldIndexes.length * 2];
+            for (int i = 0; i < oldIndexes.length; i++)
+                if (oldIndexes[i] != 0)
+                    insertFieldIndex(oldNameIds[i], oldIndexes[i] - 1);
+        }
         public String describe() {
             StringBuilder sb = new StringBuilder();
             sb.append("struct ").append(name()).append("{");
@@ -106,15 +142,65 @@ public abstract class Type {
             return sb.toString();
         }
         public Type getField(String name) {
-            int index = fieldNames.indexOf(name);
-            if (index < 0)
-                return null;
-            return fieldTypes.get(index);
+            return getField(names.lookup(name));
+        }
+        public Type getField(int nameId) {
+            int index = getFieldIndex(nameId);
+            return index < 0 ? null : fieldTypes.get(index);
         }
         public int getFieldIndex(String name) {
-            return  fieldNames.indexOf(name);
+            return getFieldIndex(names.lookup(name));
+        }
+        /**
+         * Index of the field with given id in the names table,
+         * or -1 if there is no such field
+         */
+        public int getFieldIndex(int nameId) {
+            if (nameId < 0)
+                return -1;
+            int mask = fieldIndexes.length - 1;
+            for (int i = nameId & mask; fieldIndexes[i] != 0; i = (i + 1) & mask)
+                if (fieldNameIds[i] == nameId)
+                    return fieldIndexes[i] - 1;
+            return -1;
+        }
+        public int numFields() { return fieldNames.size(); }
+        public void complete() {
+            pending = false;
+            int n = fieldTypes.size();
+            fieldSlots = new int[n];
+            int slot = 0;
+            for (int i = 0; i < n; i++)
+                if (fieldTypes.get(i).isPrimitive())
+                    fieldSlots[i] = slot++;
+            primitiveSlots = slot;
+            for (int i = 0; i < n; i++)
+                if (!fieldTypes.get(i).isPrimitive())
+                    fieldSlots[i] = slot++;
+        }
+        private void checkComplete() {
+            if (fieldSlots == null)
+                throw new CompilerException("Struct " + name + " is not completely defined");
+        }
+        /**
+         * Slot of the field at the given index in the struct's layout
+         */
+        public int fieldSlot(int index) {
+            checkComplete();
+            return fieldSlots[index];
+        }
+        /**
+         * Number of leading slots that hold primitive values,
+         * the remaining slots hold references
+         */
+        public int primitiveSlots() {
+            checkComplete();
+            return primitiveSlots;
+        }
+        public int referenceSlots() {
+            checkComplete();
+            return fieldSlots.length - primitiveSlots;
         }
-        public void complete() { pending = false; }
     }
 
     public static class TypeArray extends Type {
@@ -1,59 +1,207 @@
 package com.compilerprogramming.ezlang.types;
 
+import com.compilerprogramming.ezlang.common.NameTable;
 import com.compilerprogramming.ezlang.exceptions.CompilerException;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The root scope, holding named types and functions, and the
+ * interned derived types.
+ *
+ * A dictionary of library types can be frozen and shared between
+ * threads: each compilation unit then gets its own dictionary
+ * layered on the frozen one, which it reads but never changes.
+ * The unit's names are a NameTable layered on the library's, so
+ * nothing is copied. A dictionary that is not frozen, including
+ * a unit's, must only be used from one thread.
+ */
 public class TypeDictionary extends Scope {
     public final Type.TypeAny ANY;
     public final Type.TypeInteger INT;
     public final Type.TypeNull NULL;
 
+    /**
+     * Frozen dictionary this one is layered on, or null
+     */
+    public final TypeDictionary library;
+    private boolean frozen;
+
+    /**
+     * Interned types indexed by id - firstId, ids below firstId
+     * belong to the library
+     */
+    private Type[] types = new Type[16];
+    private int typeCount;
+    private final int firstId;
+    /**
+     * Array and nullable types keyed by type class and component id,
+     * so that they can be found without constructing them first
+     */
+    private final HashMap<Long, Type> derivedTypes = new HashMap<>();
+    private final TypeLattice lattice = new TypeLattice(this);
+
     public TypeDictionary() {
-        super(null);
+        this(new NameTable());
+    }
+
+    /**
+     * Creates a dictionary that interns names in the given table,
+     * which should be the one the program was lexed with
+     */
+    public TypeDictionary(NameTable names) {
+        super(null, names);
+        library = null;
+        firstId = 0;
         INT = (Type.TypeInteger) intern(new Type.TypeInteger());
         ANY = (Type.TypeAny) intern(new Type.TypeAny());
         NULL = (Type.TypeNull) intern(new Type.TypeNull());
     }
+
+    /**
+     * Creates a dictionary that sees all the types and functions
+     * of the given frozen library
+     */
+    public TypeDictionary(TypeDictionary library) {
+        super(library, new NameTable(library.names));
+        if (!library.frozen)
+            throw new CompilerException("Library type dictionary must be frozen");
+        this.library = library;
+        firstId = library.typeCount();
+        INT = library.INT;
+        ANY = library.ANY;
+        NULL = library.NULL;
+    }
+
+    /**
+     * Makes this dictionary immutable so that it can be shared
+     * as a library. All structs must be completely defined.
+     */
+    public TypeDictionary freeze() {
+        for (Symbol symbol: getLocalSymbols()) {
+            if (symbol.type instanceof Type.TypeStruct struct && struct.pending)
+                throw new CompilerException("Struct " + struct.name + " is not completely defined");
+        }
+        frozen = true;
+        names.freeze();
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private static long key(byte tclass, Type component) {
+        return ((long) tclass << 32) | component.id;
+    }
+
+    private void register(Type type) {
+        int index = typeCount++;
+        if (index == types.length)
+            types = Arrays.copyOf(types, index * 2);
+        types[index] = type;
+        type.id = firstId + index;
+    }
+
+    public Type type(int id) {
+        if (id < firstId)
+            return library.type(id);
+        if (id - firstId >= typeCount)
+            throw new CompilerException("Unknown type id " + id);
+        return types[id - firstId];
+    }
+
+    public int typeCount() {
+        return firstId + typeCount;
+    }
+
     public Type makeArrayType(Type elementType, boolean isNullable) {
         switch (elementType) {
-            case Type.TypeInteger ti -> {
-                var arrayType = intern(new Type.TypeArray(ti, INT));
-                return isNullable ? intern(new Type.TypeNullable(arrayType)) : arrayType;
-            }
-            case Type.TypeStruct ts -> {
-                var arrayType = intern(new Type.TypeArray(ts, INT));
-                return isNullable ? intern(new Type.TypeNullable(arrayType)) : arrayType;
-            }
-            case Type.TypeNullable nullable when nullable.baseType instanceof Type.TypeStruct -> {
-                var arrayType = intern(new Type.TypeArray(elementType, INT));
-                return isNullable ? intern(new Type.TypeNullable(arrayType)) : arrayType;
-            }
+            case Type.TypeInteger ti -> {}
+            case Type.TypeStruct ts -> {}
+            case Type.TypeNullable nullable when nullable.baseType instanceof Type.TypeStruct -> {}
             case null, default -> throw new CompilerException("Unsupported array element type: " + elementType);
         }
+        Type arrayType = lookupDerived(Type.TARRAY, elementType);
+        if (arrayType == null)
+            arrayType = internDerived(new Type.TypeArray(elementType, INT), elementType);
+        return isNullable ? makeNullableType(arrayType) : arrayType;
     }
+
+    public Type makeNullableType(Type baseType) {
+        Type nullableType = lookupDerived(Type.TNULLABLE, baseType);
+        if (nullableType == null)
+            nullableType = internDerived(new Type.TypeNullable(baseType), baseType);
+        return nullableType;
+    }
+
+    private Type lookupDerived(byte tclass, Type component) {
+        if (component.id < 0)
+            return null;
+        long key = key(tclass, component);
+        for (TypeDictionary d = this; d != null; d = d.library) {
+            Type type = d.derivedTypes.get(key);
+            if (type != null)
+                return type;
+        }
+        return null;
+    }
+
+    private Type internDerived(Type type, Type component) {
+        if (component.id < 0) {
+            Type canonical = intern(component);
+            // Derived types must be built on the canonical component,
+            // an equal but distinct instance has no id to key on
+            if (canonical != component)
+                type = type instanceof Type.TypeArray
+                        ? new Type.TypeArray(canonical, INT)
+                        : new Type.TypeNullable(canonical);
+            component = canonical;
+        }
+        Type existing = lookupDerived(type.tclass, component);
+        if (existing != null)
+            return existing;
+        checkNotFrozen();
+        register(type);
+        derivedTypes.put(key(type.tclass, component), type);
+        return type;
+    }
+
     public Type intern(Type type) {
+        if (type.id >= 0)
+            return type;
+        if (type instanceof Type.TypeArray arrayType)
+            return internDerived(arrayType, arrayType.elementType);
+        if (type instanceof Type.TypeNullable nullableType)
+            return internDerived(nullableType, nullableType.baseType);
         Symbol symbol = lookup(type.name());
         if (symbol != null) return symbol.type;
         return install(type.name(), new Symbol.TypeSymbol(type.name(), type)).type;
     }
+
+    private void checkNotFrozen() {
+        if (frozen)
+            throw new CompilerException("Cannot add types to a frozen type dictionary");
+    }
+
+    /**
+     * Types installed in the dictionary, including function types,
+     * are given their id here.
+     */
+    @Override
+    public Symbol install(String name, Symbol symbol) {
+        checkNotFrozen();
+        if (symbol.type != null && symbol.type.id < 0)
+            register(symbol.type);
+        return super.install(name, symbol);
+    }
+
+    public TypeLattice lattice() {
+        return lattice;
+    }
+
     public Type merge(Type t1, Type t2) {
-        if (t1 instanceof Type.TypeNull && t2 instanceof Type.TypeStruct) {
-            return intern(new Type.TypeNullable(t2));
-        }
-        else if (t2 instanceof Type.TypeNull && t1 instanceof Type.TypeStruct) {
-            return intern(new Type.TypeNullable(t1));
-        }
-        else if (t1 instanceof Type.TypeArray && t2 instanceof Type.TypeNull) {
-            return intern(new Type.TypeNullable(t1));
-        }
-        else if (t2 instanceof Type.TypeArray && t1 instanceof Type.TypeNull) {
-            return intern(new Type.TypeNullable(t2));
-        }
-        else if (t1 instanceof Type.TypeAny)
-            return t2;
-        else if (t2 instanceof Type.TypeAny)
-            return t1;
-        else if (!t1.equals(t2))
-            throw new CompilerException("Unsupported merge type: " + t1 + " and " + t2);
-        return t1;
+        return lattice.merge(t1, t2);
     }
 }
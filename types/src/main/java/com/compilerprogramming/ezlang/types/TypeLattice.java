@@ -0,0 +1,127 @@
+package com.compilerprogramming.ezlang.types;
+
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
+
+/**
+ * Subtyping, assignability and merge over the interned types of a
+ * TypeDictionary.
+ *
+ * The lattice is small: Null is a subtype of every nullable type,
+ * and a struct or array type is a subtype of its nullable type.
+ * Any is the unknown type, used before a variable's type has been
+ * inferred, and merges with every type.
+ *
+ * Results are keyed by the pair of type ids and memoized in a
+ * direct mapped cache. Entries are immutable, so a lattice can be
+ * shared between threads; a race just loses a cached result.
+ */
+public class TypeLattice {
+
+    private static final int CACHE_SIZE = 256;
+    private static final int SUBTYPE = 0;
+    private static final int MERGE = 1;
+    private static final int NO_TYPE = -1;
+
+    private record Entry(long key, int op, int result) {}
+
+    final TypeDictionary typeDictionary;
+    private final Entry[] cache = new Entry[CACHE_SIZE];
+
+    public TypeLattice(TypeDictionary typeDictionary) {
+        this.typeDictionary = typeDictionary;
+    }
+
+    private static long key(Type t1, Type t2) {
+        return ((long) t1.id << 32) | (t2.id & 0xFFFFFFFFL);
+    }
+
+    private static int slot(long key, int op) {
+        long h = (key ^ op) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 56) & (CACHE_SIZE - 1);
+    }
+
+    private int cached(long key, int op) {
+        Entry entry = cache[slot(key, op)];
+        if (entry != null && entry.key == key && entry.op == op)
+            return entry.result;
+        return Integer.MIN_VALUE;
+    }
+
+    private void cache(long key, int op, int result) {
+        cache[slot(key, op)] = new Entry(key, op, result);
+    }
+
+    /**
+     * Returns true if a value of type sub can be used
+     * where a value of type sup is expected
+     */
+    public boolean isSubtype(Type sub, Type sup) {
+        if (sub == sup)
+            return true;
+        if (sub.id < 0 || sup.id < 0)
+            return computeSubtype(sub, sup);
+        long key = key(sub, sup);
+        int result = cached(key, SUBTYPE);
+        if (result == Integer.MIN_VALUE) {
+            result = computeSubtype(sub, sup) ? 1 : 0;
+            cache(key, SUBTYPE, result);
+        }
+        return result != 0;
+    }
+
+    private static boolean computeSubtype(Type sub, Type sup) {
+        if (sub == sup)
+            return true;
+        if (sup instanceof Type.TypeNullable nullable)
+            return sub instanceof Type.TypeNull || sub == nullable.baseType;
+        return false;
+    }
+
+    /**
+     * Returns true if a value of type valueType may be
+     * assigned to a location of type targetType
+     */
+    public boolean isAssignable(Type targetType, Type valueType) {
+        return isSubtype(valueType, targetType);
+    }
+
+    /**
+     * Returns the least type that both types are subtypes of
+     */
+    public Type merge(Type t1, Type t2) {
+        if (t1 == t2)
+            return t1;
+        if (t1.id < 0 || t2.id < 0)
+            return computeMerge(t1, t2);
+        long key = key(t1, t2);
+        int result = cached(key, MERGE);
+        if (result == Integer.MIN_VALUE) {
+            Type merged = computeMerge(t1, t2);
+            result = merged == null ? NO_TYPE : merged.id;
+            cache(key, MERGE, result);
+        }
+        if (result == NO_TYPE)
+            throw new CompilerException("Unsupported merge type: " + t1 + " and " + t2);
+        return typeDictionary.type(result);
+    }
+
+    private Type computeMerge(Type t1, Type t2) {
+        if (t1 instanceof Type.TypeAny)
+            return t2;
+        if (t2 instanceof Type.TypeAny)
+            return t1;
+        if (isSubtype(t1, t2))
+            return t2;
+        if (isSubtype(t2, t1))
+            return t1;
+        if (t1 instanceof Type.TypeNull && isReference(t2))
+            return typeDictionary.makeNullableType(t2);
+        if (t2 instanceof Type.TypeNull && isReference(t1))
+            return typeDictionary.makeNullableType(t1);
+        return null;
+    }
+
+    private static boolean isReference(Type t) {
+        return t instanceof Type.TypeStruct || t instanceof Type.TypeArray;
+    }
+}
@@ -1,5 +1,6 @@
 package com.compilerprogramming.ezlang.types;
 
+import com.compilerprogramming.ezlang.exceptions.CompilerException;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -23,4 +24,184 @@ public class TestTypes {
         return typeDictionary.intern(s);
     }
 
+    @Test
+    public void testInterning() {
+        TypeDictionary typeDictionary = new TypeDictionary();
+        Type s1 = buildStruct1(typeDictionary);
+        Assert.assertSame(s1, buildStruct1(typeDictionary));
+        Type array = typeDictionary.makeArrayType(s1, false);
+        Assert.assertSame(array, typeDictionary.makeArrayType(s1, false));
+        Assert.assertSame(array, typeDictionary.intern(new Type.TypeArray(s1, typeDictionary.INT)));
+        Type nullableArray = typeDictionary.makeArrayType(s1, true);
+        Assert.assertSame(nullableArray, typeDictionary.makeNullableType(array));
+        Assert.assertSame(nullableArray, typeDictionary.merge(array, typeDictionary.NULL));
+        Assert.assertEquals("[S1,Int]?", nullableArray.name());
+        Type nullableS1 = typeDictionary.makeNullableType(s1);
+        Assert.assertSame(nullableS1, typeDictionary.intern(new Type.TypeNullable(s1)));
+        Assert.assertNotSame(typeDictionary.makeArrayType(nullableS1, false), array);
+        // Derived types over an equal but not yet interned component
+        Type.TypeStruct copy = new Type.TypeStruct("S1");
+        Assert.assertSame(array, typeDictionary.intern(new Type.TypeArray(copy, typeDictionary.INT)));
+        Assert.assertSame(nullableS1, typeDictionary.intern(new Type.TypeNullable(new Type.TypeStruct("S1"))));
+        // Ids are dense
+        var ids = new ArrayList<Integer>();
+        for (Type type: new Type[]{typeDictionary.INT, typeDictionary.ANY, typeDictionary.NULL, s1, array, nullableArray, nullableS1}) {
+            Assert.assertSame(type, typeDictionary.type(type.id()));
+            ids.add(type.id());
+        }
+        Assert.assertEquals(ids.size(), ids.stream().distinct().count());
+        Assert.assertTrue(ids.stream().allMatch(id -> id >= 0 && id < typeDictionary.typeCount()));
+    }
+
+    @Test
+    public void testStructLayout() {
+        TypeDictionary typeDictionary = new TypeDictionary();
+        Type.TypeStruct s = new Type.TypeStruct("S3");
+        Type s1 = buildStruct1(typeDictionary);
+        s.addField("a", typeDictionary.INT);
+        s.addField("b", s1);
+        s.addField("c", typeDictionary.INT);
+        s.addField("d", typeDictionary.makeArrayType(typeDictionary.INT, true));
+        Assert.assertThrows(CompilerException.class, () -> s.addField("a", typeDictionary.INT));
+        Assert.assertThrows(CompilerException.class, () -> s.fieldSlot(0));
+        s.complete();
+        Assert.assertThrows(CompilerException.class, () -> s.addField("e", typeDictionary.INT));
+        Assert.assertEquals(4, s.numFields());
+        Assert.assertEquals(2, s.getFieldIndex("c"));
+        Assert.assertEquals(-1, s.getFieldIndex("e"));
+        Assert.assertSame(s1, s.getField("b"));
+        Assert.assertNull(s.getField("e"));
+        Assert.assertEquals(2, s.primitiveSlots());
+        Assert.assertEquals(2, s.referenceSlots());
+        Assert.assertEquals(0, s.fieldSlot(0));
+        Assert.assertEquals(2, s.fieldSlot(1));
+        Assert.assertEquals(1, s.fieldSlot(2));
+        Assert.assertEquals(3, s.fieldSlot(3));
+    }
+
+    @Test
+    public void testFieldLookupByNameId() {
+        TypeDictionary typeDictionary = new TypeDictionary();
+        Type.TypeStruct s = new Type.TypeStruct("S4", typeDictionary.names);
+        for (int i = 0; i < 40; i++)
+            s.addField("f" + i, typeDictionary.INT);
+        s.complete();
+        for (int i = 0; i < 40; i++)
+            Assert.assertEquals(i, s.getFieldIndex(typeDictionary.names.lookup("f" + i)));
+        Assert.assertEquals(-1, s.getFieldIndex(typeDictionary.names.intern("g")));
+        Assert.assertEquals(-1, s.getFieldIndex(-1));
+        Assert.assertSame(typeDictionary.INT, s.getField(typeDictionary.names.lookup("f39")));
+    }
+
+    @Test
+    public void testFrozenLibrary() throws Exception {
+        TypeDictionary library = new TypeDictionary();
+        Type s1 = buildStruct1(library);
+        Type array = library.makeArrayType(s1, false);
+        library.freeze();
+        Assert.assertThrows(IllegalStateException.class, () -> library.names.intern("S2"));
+        Assert.assertThrows(CompilerException.class, () -> buildStruct2(library));
+        Assert.assertThrows(CompilerException.class, () -> library.makeArrayType(s1, true));
+
+        var pool = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            var results = new ArrayList<java.util.concurrent.Future<Type>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(pool.submit(() -> {
+                    TypeDictionary unit = new TypeDictionary(library);
+                    Assert.assertSame(library.INT, unit.INT);
+                    Assert.assertSame(s1, unit.lookup("S1").type);
+                    Assert.assertSame(array, unit.makeArrayType(s1, false));
+                    Type s2 = buildStruct2(unit);
+                    Assert.assertNull(library.lookup("S2"));
+                    Assert.assertSame(s2, unit.type(s2.id()));
+                    Assert.assertSame(s1, unit.type(s1.id()));
+                    // Names are layered on the library's, not copied
+                    int names = library.names.size();
+                    Assert.assertEquals(library.names.lookup("S1"), unit.names.intern("S1"));
+                    Assert.assertEquals(names, unit.names.intern("S2"));
+                    Assert.assertEquals(-1, library.names.lookup("S2"));
+                    Assert.assertEquals("S2", unit.names.name(names));
+                    return unit.makeArrayType(s1, true);
+                }));
+            }
+            // Each unit interns its own nullable array
+            var distinct = new java.util.HashSet<Type>();
+            for (var result: results)
+                distinct.add(result.get());
+            Assert.assertEquals(16, distinct.size());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLattice() {
+        TypeDictionary typeDictionary = new TypeDictionary();
+        TypeLattice lattice = typeDictionary.lattice();
+        Type s1 = buildStruct1(typeDictionary);
+        Type s2 = buildStruct2(typeDictionary);
+        Type nullableS1 = typeDictionary.makeNullableType(s1);
+        Type array = typeDictionary.makeArrayType(typeDictionary.INT, false);
+        Type nullableArray = typeDictionary.makeArrayType(typeDictionary.INT, true);
+        for (int i = 0; i < 2; i++) {
+            // Second time round the results come from the cache
+            Assert.assertTrue(lattice.isSubtype(s1, nullableS1));
+            Assert.assertTrue(lattice.isSubtype(typeDictionary.NULL, nullableS1));
+            Assert.assertFalse(lattice.isSubtype(nullableS1, s1));
+            Assert.assertFalse(lattice.isSubtype(s2, nullableS1));
+            Assert.assertFalse(lattice.isAssignable(typeDictionary.INT, typeDictionary.NULL));
+            Assert.assertTrue(lattice.isAssignable(nullableArray, array));
+            Assert.assertSame(nullableS1, lattice.merge(s1, typeDictionary.NULL));
+            Assert.assertSame(nullableS1, lattice.merge(typeDictionary.NULL, nullableS1));
+            Assert.assertSame(nullableS1, lattice.merge(nullableS1, s1));
+            Assert.assertSame(nullableArray, lattice.merge(typeDictionary.NULL, array));
+            Assert.assertSame(s2, lattice.merge(typeDictionary.ANY, s2));
+            Assert.assertThrows(CompilerException.class, () -> lattice.merge(s1, s2));
+            Assert.assertThrows(CompilerException.class, () -> lattice.merge(typeDictionary.INT, typeDictionary.NULL));
+        }
+    }
+
+    @Test
+    public void testScopeSnapshots() {
+        TypeDictionary typeDictionary = new TypeDictionary();
+        Scope scope = new Scope(typeDictionary);
+        for (int i = 0; i < 1000; i++)
+            scope.install("v" + i, new Symbol.VarSymbol("v" + i, typeDictionary.INT));
+        Scope.Snapshot snapshot = scope.snapshot();
+        Assert.assertEquals(1000, snapshot.size());
+        Symbol v10 = scope.lookup("v10");
+        Assert.assertEquals(10, ((Symbol.VarSymbol) v10).slot);
+        Symbol shadow = scope.install("v10", new Symbol.VarSymbol("v10", typeDictionary.INT));
+        scope.install("w", new Symbol.VarSymbol("w", typeDictionary.INT));
+        Assert.assertSame(shadow, scope.localLookup("v10"));
+        Assert.assertEquals(1001, scope.snapshot().size());
+        Assert.assertEquals(1001, scope.getLocalSymbols().size());
+        // The snapshot is unaffected by later installs
+        Assert.assertEquals(1000, snapshot.size());
+        scope.restore(snapshot);
+        Assert.assertSame(v10, scope.localLookup("v10"));
+        Assert.assertNull(scope.lookup("w"));
+        Assert.assertSame(typeDictionary.INT, scope.lookup("Int").type);
+        var symbols = scope.getLocalSymbols();
+        Assert.assertEquals(1000, symbols.size());
+        for (int i = 0; i < symbols.size(); i++)
+            Assert.assertEquals("v" + i, symbols.get(i).name);
+        // Slots continue from the restored state
+        var v = (Symbol.VarSymbol) scope.install("x", new Symbol.VarSymbol("x", typeDictionary.INT));
+        Assert.assertEquals(1000, v.slot);
+        // Child scopes and the register count are restored too,
+        // so analysing a body again does not duplicate its scopes
+        scope.maxReg = 3;
+        Scope.Snapshot beforeBody = scope.snapshot();
+        Scope body = new Scope(scope);
+        scope.maxReg = 7;
+        Assert.assertEquals(java.util.List.of(body), scope.children());
+        scope.restore(beforeBody);
+        Assert.assertTrue(scope.children().isEmpty());
+        Assert.assertEquals(3, scope.maxReg);
+        Scope again = new Scope(scope);
+        Assert.assertEquals(java.util.List.of(again), scope.children());
+    }
 }